@@ -0,0 +1,133 @@
+package p2p.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * BaselineCompare
+ * ---------------
+ * So sánh 2 file kết quả JMH dạng CSV (-rf csv): baseline và lần chạy hiện tại.
+ * Benchmark chậm hơn baseline quá ngưỡng (mặc định 10%) → in REGRESSION và exit 1.
+ *
+ *   java -cp target/benchmarks.jar p2p.bench.BaselineCompare baseline.csv target/current.csv [thresholdPercent]
+ *
+ * baseline.csv là số đo trước mọi thay đổi hiệu năng, giữ cố định; kết quả sau mỗi thay đổi lưu riêng
+ * results-<thay đổi>.csv (vd. results-cipher-pool.csv, danh sách trong benchmarks/pom.xml)
+ * để so với baseline / với nhau (chạy trên cùng máy / JDK).
+ */
+public class BaselineCompare {
+
+    private static class Result {
+        final String mode;
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(String mode, double score, double error, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCompare <baseline.csv> <current.csv> [thresholdPercent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+        Map<String, Result> baseline = read(Path.of(args[0]));
+        Map<String, Result> current = read(Path.of(args[1]));
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "Benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, Result> e : current.entrySet()) {
+            Result now = e.getValue();
+            Result base = baseline.get(e.getKey());
+            if (base == null) {
+                System.out.printf("%-70s %14s %14.3f %9s  (new)%n", e.getKey(), "-", now.score, "");
+                continue;
+            }
+
+            // thrpt: cao hơn là tốt; avgt / sample / ss: thấp hơn là tốt
+            double change = (now.score - base.score) / base.score * 100.0;
+            double worse = "thrpt".equals(now.mode) ? -change : change;
+            // chênh lệch nằm trong sai số đo → không tính
+            boolean beyondError = Math.abs(now.score - base.score) > now.error + base.error;
+            boolean regression = worse > threshold && beyondError;
+            if (regression) regressions++;
+
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%%  %s%s%n",
+                    e.getKey(), base.score, now.score, change, now.unit,
+                    regression ? "  REGRESSION" : "");
+        }
+
+        for (String missing : baseline.keySet()) {
+            if (!current.containsKey(missing)) System.out.printf("%-70s (not run)%n", missing);
+        }
+
+        if (regressions > 0) {
+            System.out.printf("%n%d benchmark(s) regressed more than %.1f%%%n", regressions, threshold);
+            System.exit(1);
+        }
+        System.out.printf("%nNo regression beyond %.1f%%%n", threshold);
+    }
+
+    /**
+     * Key = tên benchmark + các cột "Param: ..." để phân biệt từng cấu hình
+     */
+    private static Map<String, Result> read(Path csv) throws IOException {
+        List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<>();
+        if (lines.isEmpty()) return results;
+
+        List<String> header = parseLine(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int error = header.indexOf("Score Error (99.9%)");
+        int unit = header.indexOf("Unit");
+
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) continue;
+            List<String> cols = parseLine(line);
+
+            StringBuilder key = new StringBuilder(cols.get(benchmark));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && i < cols.size() && !cols.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(cols.get(i));
+                }
+            }
+
+            String err = error >= 0 ? cols.get(error) : "";
+            results.put(key.toString(), new Result(
+                    cols.get(mode),
+                    Double.parseDouble(cols.get(score)),
+                    err.isEmpty() || err.equals("NaN") ? 0 : Double.parseDouble(err),
+                    cols.get(unit)
+            ));
+        }
+        return results;
+    }
+
+    private static List<String> parseLine(String line) {
+        List<String> cols = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                cols.add(cur.toString());
+                cur.setLength(0);
+            } else cur.append(c);
+        }
+        cols.add(cur.toString());
+        return cols;
+    }
+}
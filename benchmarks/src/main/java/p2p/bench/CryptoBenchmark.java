@@ -0,0 +1,49 @@
+package p2p.bench;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.crypto.CryptoUtils;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CryptoUtils.encryptAES / decryptAES (AES-CBC)
+ * size: 640 = 1 gói voice, 1400 ≈ 1 chunk video, 16384 ≈ 1 frame JPEG 320x240
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @Param({"640", "1400", "16384"})
+    int size;
+
+    private SecretKey key;
+    private IvParameterSpec iv;
+    private byte[] plain;
+    private byte[] encrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        key = CryptoUtils.generateAESKey();
+        iv = CryptoUtils.generateIv();
+        plain = new byte[size];
+        new Random(1).nextBytes(plain);
+        encrypted = CryptoUtils.encryptAES(plain, key, iv);
+    }
+
+    @Benchmark
+    public byte[] encryptAES() throws Exception {
+        return CryptoUtils.encryptAES(plain, key, iv);
+    }
+
+    @Benchmark
+    public byte[] decryptAES() throws Exception {
+        return CryptoUtils.decryptAES(encrypted, key, iv);
+    }
+}
@@ -0,0 +1,56 @@
+package p2p.bench;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+import p2p.FrameRenderer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FrameRenderer.toBgra: cvtColor BGR → BGRA vào Mat bọc direct ByteBuffer (bộ nhớ của PixelBuffer),
+ * phần việc mỗi frame trên thread video khi VideoSender / VideoReceiver hiển thị.
+ * Cùng tham số với MatToImageBenchmark để so trực tiếp; không cần FX toolkit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameRendererBenchmark {
+
+    @Param({"320x240", "640x480"})
+    String resolution;
+
+    private Mat frame;
+    private Mat bgra;
+
+    @Setup
+    public void setup() {
+        nu.pattern.OpenCV.loadLocally();
+
+        String[] wh = resolution.split("x");
+        int width = Integer.parseInt(wh[0]);
+        int height = Integer.parseInt(wh[1]);
+        frame = new Mat(height, width, CvType.CV_8UC3);
+        Core.randu(frame, 0, 255);
+
+        // như FrameRenderer.Buffer
+        bgra = new Mat(height, width, CvType.CV_8UC4, ByteBuffer.allocateDirect(width * height * 4));
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+        bgra.release();
+    }
+
+    @Benchmark
+    public Mat toBgra() {
+        FrameRenderer.toBgra(frame, bgra);
+        return bgra;
+    }
+}
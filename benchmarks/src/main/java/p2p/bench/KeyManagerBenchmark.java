@@ -0,0 +1,108 @@
+package p2p.bench;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.IoExecutor;
+import p2p.crypto.CryptoUtils;
+import p2p.crypto.KeyManager;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KeyManager: chi phí lấy Cipher cho mỗi tin / file.
+ * *Uncached là cách làm cũ (Cipher.getInstance + init mỗi lần), giữ lại để so sánh trong cùng 1 lần chạy.
+ * *OnIoExecutor: mỗi tin 1 task IoExecutor như PeerHandler / OutboundQueue (virtual thread nếu JDK có),
+ * số liệu là ns / tin.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyManagerBenchmark {
+
+    private static final String PEER_ID = "127.0.0.1:5000";
+    private static final String AES_MODE = "AES/CBC/PKCS5Padding";
+    private static final int TASKS = 64;
+
+    private KeyManager keyManager;
+    private SecretKey key;
+    private IvParameterSpec iv;
+    private byte[] message;
+
+    @Setup
+    public void setup() {
+        keyManager = new KeyManager();
+        key = keyManager.getOrCreate(PEER_ID);
+        iv = CryptoUtils.generateIv();
+        message = new byte[256]; // 1 tin chat thường
+        new Random(1).nextBytes(message);
+    }
+
+    @Benchmark
+    public Cipher borrowEncryptCipher() throws Exception {
+        Cipher cipher = keyManager.borrowCipher(PEER_ID, Cipher.ENCRYPT_MODE, iv);
+        keyManager.returnCipher(PEER_ID, cipher);
+        return cipher;
+    }
+
+    @Benchmark
+    public Cipher createEncryptCipherUncached() throws Exception {
+        Cipher cipher = Cipher.getInstance(AES_MODE);
+        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        return cipher;
+    }
+
+    @Benchmark
+    public byte[] encryptMessage() throws Exception {
+        return keyManager.encrypt(PEER_ID, iv, message);
+    }
+
+    @Benchmark
+    public byte[] encryptMessageUncached() throws Exception {
+        Cipher cipher = Cipher.getInstance(AES_MODE);
+        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        return cipher.doFinal(message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void encryptMessagesOnIoExecutor() throws Exception {
+        onIoExecutor(() -> keyManager.encrypt(PEER_ID, iv, message));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void encryptMessagesOnIoExecutorUncached() throws Exception {
+        onIoExecutor(() -> {
+            Cipher cipher = Cipher.getInstance(AES_MODE);
+            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+            return cipher.doFinal(message);
+        });
+    }
+
+    private interface Encrypt {
+        byte[] run() throws Exception;
+    }
+
+    private static void onIoExecutor(Encrypt encrypt) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            IoExecutor.execute(() -> {
+                try {
+                    encrypt.run();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+}
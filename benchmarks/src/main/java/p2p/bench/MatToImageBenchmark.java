@@ -0,0 +1,49 @@
+package p2p.bench;
+
+import javafx.scene.image.Image;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+import p2p.VideoUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * VideoUtils.matToImage (PNG encode + decode mỗi frame): đường hiển thị cũ của VideoSender / VideoReceiver,
+ * nay thay bằng FrameRenderer (FrameRendererBenchmark), giữ lại làm mốc so với baseline.
+ * OpenCV native nạp từ jar org.openpnp:opencv, JavaFX dùng pipeline phần mềm (không cần màn hình).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dprism.order=sw", "-Djava.awt.headless=true"})
+public class MatToImageBenchmark {
+
+    @Param({"320x240", "640x480"})
+    String resolution;
+
+    private Mat frame;
+
+    @Setup
+    public void setup() {
+        nu.pattern.OpenCV.loadLocally();
+
+        String[] wh = resolution.split("x");
+        frame = new Mat(Integer.parseInt(wh[1]), Integer.parseInt(wh[0]), CvType.CV_8UC3);
+        // nhiễu ngẫu nhiên = trường hợp xấu nhất cho PNG
+        Core.randu(frame, 0, 255);
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+    }
+
+    @Benchmark
+    public Image matToImage() {
+        return VideoUtils.matToImage(frame);
+    }
+}
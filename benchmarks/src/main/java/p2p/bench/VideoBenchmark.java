@@ -0,0 +1,67 @@
+package p2p.bench;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.VideoFrameAssembler;
+import p2p.VideoSender;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Đường gửi / nhận video không cần camera hay socket:
+ * - VideoSender.packetize: cắt 1 frame thành chunk UDP
+ * - VideoFrameAssembler: ghép lại đủ chunk của 1 frame, mỗi lần gọi 1 frameId mới
+ *   (frameId đã ghép xong nằm trong danh sách recent → accept() bỏ qua, không đo được gì)
+ * frameSize ≈ kích thước IV + JPEG 320x240 đã mã hoá
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoBenchmark {
+
+    @Param({"8192", "24576"})
+    int frameSize;
+
+    private byte[] framePayload;
+    private byte[][] framePackets;
+    private VideoFrameAssembler assembler;
+    private int frameId;
+    private int reassemblyFrameId;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        framePayload = new byte[frameSize];
+        random.nextBytes(framePayload);
+        framePackets = VideoSender.packetize(1, framePayload);
+
+        assembler = new VideoFrameAssembler();
+    }
+
+    @Benchmark
+    public byte[][] videoPacketize() {
+        frameId = (frameId + 1) & 0xFFFF;
+        return VideoSender.packetize(frameId, framePayload);
+    }
+
+    @Benchmark
+    public byte[] videoReassembly() {
+        // ghi đè frameId (u16 đầu header) tại chỗ, không cắt lại frame
+        reassemblyFrameId = (reassemblyFrameId + 1) & 0xFFFF;
+        for (byte[] packet : framePackets) {
+            packet[0] = (byte) (reassemblyFrameId >> 8);
+            packet[1] = (byte) reassemblyFrameId;
+        }
+
+        byte[] frame = null;
+        for (byte[] packet : framePackets) {
+            byte[] done = assembler.accept(packet, packet.length);
+            if (done != null) frame = done;
+        }
+        if (frame == null) throw new IllegalStateException("Frame " + reassemblyFrameId + " not reassembled");
+        return frame;
+    }
+}
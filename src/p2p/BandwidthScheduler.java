@@ -0,0 +1,287 @@
+package p2p;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BandwidthScheduler
+ * ------------------
+ * Token bucket dùng chung cho mọi luồng gửi file ra ngoài (chunk, lô delta, lô thư mục):
+ * - cap toàn cục + cap mỗi peer (byte/s, 0 = không giới hạn), lấy token trước khi gửi, thiếu thì chờ
+ * - chia có trọng số giữa các transfer đang chờ token: transfer có virtual time (byte đã gửi / weight)
+ *   nhỏ nhất được trước → 2 transfer weight 4 và 1 chia băng thông 4:1, transfer nghỉ không để dành phần
+ * - có cuộc gọi (CallManager) → cap toàn cục hạ xuống CALL_RATE, chừa uplink cho VideoSender / VoiceSender
+ * - không cap nào (mặc định, không gọi) → không khoá, chỉ đếm byte
+ * Token được âm tối đa 1 lần gửi (lấy trước trả sau) → lô lớn hơn bucket không bị kẹt.
+ *
+ * Tốc độ hiện tại từng transfer: flows() → Flow.bytesPerSecond().
+ *
+ * Cấu hình (byte/s): -Dp2p.bw.global=0 -Dp2p.bw.perPeer=0 -Dp2p.bw.duringCall=1000000
+ */
+public final class BandwidthScheduler {
+
+    public static final int WEIGHT_NORMAL = 4;
+    // resume tự động khi thấy lại peer, nhường transfer người dùng vừa bấm gửi
+    public static final int WEIGHT_BACKGROUND = 1;
+
+    static final long GLOBAL_RATE = Long.getLong("p2p.bw.global", 0);
+    static final long PEER_RATE = Long.getLong("p2p.bw.perPeer", 0);
+    static final long CALL_RATE = Long.getLong("p2p.bw.duringCall", 1_000_000);
+
+    // bucket chứa tối đa 50 ms token (ít nhất 1 chunk) → không dồn burst làm nghẽn call
+    private static final long BURST_NANOS = 50_000_000L;
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long RATE_SAMPLE_NANOS = 500_000_000L;
+
+    private static final BandwidthScheduler SHARED = new BandwidthScheduler(GLOBAL_RATE, PEER_RATE);
+
+    public static BandwidthScheduler shared() {
+        return SHARED;
+    }
+
+    /**
+     * 1 transfer đang gửi: lấy token qua acquire(), close() khi xong
+     */
+    public final class Flow implements AutoCloseable {
+        private final String peerId;
+        private final String name;
+        private final int weight;
+        private final Bucket peer;
+        private final AtomicLong sent = new AtomicLong();
+
+        // chỉ đọc / ghi trong lock của scheduler
+        private double virtualTime;
+        private int waiting;
+
+        // mẫu gần nhất cho bytesPerSecond()
+        private long sampleAt = System.nanoTime();
+        private long sampleBytes;
+        private double rate;
+
+        private Flow(String peerId, String name, int weight, Bucket peer) {
+            this.peerId = peerId;
+            this.name = name;
+            this.weight = Math.max(1, weight);
+            this.peer = peer;
+        }
+
+        public String peerId() { return peerId; }
+        public String name() { return name; }
+        public int weight() { return weight; }
+        public long bytesSent() { return sent.get(); }
+
+        /**
+         * Chờ tới lượt + đủ token rồi trừ `bytes` (gọi trước khi gửi, ngoài lock của kết nối)
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            BandwidthScheduler.this.acquire(this, bytes);
+        }
+
+        /**
+         * Tốc độ trung bình từ lần hỏi trước (cập nhật tối đa mỗi RATE_SAMPLE_NANOS)
+         */
+        public synchronized double bytesPerSecond() {
+            long now = System.nanoTime();
+            long elapsed = now - sampleAt;
+            if (elapsed >= RATE_SAMPLE_NANOS) {
+                long total = sent.get();
+                rate = (total - sampleBytes) * 1e9 / elapsed;
+                sampleAt = now;
+                sampleBytes = total;
+            }
+            return rate;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s → %s: %.1f MB/s (weight %d)", name, peerId, bytesPerSecond() / 1e6, weight);
+        }
+    }
+
+    private static final class Bucket {
+        long rate;
+        double tokens;
+        long refilledAt = System.nanoTime();
+        int flows;
+
+        Bucket(long rate) {
+            this.rate = rate;
+        }
+
+        double burst() {
+            return Math.max(rate * (double) BURST_NANOS / 1e9, MIN_BURST);
+        }
+
+        void refill(long now) {
+            if (rate > 0) tokens = Math.min(burst(), tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+        }
+
+        boolean ready() {
+            return rate <= 0 || tokens > 0;
+        }
+
+        void take(int bytes) {
+            if (rate > 0) tokens -= bytes;
+        }
+
+        long waitNanos() {
+            return rate <= 0 || tokens > 0 ? 0 : (long) (-tokens * 1e9 / rate) + 1;
+        }
+    }
+
+    private final Bucket global = new Bucket(0);
+    private final Map<String, Bucket> peers = new ConcurrentHashMap<>();
+    private final Map<String, Long> peerLimits = new ConcurrentHashMap<>();
+    private final List<Flow> flows = new ArrayList<>();
+
+    private long globalLimit;
+    private final long defaultPeerLimit;
+    private int activeCalls;
+    private double virtualTime;
+
+    // true khi có cap bất kỳ → acquire phải qua lock
+    private volatile boolean shaping;
+
+    BandwidthScheduler(long globalLimit, long defaultPeerLimit) {
+        this.globalLimit = globalLimit;
+        this.defaultPeerLimit = defaultPeerLimit;
+        synchronized (this) {
+            updateRates();
+        }
+    }
+
+    /* ================= FLOWS ================= */
+
+    public synchronized Flow open(String peerId, String name, int weight) {
+        Bucket peer = peers.computeIfAbsent(peerId, id -> new Bucket(peerLimit(id)));
+        peer.flows++;
+        Flow flow = new Flow(peerId, name, weight, peer);
+        flows.add(flow);
+        return flow;
+    }
+
+    private synchronized void release(Flow flow) {
+        if (!flows.remove(flow)) return;
+        if (--flow.peer.flows == 0) peers.remove(flow.peerId, flow.peer);
+        notifyAll();
+    }
+
+    /**
+     * Các transfer đang gửi (bản chụp)
+     */
+    public synchronized List<Flow> flows() {
+        return new ArrayList<>(flows);
+    }
+
+    /* ================= LIMITS ================= */
+
+    /**
+     * @param bytesPerSecond 0 = không giới hạn
+     */
+    public synchronized void setGlobalLimit(long bytesPerSecond) {
+        globalLimit = bytesPerSecond;
+        updateRates();
+    }
+
+    /**
+     * Cap riêng cho 1 peer (thay cho -Dp2p.bw.perPeer), 0 = không giới hạn
+     */
+    public synchronized void setPeerLimit(String peerId, long bytesPerSecond) {
+        peerLimits.put(peerId, bytesPerSecond);
+        Bucket bucket = peers.get(peerId);
+        if (bucket != null) bucket.rate = bytesPerSecond;
+        updateRates();
+    }
+
+    /**
+     * CallManager báo số cuộc gọi đang có, > 0 → nhường uplink cho media
+     */
+    public synchronized void setActiveCalls(int calls) {
+        if (calls == activeCalls) return;
+        activeCalls = calls;
+        updateRates();
+        System.out.println(calls > 0
+                ? "📶 Call active: file transfers limited to " + global.rate + " B/s"
+                : "📶 No call: file transfer limit " + (global.rate > 0 ? global.rate + " B/s" : "off"));
+    }
+
+    private long peerLimit(String peerId) {
+        return peerLimits.getOrDefault(peerId, defaultPeerLimit);
+    }
+
+    private void updateRates() {
+        long rate = globalLimit;
+        if (activeCalls > 0 && CALL_RATE > 0) rate = rate > 0 ? Math.min(rate, CALL_RATE) : CALL_RATE;
+        global.refill(System.nanoTime());
+        global.rate = rate;
+
+        boolean peerCaps = defaultPeerLimit > 0 || peerLimits.values().stream().anyMatch(r -> r > 0);
+        shaping = rate > 0 || peerCaps;
+        notifyAll();
+    }
+
+    /* ================= ACQUIRE ================= */
+
+    private void acquire(Flow flow, int bytes) throws InterruptedIOException {
+        if (!shaping) {
+            flow.sent.addAndGet(bytes);
+            return;
+        }
+
+        synchronized (this) {
+            // transfer vừa nghỉ (chờ ACK / đọc đĩa) không được bù phần đã bỏ lỡ
+            if (flow.waiting++ == 0) flow.virtualTime = Math.max(flow.virtualTime, virtualTime);
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    global.refill(now);
+
+                    if (!shaping || (global.ready() && next(now) == flow)) {
+                        global.take(bytes);
+                        flow.peer.take(bytes);
+                        virtualTime = flow.virtualTime;
+                        flow.virtualTime += bytes / (double) flow.weight;
+                        flow.sent.addAndGet(bytes);
+                        notifyAll();
+                        return;
+                    }
+
+                    // chờ token về, hoặc transfer tới lượt lấy xong rồi đánh thức
+                    long waitNanos = Math.max(global.waitNanos(), flow.peer.waitNanos());
+                    if (waitNanos == 0) waitNanos = BURST_NANOS;
+                    wait(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            } finally {
+                flow.waiting--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Transfer đang chờ được lấy token tiếp: virtual time nhỏ nhất trong các transfer mà peer còn token
+     */
+    private Flow next(long now) {
+        Flow best = null;
+        for (Flow f : flows) {
+            if (f.waiting == 0) continue;
+            f.peer.refill(now);
+            if (!f.peer.ready()) continue;
+            if (best == null || f.virtualTime < best.virtualTime) best = f;
+        }
+        return best;
+    }
+}
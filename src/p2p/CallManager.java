@@ -3,6 +3,7 @@ package p2p;
 import javafx.application.Platform;
 import javafx.scene.image.ImageView;
 import p2p.crypto.KeyManager;
+import p2p.crypto.MediaCrypto;
 
 import java.net.InetAddress;
 import java.util.HashMap;
@@ -38,11 +39,13 @@ public class CallManager {
                 localVideoPort, localAudioPort,
                 0, 0,
                 keyManager,
+                true,
                 localPreview,
                 null
         );
 
         activeCalls.put(callId, session);
+        BandwidthScheduler.shared().setActiveCalls(activeCalls.size());
 
         // 🔥 Luôn start receiver ngay cho local
         session.startReceiving();
@@ -52,6 +55,12 @@ public class CallManager {
     public void onIncomingCall(Peer fromPeer, String callId,
                                int remoteVideoPort, int remoteAudioPort,
                                ImageView remoteView) {
+        onIncomingCall(fromPeer, callId, remoteVideoPort, remoteAudioPort, remoteView, false);
+    }
+
+    public void onIncomingCall(Peer fromPeer, String callId,
+                               int remoteVideoPort, int remoteAudioPort,
+                               ImageView remoteView, boolean aead) {
         keyManager.getOrCreate(callId);
 
         CallSession session = new CallSession(
@@ -59,11 +68,14 @@ public class CallManager {
                 0, 0,
                 remoteVideoPort, remoteAudioPort,
                 keyManager,
+                false,
                 null,
                 remoteView
         );
+        session.crypto.setAead(aead);
 
         activeCalls.put(callId, session);
+        BandwidthScheduler.shared().setActiveCalls(activeCalls.size());
 
         // 🔥 Start receiver ngay
         session.startReceiving();
@@ -74,9 +86,22 @@ public class CallManager {
                                int remoteVideoPort, int remoteAudioPort,
                                int localVideoPort, int localAudioPort,
                                ImageView localPreview, ImageView remoteView) {
+        onCallAccepted(peer, callId, remoteVideoPort, remoteAudioPort,
+                localVideoPort, localAudioPort, localPreview, remoteView, false);
+    }
+
+    /**
+     * @param aead CALL_ACCEPT có FLAG_AEAD → media dùng AES-GCM + nonce đếm (xem MediaCrypto)
+     */
+    public void onCallAccepted(Peer peer, String callId,
+                               int remoteVideoPort, int remoteAudioPort,
+                               int localVideoPort, int localAudioPort,
+                               ImageView localPreview, ImageView remoteView,
+                               boolean aead) {
 
         CallSession session = activeCalls.get(callId);
         if (session != null) {
+            session.crypto.setAead(aead);
             session.setLocalPorts(localVideoPort, localAudioPort);
             session.setRemotePorts(remoteVideoPort, remoteAudioPort);
             session.setLocalPreview(localPreview);
@@ -86,10 +111,10 @@ public class CallManager {
             session.startReceiving();
 
             // 🔥 Start sending ngay
-            new Thread(() -> {
+            IoExecutor.execute(() -> {
                 try { Thread.sleep(50); } catch (InterruptedException ignored) {}
                 session.startSending();
-            }).start();
+            });
         }
     }
 
@@ -97,6 +122,8 @@ public class CallManager {
     // Kết thúc cuộc gọi
     public void endCall(String callId) {
         CallSession session = activeCalls.remove(callId);
+        // hết cuộc gọi → file transfer lấy lại băng thông
+        BandwidthScheduler.shared().setActiveCalls(activeCalls.size());
         if (session != null) session.stop();
     }
 
@@ -105,6 +132,7 @@ public class CallManager {
         private final Peer remotePeer;
         private final String callId;
         private final KeyManager keyManager;
+        private final MediaCrypto crypto;
 
         private int localVideoPort, localAudioPort;
         private int remoteVideoPort, remoteAudioPort;
@@ -121,6 +149,7 @@ public class CallManager {
                            int localVideoPort, int localAudioPort,
                            int remoteVideoPort, int remoteAudioPort,
                            KeyManager keyManager,
+                           boolean caller,
                            ImageView localPreview, ImageView remoteView) {
             this.remotePeer = remotePeer;
             this.callId = callId;
@@ -129,6 +158,7 @@ public class CallManager {
             this.remoteVideoPort = remoteVideoPort;
             this.remoteAudioPort = remoteAudioPort;
             this.keyManager = keyManager;
+            this.crypto = new MediaCrypto(keyManager, callId, caller);
             this.localPreview = localPreview;
             this.remoteView = remoteView;
         }
@@ -153,12 +183,12 @@ public class CallManager {
                         remoteView.setImage(null);
                         remoteView.setVisible(true);
                     });
-                    videoReceiver = new VideoReceiver(localVideoPort, keyManager, remoteView, callId);
+                    videoReceiver = new VideoReceiver(localVideoPort, crypto, remoteView);
                     videoReceiver.start();
                 }
 
                 if (voiceReceiver == null && localAudioPort > 0) {
-                    voiceReceiver = new VoiceReceiver(localAudioPort, keyManager, callId);
+                    voiceReceiver = new VoiceReceiver(localAudioPort, crypto);
                     voiceReceiver.start();
                 }
             } catch (Exception e) { e.printStackTrace(); }
@@ -169,12 +199,12 @@ public class CallManager {
                 InetAddress target = remotePeer.getAddress();
 
                 if (videoSender == null && remoteVideoPort > 0 && localPreview != null && videoEnabled) {
-                    videoSender = new VideoSender(target, remoteVideoPort, keyManager, callId, localPreview);
+                    videoSender = new VideoSender(target, remoteVideoPort, crypto, localPreview);
                     videoSender.start();
                 }
 
                 if (voiceSender == null && remoteAudioPort > 0) {
-                    voiceSender = new VoiceSender(target, remoteAudioPort, keyManager, callId);
+                    voiceSender = new VoiceSender(target, remoteAudioPort, crypto);
                     voiceSender.setEnabled(micEnabled);
                     voiceSender.start();
                 }
@@ -74,7 +74,9 @@ public class ChatWindow {
         appendOutgoing("YOU", text);
         txtInput.clear();
 
-        new Thread(() -> peerClient.sendMessage(peer, text)).start();
+        peerClient.sendMessageAsync(peer, text).whenComplete((r, e) -> {
+            if (e != null) Platform.runLater(() -> append("⚠️ Not delivered: " + text + " (" + e.getMessage() + ")"));
+        });
         appendToHistoryFileStatic(peer, "YOU", text);
         peer.setLastMessage(text);
     }
@@ -0,0 +1,200 @@
+package p2p;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionPool
+ * --------------
+ * Giữ 1 kết nối TCP sống lâu cho mỗi peer id, mọi lệnh dùng chung:
+ * - HELLO + chốt version (PROTO) chỉ làm lúc mở kết nối
+ * - health-check bằng PING/PONG nếu kết nối idle lâu
+ * - kết nối idle quá IDLE_CLOSE_MS sẽ bị đóng
+ * - peer bản cũ (không hiểu PROTO) → fallback mở socket riêng cho mỗi lệnh (kể cả các lệnh trong 1 Command),
+ *   sau LEGACY_RECHECK_MS thử PROTO lại (peer đã nâng cấp / lần EOF trước chỉ là mạng chập chờn)
+ * - kết nối tái sử dụng đã chết ngầm → chạy lại lệnh trên kết nối mới chỉ khi chưa frame nào của lệnh
+ *   ghi xong ra socket, hoặc lệnh gửi lại được (executeIdempotent)
+ * - lane > 0: kết nối phụ tới cùng peer (gửi file song song), lane 0 dùng cho mọi lệnh khác
+ */
+public class ConnectionPool {
+
+    public interface Command {
+        void run(PeerConnection conn) throws Exception;
+    }
+
+    private static final long HEALTH_CHECK_IDLE_MS = 15_000;
+    private static final long IDLE_CLOSE_MS = 60_000;
+    // -Dp2p.legacy.recheckMs=...
+    static final long LEGACY_RECHECK_MS = Long.getLong("p2p.legacy.recheckMs", 10 * 60_000);
+
+    private final String localUsername;
+    private final int localServicePort;
+
+    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    // peer id → thời điểm thử PROTO lại
+    private final Map<String, Long> legacyPeers = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ConnectionPool-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ConnectionPool(String localUsername, int localServicePort) {
+        this.localUsername = localUsername;
+        this.localServicePort = localServicePort;
+        reaper.scheduleWithFixedDelay(this::closeIdle, IDLE_CLOSE_MS, IDLE_CLOSE_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Chạy 1 lệnh trên kết nối của peer.
+     * Các lệnh tới cùng 1 peer chạy tuần tự (reply như SESSION_KEY_ACK không bị lẫn).
+     */
+    public void execute(Peer peer, Command command) throws Exception {
+        execute(peer, 0, command);
+    }
+
+    /**
+     * Như execute(peer, command) nhưng trên kết nối thứ `lane` tới peer,
+     * các lane khác nhau chạy song song
+     */
+    public void execute(Peer peer, int lane, Command command) throws Exception {
+        execute(peer, lane, false, command);
+    }
+
+    /**
+     * Như execute(peer, command) cho lệnh bên nhận xử lý 2 lần vẫn đúng (chunk file, lô thư mục có seq,
+     * xin mảnh swarm...): kết nối cũ chết giữa lệnh → chạy lại cả lệnh trên kết nối mới
+     */
+    public void executeIdempotent(Peer peer, Command command) throws Exception {
+        execute(peer, 0, true, command);
+    }
+
+    public void executeIdempotent(Peer peer, int lane, Command command) throws Exception {
+        execute(peer, lane, true, command);
+    }
+
+    private void execute(Peer peer, int lane, boolean idempotent, Command command) throws Exception {
+        String peerId = peer.getId();
+        if (isLegacy(peerId)) {
+            runOneShot(peer, command);
+            return;
+        }
+
+        String key = lane == 0 ? peerId : peerId + "#" + lane;
+        synchronized (lockFor(key)) {
+            PeerConnection conn = connections.get(key);
+            if (conn != null && !isHealthy(conn)) {
+                discard(key, conn);
+                conn = null;
+            }
+
+            boolean reused = conn != null;
+            if (conn == null) {
+                conn = open(peer, key);
+                if (conn == null) {
+                    runOneShot(peer, command);
+                    return;
+                }
+            }
+
+            long written = conn.framesWritten();
+            try {
+                command.run(conn);
+                conn.touch();
+            } catch (IOException e) {
+                discard(key, conn);
+                // frame đã ra socket có thể đã được xử lý → chạy lại sẽ lặp (tin nhắn 2 lần...)
+                if (!reused || (!idempotent && conn.framesWritten() != written)) throw e;
+
+                // kết nối cũ đã chết ngầm → thử lại 1 lần trên kết nối mới
+                conn = open(peer, key);
+                if (conn == null) {
+                    runOneShot(peer, command);
+                    return;
+                }
+                command.run(conn);
+                conn.touch();
+            }
+        }
+    }
+
+    public void shutdown() {
+        reaper.shutdownNow();
+        connections.values().forEach(PeerConnection::close);
+        connections.clear();
+    }
+
+    /* ================= INTERNAL ================= */
+
+    private boolean isLegacy(String peerId) {
+        Long recheckAt = legacyPeers.get(peerId);
+        if (recheckAt == null) return false;
+        if (System.currentTimeMillis() < recheckAt) return true;
+
+        legacyPeers.remove(peerId, recheckAt);
+        return false;
+    }
+
+    private Object lockFor(String key) {
+        return locks.computeIfAbsent(key, k -> new Object());
+    }
+
+    private PeerConnection open(Peer peer, String key) throws IOException {
+        PeerConnection conn = PeerConnection.connect(peer, localUsername, localServicePort);
+        try {
+            conn.negotiate();
+            connections.put(key, conn);
+            legacyPeers.remove(peer.getId());
+            return conn;
+        } catch (EOFException e) {
+            // peer bản cũ đóng socket khi gặp PROTO
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+
+        conn.close();
+        legacyPeers.put(peer.getId(), System.currentTimeMillis() + LEGACY_RECHECK_MS);
+        System.out.println("⚠️ Peer " + peer.getId() + " không hỗ trợ kết nối lâu dài, dùng 1 connection / lệnh");
+        return null;
+    }
+
+    private void runOneShot(Peer peer, Command command) throws Exception {
+        // mỗi lệnh trong command (SESSION_KEY rồi MSG...) tự mở socket riêng như client bản gốc
+        try (PeerConnection conn = PeerConnection.oneShot(peer, localUsername, localServicePort)) {
+            command.run(conn);
+            conn.out().flush();
+        }
+    }
+
+    private boolean isHealthy(PeerConnection conn) {
+        if (conn.isClosed()) return false;
+        if (conn.idleMillis() < HEALTH_CHECK_IDLE_MS) return true;
+        try {
+            return conn.ping();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void discard(String key, PeerConnection conn) {
+        connections.remove(key, conn);
+        conn.close();
+    }
+
+    private void closeIdle() {
+        for (Map.Entry<String, PeerConnection> e : connections.entrySet()) {
+            synchronized (lockFor(e.getKey())) {
+                PeerConnection conn = e.getValue();
+                if (conn.idleMillis() > IDLE_CLOSE_MS) discard(e.getKey(), conn);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package p2p;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DirectBufferPool
+ * ----------------
+ * Pool direct ByteBuffer cùng kích thước cho đường gửi / nhận file:
+ * - direct → FileChannel / SocketChannel ghi thẳng, JDK không copy qua buffer tạm
+ * - dùng lại → không cấp phát mỗi chunk, GC gần như không chạy khi gửi file nhiều GB
+ * Buffer lớn hơn kích thước pool (chunkSize lạ từ peer / manifest cũ) cấp phát riêng, không trả về pool.
+ */
+public final class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Buffer đã clear, limit = minCapacity
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > bufferSize) return ByteBuffer.allocateDirect(minCapacity);
+
+        ByteBuffer buf = free.poll();
+        if (buf != null) {
+            pooled.decrementAndGet();
+        } else {
+            buf = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buf.clear().limit(minCapacity);
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect() || buf.capacity() != bufferSize) return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buf);
+    }
+}
@@ -0,0 +1,383 @@
+package p2p;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DirectoryArchive
+ * ----------------
+ * Cả thư mục thành 1 luồng bản ghi liên tiếp (gửi trên 1 kết nối, xem DirectorySender):
+ * - bên gửi duyệt cây thư mục, ghép nhiều entry vào cùng 1 lô → file nhỏ không tốn 1 lượt FILE_BEGIN / ACK mỗi file
+ * - file nén được thì Deflater (BEST_SPEED) ngay lúc đọc; file đã nén (ảnh, video, zip...)
+ *   hoặc thử nén đoạn đầu không nhỏ đi đáng kể → gửi nguyên
+ * - bên nhận áp lô theo thứ tự, mỗi file ghi ra <tên>.part rồi đổi tên khi đủ
+ *
+ * Bản ghi (trong DIR_DATA, đã mã hoá), 1 file có thể trải qua nhiều lô:
+ *   DIR    u8=1 | path (UTF)
+ *   FILE   u8=2 | path (UTF) | size (u64) | deflate (u8)
+ *   DATA   u8=3 | len (u32) | bytes (nguyên / deflate không header)
+ *   CLOSE  u8=4                                       ← hết file đang mở
+ * path tương đối so với thư mục gốc, phân cách '/'.
+ *
+ * Cấu hình: -Dp2p.dir.compress=true
+ */
+public final class DirectoryArchive {
+
+    static final int REC_DIR = 1;
+    static final int REC_FILE = 2;
+    static final int REC_DATA = 3;
+    static final int REC_CLOSE = 4;
+
+    static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("p2p.dir.compress", "true"));
+
+    // đọc / thử nén theo khối này; nén đoạn đầu mà không bớt được 10% → gửi nguyên cả file
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final double MAX_RATIO = 0.9;
+    private static final int MIN_COMPRESS_SIZE = 512;
+
+    // định dạng đã nén sẵn, nén lại chỉ tốn CPU
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "apk",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "opus", "flac", "m4a",
+            "mp4", "mkv", "mov", "avi", "webm",
+            "pdf", "docx", "xlsx", "pptx");
+
+    private DirectoryArchive() {}
+
+    /**
+     * 1 entry của cây thư mục, file = null nếu là thư mục
+     */
+    static final class Entry {
+        final String path;
+        final File file;
+        final long size;
+
+        Entry(String path, File file, long size) {
+            this.path = path;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    static boolean compressible(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_TYPES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /* ================= WRITE (bên gửi) ================= */
+
+    /**
+     * Duyệt cây thư mục 1 lần lúc mở, next() sinh bản ghi theo từng lô (bộ nhớ cố định)
+     */
+    public static final class Writer implements Closeable {
+        final File root;
+        final List<Entry> entries = new ArrayList<>();
+        final long totalBytes;
+
+        private int nextEntry = 0;
+        private Entry current;
+        private InputStream in;
+        private long remaining;
+        private boolean deflate;
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final byte[] raw = new byte[BLOCK_SIZE];
+        private final byte[] packed = new byte[BLOCK_SIZE + BLOCK_SIZE / 8 + 64];
+
+        private int filesDone = 0;
+        private long dataBytes = 0;
+
+        public Writer(File root) throws IOException {
+            this.root = root;
+            Path base = root.toPath();
+            long[] total = new long[1];
+
+            Files.walkFileTree(base, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(base)) entries.add(new Entry(relative(base, dir), null, 0));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    // bỏ symlink / file đặc biệt
+                    if (attrs.isRegularFile()) {
+                        entries.add(new Entry(relative(base, file), file.toFile(), attrs.size()));
+                        total[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    System.err.println("⚠️ Skipping " + file + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            this.totalBytes = total[0];
+        }
+
+        private static String relative(Path base, Path path) {
+            return base.relativize(path).toString().replace(File.separatorChar, '/');
+        }
+
+        int fileCount() {
+            return (int) entries.stream().filter(e -> e.file != null).count();
+        }
+
+        List<File> files() {
+            return entries.stream().filter(e -> e.file != null).map(e -> e.file).toList();
+        }
+
+        /** Số file đã ghi trọn */
+        public int filesDone() { return filesDone; }
+
+        /** Byte dữ liệu đã ghi (sau nén) */
+        public long dataBytes() { return dataBytes; }
+
+        /**
+         * Ghi bản ghi vào out tới khi đủ ~budget byte
+         *
+         * @return false nếu đã hết entry (không ghi thêm gì)
+         */
+        public boolean next(DataOutputStream out, int budget) throws IOException {
+            if (current == null && nextEntry >= entries.size()) return false;
+
+            int start = out.size();
+            while (out.size() - start < budget) {
+                if (current == null) {
+                    if (nextEntry >= entries.size()) break;
+                    open(out, entries.get(nextEntry++));
+                } else if (!writeData(out)) {
+                    closeEntry(out);
+                }
+            }
+            return true;
+        }
+
+        private void open(DataOutputStream out, Entry entry) throws IOException {
+            if (entry.file == null) {
+                out.writeByte(REC_DIR);
+                out.writeUTF(entry.path);
+                return;
+            }
+
+            current = entry;
+            in = new FileInputStream(entry.file);
+            remaining = entry.size;
+
+            // khối đầu: vừa để thử nén vừa là dữ liệu thật, không đọc lại
+            int n = read((int) Math.min(remaining, raw.length));
+            deflate = false;
+            int packedLen = 0;
+            if (COMPRESS && n >= MIN_COMPRESS_SIZE && compressible(entry.file.getName())) {
+                deflater.reset();
+                deflater.setInput(raw, 0, n);
+                if (remaining == 0) deflater.finish();
+                // SYNC_FLUSH: đẩy hết phần đã nén ra để đo tỉ lệ, luồng deflate vẫn nối tiếp được
+                packedLen = deflater.deflate(packed, 0, packed.length, remaining == 0 ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                deflate = packedLen < n * MAX_RATIO;
+            }
+
+            out.writeByte(REC_FILE);
+            out.writeUTF(entry.path);
+            out.writeLong(entry.size);
+            out.writeByte(deflate ? 1 : 0);
+
+            if (deflate) {
+                writeRecord(out, packed, packedLen);
+            } else if (n > 0) {
+                writeRecord(out, raw, n);
+            }
+        }
+
+        /**
+         * @return false nếu file đang mở đã ghi hết
+         */
+        private boolean writeData(DataOutputStream out) throws IOException {
+            if (!deflate) {
+                if (remaining == 0) return false;
+                int n = read((int) Math.min(remaining, raw.length));
+                writeRecord(out, raw, n);
+                return remaining > 0;
+            }
+
+            if (deflater.needsInput() && remaining > 0) {
+                int n = read((int) Math.min(remaining, raw.length));
+                deflater.setInput(raw, 0, n);
+                if (remaining == 0) deflater.finish();
+            }
+            int n = deflater.deflate(packed);
+            if (n > 0) writeRecord(out, packed, n);
+            return !deflater.finished();
+        }
+
+        private int read(int len) throws IOException {
+            int n = in.readNBytes(raw, 0, len);
+            if (n != len) throw new EOFException(current.file.getName() + " changed while sending");
+            remaining -= n;
+            return n;
+        }
+
+        private void writeRecord(DataOutputStream out, byte[] data, int len) throws IOException {
+            out.writeByte(REC_DATA);
+            out.writeInt(len);
+            out.write(data, 0, len);
+            dataBytes += len;
+        }
+
+        private void closeEntry(DataOutputStream out) throws IOException {
+            out.writeByte(REC_CLOSE);
+            in.close();
+            in = null;
+            current = null;
+            filesDone++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            if (in != null) in.close();
+        }
+    }
+
+    /* ================= READ (bên nhận) ================= */
+
+    /**
+     * Áp từng lô bản ghi theo thứ tự vào thư mục gốc bên nhận, không cho path thoát ra ngoài root
+     */
+    public static final class Reader implements Closeable {
+        final Path root;
+
+        private Path target;
+        private Path part;
+        private FileChannel out;
+        private long size;
+        private long written;
+        private boolean inflate;
+
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] buf = new byte[BLOCK_SIZE];
+
+        private int files = 0;
+
+        public Reader(File root) {
+            this.root = root.toPath().toAbsolutePath().normalize();
+        }
+
+        public int files() {
+            return files;
+        }
+
+        public void apply(DataInputStream in) throws IOException {
+            while (in.available() > 0) {
+                int record = in.readUnsignedByte();
+                switch (record) {
+                    case REC_DIR -> Files.createDirectories(resolve(in.readUTF()));
+                    case REC_FILE -> open(in.readUTF(), in.readLong(), in.readUnsignedByte() != 0);
+                    case REC_DATA -> data(in);
+                    case REC_CLOSE -> closeEntry();
+                    default -> throw new ProtocolException("Unknown directory record " + record);
+                }
+            }
+        }
+
+        private Path resolve(String path) throws ProtocolException {
+            Path resolved;
+            try {
+                resolved = root.resolve(path.replace('/', File.separatorChar)).normalize();
+            } catch (InvalidPathException e) {
+                throw new ProtocolException("Invalid path in directory: " + path);
+            }
+            if (!resolved.startsWith(root) || resolved.equals(root)) {
+                throw new ProtocolException("Invalid path in directory: " + path);
+            }
+            return resolved;
+        }
+
+        private void open(String path, long size, boolean inflate) throws IOException {
+            if (out != null) throw new ProtocolException("FILE record before CLOSE of " + target);
+            if (size < 0) throw new ProtocolException("Invalid size " + size + " for " + path);
+
+            target = resolve(path);
+            Files.createDirectories(target.getParent());
+            part = target.resolveSibling(target.getFileName() + ".part");
+            out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.size = size;
+            this.written = 0;
+            this.inflate = inflate;
+            if (inflate) inflater.reset();
+        }
+
+        private void data(DataInputStream in) throws IOException {
+            int len = in.readInt();
+            if (out == null || len < 0 || len > in.available()) throw new ProtocolException("Invalid DATA record");
+
+            if (!inflate) {
+                while (len > 0) {
+                    int n = in.read(buf, 0, Math.min(len, buf.length));
+                    write(buf, n);
+                    len -= n;
+                }
+                return;
+            }
+
+            byte[] packed = new byte[len];
+            in.readFully(packed);
+            inflater.setInput(packed);
+            try {
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    int n = inflater.inflate(buf);
+                    if (n == 0 && inflater.needsDictionary()) throw new ProtocolException("Invalid deflate data");
+                    write(buf, n);
+                }
+            } catch (DataFormatException e) {
+                throw new ProtocolException("Invalid deflate data for " + target.getFileName() + ": " + e.getMessage());
+            }
+        }
+
+        private void write(byte[] data, int len) throws IOException {
+            if (written + len > size) throw new ProtocolException(target.getFileName() + " larger than announced");
+            ByteBuffer src = ByteBuffer.wrap(data, 0, len);
+            while (src.hasRemaining()) written += out.write(src, written);
+        }
+
+        private void closeEntry() throws IOException {
+            if (out == null) throw new ProtocolException("CLOSE without FILE");
+            if (written != size || (inflate && !inflater.finished())) {
+                throw new ProtocolException(target.getFileName() + ": got " + written + " of " + size + " bytes");
+            }
+
+            out.close();
+            out = null;
+            FileReceiver.move(part.toFile(), target.toFile());
+            files++;
+        }
+
+        /**
+         * Bỏ file đang ghi dở (transfer lỗi / bị thay)
+         */
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            if (out != null) {
+                out.close();
+                out = null;
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+}
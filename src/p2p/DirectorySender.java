@@ -0,0 +1,155 @@
+package p2p;
+
+import p2p.crypto.CryptoUtils;
+import p2p.crypto.KeyManager;
+import p2p.protocol.Frame;
+import p2p.protocol.Opcode;
+
+import javax.crypto.spec.IvParameterSpec;
+import java.io.*;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * DirectorySender
+ * ---------------
+ * Gửi cả thư mục trên kết nối chính tới peer, 1 lần bắt tay cho mọi file:
+ *
+ *   DIR_BEGIN  transferId | tên thư mục | số file (u32) | tổng byte (u64)   → DIR_ACK ok (u8)
+ *   DIR_DATA   transferId | seq (u32) | IV (16) | AES-CBC(bản ghi)        ← ~BATCH_SIZE byte / lô, không chờ reply
+ *   DIR_END    transferId | số lô (u32)                                   → DIR_ACK ok (u8)
+ *
+ * Bản ghi, nén: xem DirectoryArchive. seq đánh số lô → bên nhận bỏ lô gửi lại (ConnectionPool thử lại
+ * trên kết nối mới), thiếu lô → DIR_END báo lỗi, PeerClient gửi lại cả thư mục.
+ * Peer bản cũ (v1): PeerClient gửi từng file bằng sendFile như trước (mất cấu trúc thư mục).
+ * Băng thông: 1 Flow của BandwidthScheduler cho cả thư mục.
+ */
+public class DirectorySender implements Closeable {
+
+    static final int BATCH_SIZE = FileSender.CHUNK_SIZE;
+
+    /**
+     * 1 lô bản ghi đã mã hoá, gửi lại được nếu kết nối rớt
+     */
+    public static final class Batch {
+        final int seq;
+        final byte[] iv;
+        final byte[] data;
+
+        Batch(int seq, byte[] iv, byte[] data) {
+            this.seq = seq;
+            this.iv = iv;
+            this.data = data;
+        }
+    }
+
+    private final Peer peer;
+    private final File dir;
+    private final KeyManager keyManager;
+    private final String transferId = UUID.randomUUID().toString();
+    private final DirectoryArchive.Writer archive;
+    // 1 lô có thể vượt budget tối đa 1 khối đọc (bản ghi FILE kèm khối đầu)
+    private final ByteArrayOutputStream records = new ByteArrayOutputStream(2 * BATCH_SIZE);
+
+    private final BandwidthScheduler.Flow flow;
+
+    private int batches = 0;
+    private long startedAt;
+
+    private DirectorySender(Peer peer, File dir, KeyManager keyManager) throws IOException {
+        this.peer = peer;
+        this.dir = dir;
+        this.keyManager = keyManager;
+        this.archive = new DirectoryArchive.Writer(dir);
+        this.flow = BandwidthScheduler.shared().open(peer.getId(), dir.getName() + "/", BandwidthScheduler.WEIGHT_NORMAL);
+    }
+
+    public static DirectorySender open(Peer peer, File dir, KeyManager keyManager) throws IOException {
+        return new DirectorySender(peer, dir, keyManager);
+    }
+
+    /**
+     * File trong thư mục (gửi lẻ cho peer bản cũ)
+     */
+    public List<File> files() {
+        return archive.files();
+    }
+
+    public BandwidthScheduler.Flow flow() {
+        return flow;
+    }
+
+    /**
+     * DIR_BEGIN + chờ DIR_ACK
+     *
+     * @return false nếu peer chỉ hiểu v1 (không gửi gì)
+     */
+    public boolean begin(PeerConnection conn) throws Exception {
+        if (!conn.isFramed()) return false;
+
+        conn.send(Opcode.DIR_BEGIN, dos -> {
+            dos.writeUTF(transferId);
+            dos.writeUTF(dir.getName());
+            dos.writeInt(archive.fileCount());
+            dos.writeLong(archive.totalBytes);
+        });
+
+        readAck(conn.readReply());
+        startedAt = System.nanoTime();
+        System.out.println("📤 Sending folder " + dir.getName() + " (" + archive.fileCount() + " files, "
+                + archive.totalBytes + " bytes)");
+        return true;
+    }
+
+    /**
+     * Đọc / nén / mã hoá lô kế tiếp, null nếu đã hết thư mục
+     */
+    public Batch next() throws Exception {
+        records.reset();
+        if (!archive.next(new DataOutputStream(records), BATCH_SIZE) || records.size() == 0) return null;
+
+        IvParameterSpec spec = CryptoUtils.generateIv();
+        byte[] data = keyManager.encrypt(peer.getId(), spec, records.toByteArray());
+        return new Batch(batches++, spec.getIV(), data);
+    }
+
+    public void write(PeerConnection conn, Batch batch) throws Exception {
+        conn.send(Opcode.DIR_DATA, dos -> {
+            dos.writeUTF(transferId);
+            dos.writeInt(batch.seq);
+            dos.write(batch.iv);
+            dos.write(batch.data);
+        });
+    }
+
+    /**
+     * DIR_END + chờ bên nhận ghi xong
+     *
+     * @throws IOException nếu bên nhận thiếu lô / lỗi ghi (PeerClient gửi lại cả thư mục)
+     */
+    public void end(PeerConnection conn) throws Exception {
+        conn.send(Opcode.DIR_END, dos -> {
+            dos.writeUTF(transferId);
+            dos.writeInt(batches);
+        });
+
+        readAck(conn.readReply());
+
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        System.out.printf("📤 Folder sent: %s (%d files, %d → %d bytes, %.1f MB/s)%n",
+                dir.getName(), archive.filesDone(), archive.totalBytes, archive.dataBytes(),
+                archive.totalBytes / 1e6 / Math.max(seconds, 1e-9));
+    }
+
+    private void readAck(Frame reply) throws IOException {
+        if (reply.opcode() != Opcode.DIR_ACK) throw new ProtocolException("Expected DIR_ACK, got " + reply.opcode());
+        if (reply.body().readUnsignedByte() != 1) throw new IOException("Receiver did not get all of " + dir.getName());
+    }
+
+    @Override
+    public void close() throws IOException {
+        archive.close();
+        flow.close();
+    }
+}
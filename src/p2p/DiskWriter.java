@@ -0,0 +1,58 @@
+package p2p;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * DiskWriter
+ * ----------
+ * Thread riêng ghi file nhận xuống đĩa, dùng chung cho mọi transfer của 1 FileReceiver:
+ * - worker mạng giải mã chunk rồi xếp vào hàng đợi, không chờ write / force / lưu manifest
+ * - hàng đợi giới hạn QUEUE_SIZE việc: đĩa chậm hơn mạng → submit() chờ chỗ trống,
+ *   lệnh dồn lại trong PeerChannel rồi ngừng đọc socket (backpressure về TCP), RAM không tăng theo file
+ * - việc chạy tuần tự đúng thứ tự submit (lệnh delta phải áp theo thứ tự)
+ *
+ * Cấu hình: -Dp2p.file.writeQueue=64 (số chunk chờ ghi, 64 × 64 KiB = 4 MiB direct buffer)
+ */
+final class DiskWriter {
+
+    static final int QUEUE_SIZE = Integer.getInteger("p2p.file.writeQueue", 64);
+
+    private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    DiskWriter() {
+        Thread thread = new Thread(this::run, "DiskWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Xếp 1 việc ghi, chờ nếu hàng đợi đầy
+     */
+    void submit(Runnable task) throws InterruptedIOException {
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing disk write");
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Runnable task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+}
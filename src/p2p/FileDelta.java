@@ -0,0 +1,353 @@
+package p2p;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FileDelta
+ * ---------
+ * Gửi lại file đã có bản cũ bên nhận (kiểu rsync):
+ * - bên nhận chia file cũ (basis) thành block, gửi chữ ký: checksum cuộn (weak) + MD5 (strong)
+ * - bên gửi trượt cửa sổ blockSize qua file mới, khớp weak rồi strong → lệnh COPY block,
+ *   phần không khớp → DATA (byte thật)
+ * - bên nhận áp lệnh tuần tự, ghi ra .part
+ *
+ * Lệnh (trong FILE_DELTA, đã mã hoá):
+ *   COPY  u8=1 | blockIndex (u32)
+ *   DATA  u8=2 | len (u32) | bytes
+ */
+public final class FileDelta {
+
+    static final int OP_COPY = 1;
+    static final int OP_DATA = 2;
+
+    // tối đa ~64K block → chữ ký ≤ ~1.3 MB
+    private static final int MIN_BLOCK = 4 * 1024;
+    private static final int MAX_BLOCKS = 64 * 1024;
+    private static final int STRONG_SIZE = 16;
+    // Signature.write: blockSize | basisSize | count | (weak + strong) × count
+    public static final int MAX_SIGNATURE_SIZE = 16 + MAX_BLOCKS * (4 + STRONG_SIZE);
+
+    private FileDelta() {}
+
+    /* ================= SIGNATURE ================= */
+
+    public static final class Signature {
+        final int blockSize;
+        final long basisSize;
+        final int[] weak;
+        final byte[][] strong;
+
+        // weak → các block có weak đó (va chạm weak hiếm, strong phân xử)
+        private Map<Integer, int[]> index;
+
+        Signature(int blockSize, long basisSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.basisSize = basisSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        int blockCount() {
+            return weak.length;
+        }
+
+        int blockLength(int block) {
+            return (int) Math.min(blockSize, basisSize - (long) block * blockSize);
+        }
+
+        int[] candidates(int weakSum) {
+            if (index == null) {
+                index = new HashMap<>(weak.length * 2);
+                for (int i = 0; i < weak.length; i++) {
+                    int[] prev = index.get(weak[i]);
+                    int[] next = prev == null ? new int[1] : Arrays.copyOf(prev, prev.length + 1);
+                    next[next.length - 1] = i;
+                    index.put(weak[i], next);
+                }
+            }
+            return index.get(weakSum);
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(blockSize);
+            out.writeLong(basisSize);
+            out.writeInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.write(strong[i]);
+            }
+        }
+
+        public static Signature read(DataInputStream in) throws IOException {
+            int blockSize = in.readInt();
+            long basisSize = in.readLong();
+            int count = in.readInt();
+            // blockSize do signature() chọn theo basisSize → giá trị khác (vd. 1 << 30) làm tràn buffer của Matcher
+            if (basisSize < 0 || blockSize != blockSizeFor(basisSize) || count < 0 || count > MAX_BLOCKS
+                    || (basisSize + blockSize - 1) / blockSize != count) {
+                throw new IOException("Invalid delta signature");
+            }
+
+            int[] weak = new int[count];
+            byte[][] strong = new byte[count][STRONG_SIZE];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                in.readFully(strong[i]);
+            }
+            return new Signature(blockSize, basisSize, weak, strong);
+        }
+    }
+
+    static int blockSizeFor(long basisSize) {
+        int size = MIN_BLOCK;
+        while ((basisSize + size - 1) / size > MAX_BLOCKS) size <<= 1;
+        return size;
+    }
+
+    /**
+     * Chữ ký của file basis, đọc tuần tự 1 lượt
+     */
+    public static Signature signature(FileChannel basis, long basisSize) throws IOException {
+        int blockSize = blockSizeFor(basisSize);
+        int count = (int) ((basisSize + blockSize - 1) / blockSize);
+
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+        MessageDigest md5 = md5();
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+
+        for (int i = 0; i < count; i++) {
+            long offset = (long) i * blockSize;
+            block.clear().limit((int) Math.min(blockSize, basisSize - offset));
+            while (block.hasRemaining()) {
+                if (basis.read(block, offset + block.position()) < 0) throw new EOFException("Basis file shrank");
+            }
+
+            weak[i] = weakSum(block.array(), 0, block.limit());
+            md5.update(block.array(), 0, block.limit());
+            strong[i] = md5.digest();
+        }
+        return new Signature(blockSize, basisSize, weak, strong);
+    }
+
+    /* ================= CHECKSUM ================= */
+
+    // checksum cuộn của rsync: a = Σx, b = Σ(len - i)·x, cùng mod 2^16
+    static int weakSum(byte[] data, int off, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* ================= MATCH (bên gửi) ================= */
+
+    /**
+     * Trượt qua file mới, sinh lệnh COPY / DATA theo từng lô (bộ nhớ cố định)
+     */
+    public static final class Matcher {
+        private final Signature sig;
+        private final InputStream in;
+        private final MessageDigest md5 = md5();
+        private final int blockSize;
+        private final int maxLiteral;
+
+        private final byte[] buf;
+        private int len = 0;          // số byte hợp lệ trong buf
+        private int pos = 0;          // đầu cửa sổ
+        private int literalStart = 0; // phần chưa khớp chờ gửi DATA
+        private boolean eof = false;
+        private boolean done = false;
+
+        private boolean rolling = false;
+        private int a, b;
+
+        private long copiedBytes = 0;
+        private long literalBytes = 0;
+
+        public Matcher(Signature sig, InputStream in, int maxLiteral) {
+            this.sig = sig;
+            this.in = in;
+            this.blockSize = sig.blockSize;
+            this.maxLiteral = maxLiteral;
+            this.buf = new byte[Math.max(4 * blockSize, maxLiteral + 2 * blockSize)];
+        }
+
+        public long copiedBytes() { return copiedBytes; }
+        public long literalBytes() { return literalBytes; }
+
+        /**
+         * Ghi lệnh vào out tới khi đủ ~budget byte
+         *
+         * @return false nếu đã hết file (không ghi thêm gì)
+         */
+        public boolean next(DataOutputStream out, int budget) throws IOException {
+            if (done) return false;
+
+            int start = out.size();
+            while (out.size() - start < budget) {
+                if (len - pos < blockSize && !eof) {
+                    fill(out);
+                    continue;
+                }
+
+                if (len - pos < blockSize) {
+                    finish(out);
+                    break;
+                }
+
+                if (!rolling) {
+                    int w = weakSum(buf, pos, blockSize);
+                    a = w & 0xFFFF;
+                    b = w >>> 16;
+                    rolling = true;
+                }
+
+                int block = match(pos, blockSize, (a & 0xFFFF) | (b << 16));
+                if (block >= 0) {
+                    flushLiteral(out);
+                    copy(out, block);
+                    pos += blockSize;
+                    literalStart = pos;
+                    rolling = false;
+                    continue;
+                }
+
+                // cuộn 1 byte: bỏ buf[pos], thêm buf[pos + blockSize]
+                if (pos + blockSize < len) {
+                    int outByte = buf[pos] & 0xFF;
+                    int inByte = buf[pos + blockSize] & 0xFF;
+                    a = (a - outByte + inByte) & 0xFFFF;
+                    b = (b - blockSize * outByte + a) & 0xFFFF;
+                } else {
+                    rolling = false;
+                }
+                pos++;
+
+                if (pos - literalStart >= maxLiteral) flushLiteral(out);
+            }
+            return true;
+        }
+
+        private int match(int off, int length, int weakSum) {
+            int[] candidates = sig.candidates(weakSum);
+            if (candidates == null) return -1;
+
+            md5.update(buf, off, length);
+            byte[] strong = md5.digest();
+            for (int block : candidates) {
+                if (sig.blockLength(block) == length && MessageDigest.isEqual(strong, sig.strong[block])) return block;
+            }
+            return -1;
+        }
+
+        // dồn phần chưa xử lý về đầu buf rồi đọc thêm
+        private void fill(DataOutputStream out) throws IOException {
+            flushLiteral(out);
+            System.arraycopy(buf, pos, buf, 0, len - pos);
+            len -= pos;
+            pos = 0;
+            literalStart = 0;
+
+            while (len < buf.length) {
+                int n = in.read(buf, len, buf.length - len);
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                len += n;
+            }
+        }
+
+        // đuôi file ngắn hơn 1 block: thử khớp block cuối của basis
+        private void finish(DataOutputStream out) throws IOException {
+            int tail = len - pos;
+            int last = sig.blockCount() - 1;
+            if (tail > 0 && last >= 0 && sig.blockLength(last) == tail
+                    && weakSum(buf, pos, tail) == sig.weak[last] && match(pos, tail, sig.weak[last]) == last) {
+                flushLiteral(out);
+                copy(out, last);
+                pos = len;
+                literalStart = pos;
+            } else {
+                pos = len;
+                flushLiteral(out);
+            }
+            done = true;
+        }
+
+        private void copy(DataOutputStream out, int block) throws IOException {
+            out.writeByte(OP_COPY);
+            out.writeInt(block);
+            copiedBytes += sig.blockLength(block);
+        }
+
+        private void flushLiteral(DataOutputStream out) throws IOException {
+            int n = pos - literalStart;
+            if (n <= 0) return;
+            out.writeByte(OP_DATA);
+            out.writeInt(n);
+            out.write(buf, literalStart, n);
+            literalStart = pos;
+            literalBytes += n;
+        }
+    }
+
+    /* ================= APPLY (bên nhận) ================= */
+
+    /**
+     * Áp 1 lô lệnh vào target tại vị trí `offset`
+     *
+     * @return vị trí sau lô lệnh
+     */
+    public static long apply(DataInputStream ops, Signature sig, FileChannel basis, FileChannel target,
+                             long offset, long targetSize) throws IOException {
+        while (ops.available() > 0) {
+            int op = ops.readUnsignedByte();
+            if (op == OP_COPY) {
+                int block = ops.readInt();
+                if (block < 0 || block >= sig.blockCount()) throw new IOException("Invalid COPY block " + block);
+                int n = sig.blockLength(block);
+                if (offset + n > targetSize) throw new IOException("Delta exceeds file size");
+
+                // copy trong kernel (copy_file_range / sendfile) nếu OS hỗ trợ
+                long copied = 0;
+                while (copied < n) {
+                    long t = basis.transferTo((long) block * sig.blockSize + copied, n - copied, target.position(offset + copied));
+                    if (t <= 0) throw new EOFException("Basis file shrank");
+                    copied += t;
+                }
+                offset += n;
+            } else if (op == OP_DATA) {
+                int n = ops.readInt();
+                if (n < 0 || offset + n > targetSize) throw new IOException("Delta exceeds file size");
+                byte[] data = new byte[n];
+                ops.readFully(data);
+
+                ByteBuffer src = ByteBuffer.wrap(data);
+                while (src.hasRemaining()) offset += target.write(src, offset);
+            } else {
+                throw new IOException("Unknown delta op " + op);
+            }
+        }
+        return offset;
+    }
+}
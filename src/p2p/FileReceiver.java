@@ -1,75 +1,672 @@
 package p2p;
 
-import javafx.application.Platform;
-import p2p.crypto.KeyManager;
-
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import java.io.*;
-import java.net.Socket;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * FileReceiver
  * -------------
- * Nhận file qua TCP (AES-CBC)
+ * Nhận file dạng stream (v2): FILE_BEGIN → nhiều FILE_CHUNK → FILE_END.
+ * PeerHandler giải mã từng chunk rồi ghi thẳng vào file theo vị trí (index * chunkSize),
+ * bộ nhớ dùng chỉ cỡ 1 chunk / lệnh bất kể file lớn bao nhiêu.
+ *
+ * Dùng chung cho mọi kết nối của server: ConnectionPool mở lại kết nối giữa chừng
+ * thì chunk sau vẫn ghi vào đúng transfer (khoá theo peer id + transferId).
+ *
+ * Ghi đĩa: chunk đã giải mã xếp vào DiskWriter, thread riêng ghi / force / lưu manifest,
+ * worker mạng không chờ đĩa (trừ khi hàng đợi đầy). .part được cấp đủ kích thước ngay ở FILE_BEGIN
+ * (thiếu chỗ trống → báo lỗi luôn, không hỏng giữa chừng), nhận đủ thì đổi tên 1 bước (ATOMIC_MOVE).
+ * FILE_END / DIR_END cũng là 1 việc xếp sau cùng trên DiskWriter, kết quả trả qua Completion
+ * → PeerHandler gửi reply từ thread DiskWriter, không chờ hàng đợi ghi. Chữ ký delta của file cũ
+ * (đọc + MD5 cả file) cũng tính trên DiskWriter, FILE_BEGIN reply gửi từ đó.
+ *
+ * Resume: dữ liệu ghi vào <tên>.part, mỗi CHECKPOINT_CHUNKS chunk force xuống đĩa
+ * rồi lưu TransferManifest. FILE_BEGIN / FILE_END trả về số byte đã xác nhận,
+ * bên gửi tiếp tục từ đó (kể cả sau khi 1 trong 2 bên tắt app).
+ *
+ * Cấu hình force: -Dp2p.file.fsync=checkpoint (mặc định: trước mỗi lần lưu manifest và trước khi đổi tên)
+ * | end (chỉ trước khi đổi tên; mất điện giữa chừng thì manifest có thể đi trước dữ liệu)
+ * | none (để OS tự ghi).
+ *
+ * Toàn vẹn (FLAG_MERKLE): chunk kèm leaf hash, sai hash → không ghi, FILE_END trả danh sách
+ * chunk còn thiếu để bên gửi gửi lại đúng các chunk đó; root ở FILE_END khớp mới đổi tên .part.
+ *
+ * Thư mục (DIR_BEGIN / DIR_DATA / DIR_END, xem DirectoryArchive): lô bản ghi áp tuần tự trên DiskWriter
+ * vào <download>/<tên thư mục>; từng file không force riêng (hàng nghìn file nhỏ), chưa có resume.
+ *
+ * Delta: đã có file cùng tên trong thư mục download (gửi lại bản sửa) → FILE_ACK kèm chữ ký
+ * file cũ, bên gửi chỉ gửi phần khác (FILE_DELTA), phần trùng copy từ file cũ sang .part.
  */
-public class FileReceiver implements Runnable {
+public class FileReceiver {
+
+    // 64 chunk × 64 KiB = 4 MiB giữa 2 lần checkpoint
+    static final int CHECKPOINT_CHUNKS = Integer.getInteger("p2p.file.checkpointChunks", 64);
+
+    // plaintext của chunk đang giải mã / chờ DiskWriter ghi
+    static final DirectBufferPool BUFFERS = new DirectBufferPool(FileSender.BUFFER_SIZE, DiskWriter.QUEUE_SIZE + 16);
+
+    static final String FSYNC = System.getProperty("p2p.file.fsync", "checkpoint");
+    static final boolean FORCE_AT_CHECKPOINT = !FSYNC.equals("end") && !FSYNC.equals("none");
+    static final boolean FORCE_AT_END = !FSYNC.equals("none");
+
+    // FILE_ACK liệt kê tối đa chừng này chunk thiếu, nhiều hơn → bên gửi resume từ offset
+    static final int MAX_NACK = 4096;
 
-    private final Socket socket;
-    private final Peer peer;
-    private final KeyManager keyManager;
+    // file cũ nhỏ hơn → gửi lại cả file rẻ hơn tính chữ ký
+    static final long DELTA_MIN_SIZE = Long.getLong("p2p.file.deltaMinSize", 1024 * 1024);
 
-    public FileReceiver(Socket socket, Peer peer, KeyManager keyManager) {
-        this.socket = socket;
-        this.peer = peer;
-        this.keyManager = keyManager;
+    private final Map<String, Incoming> transfers = new ConcurrentHashMap<>();
+    private final Map<String, IncomingDirectory> directories = new ConcurrentHashMap<>();
+    private final DiskWriter writer = new DiskWriter();
+
+    /**
+     * Kết quả FILE_END / DIR_END / chữ ký delta, gọi trên thread DiskWriter
+     * (hoặc ngay trên thread gọi nếu không có transfer)
+     */
+    public interface Completion<T> {
+        /**
+         * @param result null nếu còn thiếu / lỗi ghi / transfer không tồn tại
+         */
+        void done(T result) throws Exception;
+    }
+
+    // -Dp2p.download.dir=... (load test ghi vào thư mục tạm)
+    static File downloadDir() {
+        String custom = System.getProperty("p2p.download.dir");
+        return custom != null ? new File(custom) : new File(System.getProperty("user.home"), "Downloads/p2p-chat");
     }
 
-    @Override
-    public void run() {
-        try (DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+    /**
+     * @param delta bên gửi hỗ trợ delta → chữ ký file cũ cùng tên (nếu có) tính sau bằng signature()
+     * @return số byte đầu file đã nhận chắc chắn (bên gửi bắt đầu lại từ đây)
+     */
+    public long begin(Peer peer, String transferId, String fileName, long size, int chunkSize, boolean delta) throws IOException {
+        if (size < 0 || chunkSize <= 0) throw new ProtocolException("Invalid FILE_BEGIN: size=" + size + " chunk=" + chunkSize);
 
-            String cmd = dis.readUTF();
-            if (!"FILE".equals(cmd)) {
-                System.err.println("Invalid command: " + cmd);
-                return;
-            }
+        String key = key(peer, transferId);
+        Incoming current = transfers.get(key);
+        if (current != null && current.size == size && current.chunkSize == chunkSize && !current.writes.failed()) {
+            // kết nối cũ rớt, bên gửi hỏi lại vị trí
+            return current.confirmed();
+        }
+        // transfer khác cùng id / lỗi ghi trước đó → mở lại từ manifest
+        if (current != null) {
+            transfers.remove(key, current);
+            current.close(writer);
+        }
+
+        File dir = downloadDir();
+        if (!dir.exists()) dir.mkdirs();
+
+        // chỉ lấy tên, không cho peer ghi ra ngoài thư mục download
+        File outFile = new File(dir, new File(fileName).getName());
+
+        TransferManifest manifest = TransferManifest.findIncoming(transferId, peer.getId(), size, chunkSize);
+        Incoming incoming;
+        if (manifest != null) {
+            incoming = new Incoming(writer, outFile, new File(manifest.path()), manifest, size, chunkSize, manifest.next());
+            System.out.println("📥 Resuming " + outFile.getName() + " at chunk " + manifest.next());
+        } else {
+            File part = new File(dir, outFile.getName() + ".part");
+            manifest = TransferManifest.incoming(transferId, peer.getId(), part, size, chunkSize);
+            incoming = new Incoming(writer, outFile, part, manifest, size, chunkSize, 0);
+            System.out.println("📥 Receiving " + outFile.getName() + " (" + size + " bytes)");
+
+            if (delta && outFile.isFile() && outFile.length() >= DELTA_MIN_SIZE) incoming.basisWanted = true;
+        }
+
+        transfers.put(key, incoming);
+        return incoming.confirmed();
+    }
 
-            String fileName = dis.readUTF();
+    /**
+     * Xếp 1 chunk đã giải mã cho DiskWriter, chunk trùng (gửi lại sau khi mở lại kết nối) ghi đè cùng vị trí.
+     * Nhận luôn quyền giữ `data`: trả về BUFFERS sau khi ghi xong / bỏ chunk.
+     *
+     * @param leaf leaf hash bên gửi kèm theo (FLAG_MERKLE), null nếu bên gửi bản cũ
+     * @return false nếu chunk sai hash (không ghi, FILE_END sẽ xin lại)
+     */
+    public boolean chunk(Peer peer, String transferId, int index, ByteBuffer data, byte[] leaf) throws IOException {
+        Incoming incoming = transfers.get(key(peer, transferId));
+        if (incoming == null) {
+            BUFFERS.release(data);
+            System.err.println("⚠️ FILE_CHUNK for unknown transfer " + transferId + " from " + peer.getId());
+            return false;
+        }
 
+        if (leaf != null && !MessageDigest.isEqual(leaf, MerkleTree.leaf(data))) {
+            BUFFERS.release(data);
+            System.err.println("⚠️ Chunk " + index + " of " + incoming.file.getName() + " failed verification");
+            return false;
+        }
+        incoming.write(index, data, leaf);
+        return true;
+    }
 
-            // ===== READ IV =====
-            int ivLen = dis.readInt();
-            byte[] ivBytes = new byte[ivLen];
-            dis.readFully(ivBytes);
+    /**
+     * Chữ ký file cũ để trả trong FILE_ACK, tính trên DiskWriter (đọc cả file cũ).
+     *
+     * @param done nhận chữ ký, null nếu không gửi delta được (không có file cũ / đã nhận 1 phần / lỗi đọc)
+     */
+    public void signature(Peer peer, String transferId, Completion<FileDelta.Signature> done) throws IOException {
+        Incoming incoming = transfers.get(key(peer, transferId));
+        if (incoming == null || !incoming.basisWanted) {
+            complete(done, null);
+            return;
+        }
 
-            // ===== READ DATA =====
-            int dataLen = dis.readInt();
-            byte[] encrypted = new byte[dataLen];
-            dis.readFully(encrypted);
+        writer.submit(() -> {
+            FileDelta.Signature signature = null;
+            try {
+                signature = incoming.deltaSignature();
+            } catch (IOException e) {
+                System.err.println("⚠️ Cannot read " + incoming.file.getName() + " for delta: " + e.getMessage());
+            }
+            complete(done, signature);
+        });
+    }
 
-            // ===== DECRYPT =====
-            Cipher cipher = keyManager.createDecryptCipher(
-                    peer.getId(),
-                    new IvParameterSpec(ivBytes)
-            );
-            byte[] plain = cipher.doFinal(encrypted);
+    /**
+     * Áp 1 lô lệnh FILE_DELTA bắt đầu tại `offset` của file mới.
+     * Lô đã áp (gửi lại sau khi mở lại kết nối) bỏ qua; lô nhảy cóc bỏ qua, FILE_END sẽ báo thiếu.
+     */
+    public void delta(Peer peer, String transferId, long offset, byte[] ops) throws IOException {
+        Incoming incoming = transfers.get(key(peer, transferId));
+        if (incoming == null) {
+            System.err.println("⚠️ FILE_DELTA for unknown transfer " + transferId + " from " + peer.getId());
+            return;
+        }
+        incoming.applyDelta(offset, ops);
+    }
 
-            // ===== WRITE FILE =====
-            File dir = new File(System.getProperty("user.home"), "Downloads/p2p-chat");
-            if (!dir.exists()) dir.mkdirs();
+    /**
+     * Xếp việc kết thúc transfer sau mọi chunk đã xếp (DiskWriter chạy tuần tự): kiểm tra đủ, force,
+     * đổi tên .part, xoá manifest đều chạy trên DiskWriter
+     *
+     * @param root root MerkleTree bên gửi, null nếu không có (bên gửi bản cũ / resume sau khi tắt app)
+     * @param done nhận file đã nhận đủ, null nếu còn thiếu chunk / lỗi ghi / transfer không tồn tại
+     */
+    public void end(Peer peer, String transferId, long size, byte[] root, Completion<File> done) throws IOException {
+        String key = key(peer, transferId);
+        Incoming incoming = transfers.get(key);
+        if (incoming == null || size != incoming.size) {
+            complete(done, null);
+            return;
+        }
 
-            File outFile = new File(dir, fileName);
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                fos.write(plain);
+        writer.submit(() -> {
+            File file = null;
+            try {
+                file = finish(key, incoming, root);
+            } catch (IOException e) {
+                // transfer đã bỏ → reply báo 0 byte xác nhận, bên gửi mở lại từ manifest (FILE_BEGIN)
+                System.err.println("❌ " + e.getMessage());
             }
+            complete(done, file);
+        });
+    }
+
+    // DiskWriter: các việc ghi của transfer đã chạy hết trước việc này
+    private File finish(String key, Incoming incoming, byte[] root) throws IOException {
+        IOException failure = incoming.writes.failure();
+        if (failure != null) {
+            transfers.remove(key, incoming);
+            incoming.closeFiles();
+            throw new IOException("Cannot write " + incoming.file.getName(), failure);
+        }
+
+        if (!incoming.complete()) {
+            incoming.checkpoint();
+            System.err.println("⚠️ " + incoming.file.getName() + " incomplete, waiting for resume");
+            return null;
+        }
+
+        // mỗi chunk đã khớp leaf; root sai nghĩa là bộ leaf lệch (vd. chunk nằm sai chỗ) → nhận lại từ đầu
+        if (root != null && incoming.tree.complete() && !MessageDigest.isEqual(root, incoming.tree.root())) {
+            System.err.println("⚠️ " + incoming.file.getName() + " failed Merkle root check, receiving again");
+            incoming.reset();
+            return null;
+        }
 
-            Platform.runLater(() ->
-                    System.out.println("Received file: " + outFile.getAbsolutePath())
-            );
+        transfers.remove(key, incoming);
+        if (FORCE_AT_END) incoming.force();
+        incoming.closeFiles();
+        move(incoming.part, incoming.file);
+        incoming.manifest.delete();
+        return incoming.file;
+    }
 
+    private static <T> void complete(Completion<T> done, T result) {
+        try {
+            done.done(result);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Đổi tên 1 bước: không ai thấy file ghi dở / thiếu đuôi; FS không hỗ trợ thì move thường
+     */
+    static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Chunk chưa nhận được (thiếu / sai hash), rỗng nếu quá MAX_NACK chunk → bên gửi resume từ offset
+     */
+    public int[] missing(Peer peer, String transferId) {
+        Incoming incoming = transfers.get(key(peer, transferId));
+        return incoming != null ? incoming.missing(MAX_NACK) : new int[0];
+    }
+
+    /**
+     * Số byte đã xác nhận của transfer, 0 nếu không biết (bên gửi gửi lại FILE_BEGIN)
+     */
+    public long confirmed(Peer peer, String transferId) {
+        Incoming incoming = transfers.get(key(peer, transferId));
+        return incoming != null ? incoming.confirmed() : 0;
+    }
+
+    /* ================= DIRECTORY ================= */
+
+    /**
+     * Bắt đầu nhận thư mục vào <download>/<name> (đã có thì ghi đè từng file trùng tên)
+     */
+    public void beginDirectory(Peer peer, String transferId, String name) throws IOException {
+        String dirName = new File(name).getName();
+        if (dirName.isEmpty() || dirName.equals(".") || dirName.equals("..")) {
+            throw new ProtocolException("Invalid directory name: " + name);
+        }
+
+        String key = key(peer, transferId);
+        IncomingDirectory current = directories.remove(key);
+        if (current != null) current.close(writer);
+
+        File root = new File(downloadDir(), dirName);
+        Files.createDirectories(root.toPath());
+        directories.put(key, new IncomingDirectory(writer, root));
+        System.out.println("📥 Receiving folder " + dirName);
+    }
+
+    /**
+     * Xếp 1 lô bản ghi (đã giải mã) cho DiskWriter; lô gửi lại (seq đã áp) bỏ qua, lô nhảy cóc → lỗi ở DIR_END
+     */
+    public void directoryData(Peer peer, String transferId, int seq, byte[] records) throws IOException {
+        IncomingDirectory incoming = directories.get(key(peer, transferId));
+        if (incoming == null) {
+            System.err.println("⚠️ DIR_DATA for unknown transfer " + transferId + " from " + peer.getId());
+            return;
+        }
+        incoming.apply(seq, records);
+    }
+
+    /**
+     * Như end(): kiểm tra + đóng thư mục chạy trên DiskWriter sau các lô đã xếp
+     *
+     * @param batches số lô bên gửi đã gửi
+     * @param done    nhận thư mục đã nhận đủ, null nếu thiếu lô / lỗi ghi / transfer không tồn tại
+     */
+    public void endDirectory(Peer peer, String transferId, int batches, Completion<File> done) throws IOException {
+        IncomingDirectory incoming = directories.remove(key(peer, transferId));
+        if (incoming == null) {
+            complete(done, null);
+            return;
+        }
+        writer.submit(() -> complete(done, incoming.finish(batches)));
+    }
+
+    private static String key(Peer peer, String transferId) {
+        return peer.getId() + "/" + transferId;
+    }
+
+    /* ================= TRANSFER ================= */
+
+    /**
+     * 1 việc ghi chạy trên DiskWriter
+     */
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    /**
+     * Xếp việc ghi của 1 transfer cho DiskWriter + giữ lỗi ghi đầu tiên (việc kết thúc xếp sau cùng đọc lỗi đó).
+     * Lock riêng → worker mạng không phải chờ lock của transfer (DiskWriter giữ lock đó trong lúc force).
+     */
+    private static final class PendingWrites {
+        private final DiskWriter writer;
+        private final String name;
+        private IOException failure;
+
+        PendingWrites(DiskWriter writer, String name) {
+            this.writer = writer;
+            this.name = name;
+        }
+
+        /**
+         * Xếp 1 việc cho DiskWriter, IOException ngay nếu việc trước đó đã lỗi
+         */
+        void submit(Write task) throws IOException {
+            synchronized (this) {
+                if (failure != null) throw new IOException("Cannot write " + name, failure);
+            }
+
+            writer.submit(() -> {
+                IOException error = null;
+                try {
+                    task.run();
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+                done(error);
+            });
+        }
+
+        private synchronized void done(IOException error) {
+            if (error != null && failure == null) {
+                failure = error;
+                System.err.println("❌ Cannot write " + name + ": " + error.getMessage());
+            }
+        }
+
+        synchronized boolean failed() {
+            return failure != null;
+        }
+
+        synchronized IOException failure() {
+            return failure;
+        }
+    }
+
+    private static class IncomingDirectory {
+        final DirectoryArchive.Reader archive;
+        final PendingWrites writes;
+        // chỉ DiskWriter đọc / ghi (finish() chạy trên DiskWriter)
+        int nextSeq = 0;
+
+        IncomingDirectory(DiskWriter writer, File root) {
+            this.archive = new DirectoryArchive.Reader(root);
+            this.writes = new PendingWrites(writer, root.getName());
+        }
+
+        void apply(int seq, byte[] records) throws IOException {
+            if (writes.failed()) return; // DIR_END sẽ báo lỗi
+            writes.submit(() -> {
+                if (seq < nextSeq) return;
+                if (seq > nextSeq) throw new ProtocolException("DIR_DATA gap: expected " + nextSeq + ", got " + seq);
+                archive.apply(new DataInputStream(new ByteArrayInputStream(records)));
+                nextSeq++;
+            });
+        }
+
+        // DiskWriter, sau các lô đã xếp
+        File finish(int batches) {
+            IOException failure = writes.failure();
+            try {
+                archive.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+            if (failure != null || nextSeq != batches) {
+                System.err.println("❌ Folder " + archive.root.getFileName() + " incomplete: "
+                        + (failure != null ? failure.getMessage() : nextSeq + "/" + batches + " batches"));
+                return null;
+            }
+            return archive.root.toFile();
+        }
+
+        /**
+         * Đóng sau các lô đã xếp, không chờ
+         */
+        void close(DiskWriter writer) throws IOException {
+            writer.submit(() -> {
+                try {
+                    archive.close();
+                } catch (IOException ignored) {}
+            });
+        }
+    }
+
+    private static class Incoming {
+        final File file;
+        final File part;
+        final TransferManifest manifest;
+        final long size;
+        final int chunkSize;
+        final long chunkCount;
+        // chỉ đánh dấu sau khi DiskWriter ghi xong → checkpoint / FILE_END không tính chunk còn trong hàng đợi
+        final BitSet received = new BitSet();
+        // leaf của chunk đã ghi trong lần chạy này (resume từ manifest thì thiếu phần đầu → bỏ qua root)
+        final MerkleTree tree;
+        final PendingWrites writes;
+        private final FileChannel channel;
+        private long checkpointed;
+
+        // delta: file cũ + chữ ký đã gửi, deltaOffset = số byte file mới đã dựng tuần tự
+        // basisWanted: có file cũ, chữ ký chưa tính (signature() tính trên DiskWriter)
+        volatile boolean basisWanted;
+        private FileChannel basis;
+        private FileDelta.Signature signature;
+        private long deltaOffset;
+
+        Incoming(DiskWriter writer, File file, File part, TransferManifest manifest, long size, int chunkSize, long resumeAt) throws IOException {
+            this.writes = new PendingWrites(writer, file.getName());
+            this.file = file;
+            this.part = part;
+            this.manifest = manifest;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (size + chunkSize - 1) / chunkSize;
+            if (chunkCount > Integer.MAX_VALUE) throw new ProtocolException("Too many chunks: " + chunkCount);
+
+            this.checkpointed = Math.min(resumeAt, chunkCount);
+            received.set(0, (int) checkpointed);
+            this.tree = new MerkleTree(chunkCount);
+
+            if (resumeAt > 0) {
+                this.channel = FileChannel.open(part.toPath(), StandardOpenOption.WRITE);
+            } else {
+                this.channel = FileChannel.open(part.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                checkSpace();
+                // cấp kích thước + lưu manifest đầu tiên trên DiskWriter, trước mọi chunk
+                writes.submit(() -> {
+                    preallocate();
+                    manifest.save();
+                });
+            }
+        }
+
+        /**
+         * Cấp đủ kích thước file ngay từ đầu: thiếu chỗ báo lỗi ở FILE_BEGIN, chunk (kể cả đến lệch thứ tự
+         * từ nhiều kết nối) ghi đè trong file có sẵn, không nới file / cập nhật metadata kích thước mỗi lần ghi.
+         * Java không có fallocate → ghi byte cuối (FS hỗ trợ sparse thì chưa cấp block thật).
+         */
+        private void preallocate() throws IOException {
+            if (size > 0) channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+
+        /**
+         * Thiếu chỗ trống → báo lỗi ngay ở FILE_BEGIN (chỉ hỏi FS, không ghi)
+         */
+        private void checkSpace() throws IOException {
+            if (size == 0) return;
+
+            long usable = part.getAbsoluteFile().getParentFile().getUsableSpace();
+            if (usable > 0 && usable < size) {
+                channel.close();
+                Files.deleteIfExists(part.toPath());
+                manifest.delete();
+                throw new IOException("Not enough disk space for " + file.getName()
+                        + " (" + size + " bytes, " + usable + " available)");
+            }
+        }
+
+        /**
+         * Kiểm tra rồi xếp chunk cho DiskWriter, trả `data` về BUFFERS sau khi ghi.
+         * Ghi theo vị trí → thứ tự giữa các chunk (nhiều kết nối gửi song song) không quan trọng.
+         */
+        void write(int index, ByteBuffer data, byte[] leaf) throws IOException {
+            long offset = (long) index * chunkSize;
+            long expected = Math.min(chunkSize, size - offset);
+            if (index < 0 || index >= chunkCount || data.remaining() != expected) {
+                BUFFERS.release(data);
+                throw new ProtocolException("Invalid chunk " + index + " (" + data.remaining() + " bytes) for " + file.getName());
+            }
+
+            try {
+                writes.submit(() -> {
+                    try {
+                        long position = offset;
+                        while (data.hasRemaining()) {
+                            position += channel.write(data, position);
+                        }
+                    } finally {
+                        BUFFERS.release(data);
+                    }
+
+                    synchronized (this) {
+                        received.set(index);
+                        if (leaf != null) tree.set(index, leaf);
+                        if (received.nextClearBit(0) - checkpointed >= CHECKPOINT_CHUNKS) checkpoint();
+                    }
+                });
+            } catch (IOException e) {
+                BUFFERS.release(data);
+                throw e;
+            }
+        }
+
+        synchronized int[] missing(int max) {
+            int count = (int) chunkCount - received.cardinality();
+            if (count > max) return new int[0];
+
+            int[] result = new int[count];
+            int i = 0;
+            for (int index = received.nextClearBit(0); index < chunkCount; index = received.nextClearBit(index + 1)) {
+                result[i++] = index;
+            }
+            return result;
+        }
+
+        /**
+         * Bỏ toàn bộ dữ liệu đã nhận (root không khớp), bên gửi resume từ 0
+         */
+        synchronized void reset() {
+            received.clear();
+            tree.clear();
+            checkpointed = 0;
+            deltaOffset = 0;
+            manifest.setNext(0);
+            manifest.save();
+        }
+
+        /**
+         * DiskWriter: mở file cũ + tính chữ ký lần đầu (ngoài lock → confirmed() / chunk không phải chờ)
+         */
+        FileDelta.Signature deltaSignature() throws IOException {
+            synchronized (this) {
+                if (deltaOffset != 0 || !received.isEmpty()) return null;
+                if (signature != null) return signature; // FILE_BEGIN gửi lại sau khi mở lại kết nối
+            }
+
+            FileChannel opened = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            FileDelta.Signature computed;
+            try {
+                computed = FileDelta.signature(opened, opened.size());
+            } catch (IOException e) {
+                opened.close();
+                throw e;
+            }
+
+            synchronized (this) {
+                basis = opened;
+                signature = computed;
+                return signature;
+            }
+        }
+
+        /**
+         * Lệnh delta áp trên DiskWriter (tuần tự, đúng thứ tự nhận) → chunk nào đã dựng xong trọn vẹn
+         * tính là đã nhận (checkpoint / resume như chunk)
+         */
+        void applyDelta(long offset, byte[] ops) throws IOException {
+            writes.submit(() -> {
+                synchronized (this) {
+                    if (signature == null) throw new ProtocolException("FILE_DELTA without signature for " + file.getName());
+                    if (offset != deltaOffset) {
+                        if (offset > deltaOffset) System.err.println("⚠️ FILE_DELTA gap at " + deltaOffset + " for " + file.getName());
+                        return;
+                    }
+
+                    deltaOffset = FileDelta.apply(new DataInputStream(new ByteArrayInputStream(ops)),
+                            signature, basis, channel, offset, size);
+
+                    long done = deltaOffset == size ? chunkCount : deltaOffset / chunkSize;
+                    received.set(0, (int) done);
+                    if (done - checkpointed >= CHECKPOINT_CHUNKS) checkpoint();
+                }
+            });
+        }
+
+        /**
+         * Force dữ liệu xuống đĩa trước (theo p2p.file.fsync), rồi mới ghi số chunk vào manifest
+         */
+        synchronized void checkpoint() throws IOException {
+            long contiguous = received.nextClearBit(0);
+            if (contiguous == checkpointed) return;
+
+            if (FORCE_AT_CHECKPOINT) channel.force(false);
+            checkpointed = contiguous;
+            manifest.setNext(contiguous);
+            manifest.save();
+        }
+
+        synchronized void force() throws IOException {
+            channel.force(false);
+        }
+
+        synchronized long confirmed() {
+            return Math.min(size, checkpointed * chunkSize);
+        }
+
+        synchronized boolean complete() {
+            return received.cardinality() == chunkCount;
+        }
+
+        /**
+         * Đóng file sau các việc ghi còn trong hàng đợi, không chờ
+         */
+        void close(DiskWriter writer) throws IOException {
+            writer.submit(() -> {
+                try {
+                    closeFiles();
+                } catch (IOException ignored) {}
+            });
+        }
+
+        // DiskWriter (hoặc khi không còn việc ghi nào)
+        synchronized void closeFiles() throws IOException {
+            channel.close();
+            if (basis != null) basis.close();
+        }
+    }
 }
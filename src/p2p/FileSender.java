@@ -2,61 +2,510 @@ package p2p;
 
 import p2p.crypto.CryptoUtils;
 import p2p.crypto.KeyManager;
+import p2p.protocol.Frame;
+import p2p.protocol.FrameCodec;
+import p2p.protocol.Opcode;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import java.io.*;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * FileSender
  * -----------
- * Gửi file qua TCP (AES-CBC)
+ * Gửi file qua TCP (AES-CBC), đọc / mã hoá / gửi từng chunk CHUNK_SIZE byte:
+ *
+ *   FILE_BEGIN  transferId | tên | size (u64) | chunkSize   → FILE_ACK offset (u64)
+ *   FILE_CHUNK  transferId | index | IV (16) | AES-CBC(chunk [| leaf])    ← IV mới cho mỗi chunk
+ *   FILE_END    transferId | size (u64) [| root]            → FILE_ACK offset (u64) [| n | n × index]
+ *
+ * FILE_ACK = số byte đầu file bên nhận đã ghi chắc chắn: FILE_BEGIN bắt đầu gửi từ đó,
+ * FILE_END chưa bằng size → còn thiếu, PeerClient gửi lại từ offset đó.
+ *
+ * Kiểm tra toàn vẹn (FLAG_MERKLE, cả 2 bên đều hỗ trợ): leaf hash (MerkleTree) tính lúc mã hoá chunk,
+ * đi trong phần mã hoá; bên nhận chỉ ghi chunk khớp hash. FILE_END kèm root, FILE_ACK trả lại
+ * danh sách chunk thiếu / hỏng → chỉ gửi lại đúng các chunk đó (tối đa REPAIR_ROUNDS vòng).
+ * transferId lưu trong TransferManifest → gửi lại cùng file (kể cả sau khi tắt app) là resume.
+ *
+ * Mỗi chunk là 1 lệnh riêng trên ConnectionPool → tin nhắn chat chen vào giữa được.
+ * Peer bản cũ (v1): 1 lệnh FILE chứa cả file như trước, giới hạn LEGACY_MAX_SIZE.
+ *
+ * Gửi song song: file chia thành range RANGE_CHUNKS chunk, mỗi lane (kết nối riêng
+ * tới peer) lấy range kế tiếp, các chunk của range mã hoá độc lập trên CRYPTO_POOL.
+ * Range nhỏ + lấy theo thứ tự → phần đầu liên tiếp (checkpoint resume) vẫn tăng đều.
+ *
+ * Đường dữ liệu: vùng file mmap (MAP_WINDOW) → Cipher → direct buffer từ BUFFERS
+ * → gathering write ra SocketChannel. Không copy qua mảng heap, không cấp phát mỗi chunk.
+ *
+ * Delta (FLAG_DELTA): bên nhận đã có file cùng tên → FILE_ACK kèm chữ ký file cũ,
+ * gửi FILE_DELTA (COPY block cũ / DATA byte mới, xem FileDelta) thay cho chunk, tuần tự trên lane 0:
+ *   FILE_DELTA  transferId | offset (u64) | IV (16) | AES-CBC(lệnh)
+ * Lỗi giữa chừng → lần thử sau resume bằng chunk từ phần bên nhận đã xác nhận.
+ *
+ * Băng thông: mỗi FileSender là 1 Flow của BandwidthScheduler, PeerClient lấy token trước mỗi lệnh gửi.
+ *
+ * Cấu hình: -Dp2p.file.chunkSize=65536 -Dp2p.file.streams=4 -Dp2p.file.parallelMinSize=16777216
  */
-public class FileSender {
-
-    public static void sendFile(
-            Peer peer,
-            File file,
-            KeyManager keyManager,
-            String myUsername,
-            int myServicePort
-    ) {
-        try (Socket socket = new Socket(peer.getAddress(), peer.getServicePort());
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-
-            // ===== HELLO =====
-            dos.writeUTF("HELLO");
-            dos.writeUTF(myUsername);      // 🔥 username của MÌNH
-            dos.writeInt(myServicePort);   // 🔥 port server của MÌNH
-
-            // ===== TYPE =====
-            dos.writeUTF("FILE");
-            dos.writeUTF(peer.getId());   // keyId
+public class FileSender implements Closeable {
+
+    static final int CHUNK_SIZE = Integer.getInteger("p2p.file.chunkSize", 64 * 1024);
+
+    // v1: độ dài ghi bằng int, cả file nằm trong heap 2 phía
+    static final long LEGACY_MAX_SIZE = 256L * 1024 * 1024;
+
+    // số kết nối song song cho 1 file, file nhỏ hơn PARALLEL_MIN_SIZE chỉ dùng kết nối chính
+    static final int STREAMS = Math.max(1, Integer.getInteger("p2p.file.streams", 4));
+    static final long PARALLEL_MIN_SIZE = Long.getLong("p2p.file.parallelMinSize", 16L * 1024 * 1024);
+    static final int RANGE_CHUNKS = 16;
+
+    // mmap theo cửa sổ lớn (tròn số chunk), không map từng chunk
+    static final long MAP_WINDOW = 64L * 1024 * 1024;
+    // giữ vài cửa sổ gần nhất (LRU): các lane lấy range liên tiếp nên chỉ ở 1-2 cửa sổ,
+    // cửa sổ đã đi qua bỏ tham chiếu để GC unmap thay vì giữ cả file tới close()
+    static final int MAX_MAPPED_WINDOWS = STREAMS + 1;
+
+    // đọc + mã hoá chunk, dùng chung mọi file đang gửi
+    private static final ForkJoinPool CRYPTO_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // chunk + leaf hash + padding CBC
+    public static final int BUFFER_SIZE = CHUNK_SIZE + MerkleTree.HASH_SIZE + 16;
+
+    // ciphertext của chunk đang chờ gửi: tối đa STREAMS lane × RANGE_CHUNKS chunk / file
+    static final DirectBufferPool BUFFERS = new DirectBufferPool(BUFFER_SIZE, 4 * STREAMS * RANGE_CHUNKS);
+
+    // tính chữ ký file cũ bên nhận có thể mất vài giây với file lớn
+    static final int SIGNATURE_TIMEOUT_MS = 120_000;
+
+    /**
+     * 1 lô lệnh FILE_DELTA đã mã hoá, offset = vị trí trong file mới nơi lô bắt đầu
+     */
+    public static final class DeltaBatch {
+        final long offset;
+        final byte[] iv;
+        final byte[] data;
+
+        DeltaBatch(long offset, byte[] iv, byte[] data) {
+            this.offset = offset;
+            this.iv = iv;
+            this.data = data;
+        }
+    }
+
+    /**
+     * 1 chunk đã mã hoá, sẵn sàng gửi (gửi lại được nếu kết nối rớt).
+     * Gửi xong phải release() để trả buffer về pool.
+     */
+    public static final class Chunk {
+        final int index;
+        final byte[] iv;
+        final ByteBuffer data;
+
+        Chunk(int index, byte[] iv, ByteBuffer data) {
+            this.index = index;
+            this.iv = iv;
+            this.data = data;
+        }
+
+        public void release() {
+            BUFFERS.release(data);
+        }
+    }
+
+    private final Peer peer;
+    private final File file;
+    private final KeyManager keyManager;
+    private final TransferManifest manifest;
+    private final String transferId;
+    private final int chunkSize;
+    private final long size;
+    private final long chunkCount;
+    private final FileChannel in;
+    private final long windowSize;
+    private final Map<Long, MappedByteBuffer> windows = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPED_WINDOWS;
+        }
+    };
+
+    // chunk tiếp theo chưa giao cho lane nào
+    private final AtomicLong cursor = new AtomicLong();
+    private volatile boolean cancelled = false;
+
+    // leaf hash các chunk đã mã hoá; chunk bên nhận báo thiếu / hỏng chờ gửi lại
+    private final MerkleTree tree;
+    private final Queue<Integer> repair = new ConcurrentLinkedQueue<>();
+    private volatile boolean merkle = false;
+
+    private boolean legacy = false;
+    private long startedAt;
+    private long startOffset;
+
+    // delta: khác null khi FILE_ACK của FILE_BEGIN có chữ ký file cũ
+    private FileDelta.Matcher matcher;
+    private InputStream deltaIn;
+
+    private final BandwidthScheduler.Flow flow;
+
+    private FileSender(Peer peer, File file, KeyManager keyManager, int weight) throws IOException {
+        this.peer = peer;
+        this.file = file;
+        this.keyManager = keyManager;
+
+        // cùng file, cùng peer, chưa sửa → dùng lại transferId cũ để bên nhận resume
+        TransferManifest existing = TransferManifest.findOutgoing(peer.getId(), file);
+        if (existing != null) {
+            this.manifest = existing;
+        } else {
+            this.manifest = TransferManifest.outgoing(UUID.randomUUID().toString(), peer.getId(), file, CHUNK_SIZE);
+            manifest.save();
+        }
+        this.transferId = manifest.transferId();
+        this.chunkSize = manifest.chunkSize();
+        this.size = manifest.size();
+        this.chunkCount = (size + chunkSize - 1) / chunkSize;
+        this.windowSize = Math.max(1, MAP_WINDOW / chunkSize) * chunkSize;
+        this.tree = new MerkleTree(chunkCount);
+        this.in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.flow = BandwidthScheduler.shared().open(peer.getId(), file.getName(), weight);
+    }
+
+    public static FileSender open(Peer peer, File file, KeyManager keyManager) throws IOException {
+        return open(peer, file, keyManager, BandwidthScheduler.WEIGHT_NORMAL);
+    }
+
+    /**
+     * @param weight phần băng thông so với transfer khác (BandwidthScheduler.WEIGHT_*)
+     */
+    public static FileSender open(Peer peer, File file, KeyManager keyManager, int weight) throws IOException {
+        return new FileSender(peer, file, keyManager, weight);
+    }
+
+    public BandwidthScheduler.Flow flow() {
+        return flow;
+    }
+
+    /**
+     * FILE_BEGIN + chờ FILE_ACK (vị trí resume), hoặc cả file bằng lệnh FILE nếu peer chỉ hiểu v1
+     */
+    public void begin(PeerConnection conn) throws Exception {
+        if (!conn.isFramed()) {
+            legacy = true;
+            sendLegacy(conn);
+            manifest.delete();
+            return;
+        }
+
+        conn.send(Opcode.FILE_BEGIN, FrameCodec.FLAG_DELTA | FrameCodec.FLAG_MERKLE, dos -> {
+            dos.writeUTF(transferId);
             dos.writeUTF(file.getName());
+            dos.writeLong(size);
+            dos.writeInt(chunkSize);
+        });
+
+        Frame reply = conn.readReply(SIGNATURE_TIMEOUT_MS);
+        DataInputStream body = reply.body();
+        long offset = readAck(reply.opcode(), body);
+        if (offset > 0) System.out.println("📤 Resuming " + file.getName() + " at " + offset + "/" + size);
+        seek(offset);
+        repair.clear();
+        merkle = reply.hasFlag(FrameCodec.FLAG_MERKLE);
+
+        closeDelta();
+        if (offset == 0 && body.available() > 0) openDelta(body);
+
+        startedAt = System.nanoTime();
+        startOffset = offset;
+    }
+
+    /**
+     * Số kết nối nên dùng cho phần còn lại của file (0 nếu đã gửi kiểu v1 / gửi delta)
+     */
+    public int streams() {
+        if (legacy) return 0;
+        if (!repair.isEmpty()) return 1;
+        if (matcher != null) return 0;
+        return size - startOffset >= PARALLEL_MIN_SIZE ? STREAMS : 1;
+    }
+
+    /**
+     * Lấy range kế tiếp, mã hoá các chunk song song trên CRYPTO_POOL (gọi từ thread của lane)
+     *
+     * @return chunk theo thứ tự index, null nếu đã hết file / bị huỷ
+     */
+    public List<Chunk> nextRange() throws Exception {
+        if (legacy || cancelled) return null;
+
+        List<Integer> indexes = new ArrayList<>(RANGE_CHUNKS);
+        Integer again;
+        while (indexes.size() < RANGE_CHUNKS && (again = repair.poll()) != null) indexes.add(again);
+
+        if (indexes.isEmpty()) {
+            long first = cursor.getAndAdd(RANGE_CHUNKS);
+            if (first >= chunkCount) return null;
+            long last = Math.min(chunkCount, first + RANGE_CHUNKS);
+            for (long i = first; i < last; i++) indexes.add((int) i);
+        }
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            tasks.add(CRYPTO_POOL.submit(() -> encrypt(index)));
+        }
+
+        List<Chunk> chunks = new ArrayList<>(tasks.size());
+        try {
+            for (ForkJoinTask<Chunk> task : tasks) chunks.add(task.get());
+        } catch (ExecutionException e) {
+            chunks.forEach(Chunk::release);
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
+        return chunks;
+    }
+
+    /**
+     * Bên nhận có file cũ → gửi bằng nextDelta() thay cho nextRange()
+     */
+    public boolean delta() {
+        return matcher != null;
+    }
+
+    private void openDelta(DataInputStream body) throws Exception {
+        byte[] iv = new byte[16];
+        body.readFully(iv);
+        byte[] encrypted = body.readAllBytes();
+
+        byte[] plain = keyManager.decrypt(peer.getId(), new IvParameterSpec(iv), encrypted);
+        FileDelta.Signature signature = FileDelta.Signature.read(new DataInputStream(new ByteArrayInputStream(plain)));
+
+        deltaIn = new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 20);
+        matcher = new FileDelta.Matcher(signature, deltaIn, chunkSize);
+    }
 
-            // ===== READ FILE =====
-            byte[] fileBytes = Files.readAllBytes(file.toPath());
+    /**
+     * Lô lệnh kế tiếp (~1 chunk), null nếu đã hết file
+     */
+    public DeltaBatch nextDelta() throws Exception {
+        if (matcher == null) return null;
 
-            // ===== ENCRYPT =====
-            IvParameterSpec iv = CryptoUtils.generateIv();
-            Cipher cipher = keyManager.createEncryptCipher(peer.getId(), iv);
-            byte[] encrypted = cipher.doFinal(fileBytes);
+        long offset = matcher.copiedBytes() + matcher.literalBytes();
+        ByteArrayOutputStream ops = new ByteArrayOutputStream(chunkSize + 1024);
+        if (!matcher.next(new DataOutputStream(ops), chunkSize) || ops.size() == 0) return null;
 
-            // ===== SEND =====
-            dos.writeInt(iv.getIV().length);
-            dos.write(iv.getIV());
+        IvParameterSpec spec = CryptoUtils.generateIv();
+        byte[] data = keyManager.encrypt(peer.getId(), spec, ops.toByteArray());
+        return new DeltaBatch(offset, spec.getIV(), data);
+    }
+
+    /**
+     * Gửi 1 lô delta; gọi lại được (bên nhận bỏ qua lô đã áp theo offset)
+     */
+    public void writeDelta(PeerConnection conn, DeltaBatch batch) throws Exception {
+        conn.send(Opcode.FILE_DELTA, dos -> {
+            dos.writeUTF(transferId);
+            dos.writeLong(batch.offset);
+            dos.write(batch.iv);
+            dos.write(batch.data);
+        });
+    }
+
+    private void closeDelta() throws IOException {
+        if (deltaIn != null) deltaIn.close();
+        deltaIn = null;
+        matcher = null;
+    }
+
+    /**
+     * 1 lane lỗi → các lane khác ngừng lấy range mới
+     */
+    public void cancel() {
+        cancelled = true;
+    }
 
-            dos.writeInt(encrypted.length);
-            dos.write(encrypted);
-            dos.flush();
+    private Chunk encrypt(int index) throws Exception {
+        long offset = (long) index * chunkSize;
+        int len = (int) Math.min(chunkSize, size - offset);
 
-            System.out.println("📤 File sent: " + file.getName());
+        // chunk không vắt qua 2 cửa sổ (windowSize tròn số chunk)
+        long windowStart = offset - offset % windowSize;
+        ByteBuffer plain = window(windowStart).slice((int) (offset - windowStart), len);
 
+        // leaf hash tính trên vùng mmap lúc mã hoá, không cần lượt đọc file thứ 2
+        byte[] leaf = merkle ? MerkleTree.leaf(plain) : null;
+        if (leaf != null) tree.set(index, leaf);
+
+        IvParameterSpec spec = CryptoUtils.generateIv();
+        Cipher cipher = keyManager.borrowCipher(peer.getId(), Cipher.ENCRYPT_MODE, spec);
+        ByteBuffer encrypted = BUFFERS.acquire(cipher.getOutputSize(len + (leaf != null ? leaf.length : 0)));
+        try {
+            if (leaf != null) {
+                cipher.update(plain, encrypted);
+                cipher.doFinal(ByteBuffer.wrap(leaf), encrypted);
+            } else {
+                cipher.doFinal(plain, encrypted);
+            }
         } catch (Exception e) {
-            e.printStackTrace();
+            BUFFERS.release(encrypted);
+            throw e;
+        } finally {
+            keyManager.returnCipher(peer.getId(), cipher);
+        }
+        return new Chunk(index, spec.getIV(), encrypted.flip());
+    }
+
+    private MappedByteBuffer window(long start) throws IOException {
+        MappedByteBuffer window;
+        synchronized (windows) {
+            window = windows.get(start);
+        }
+        if (window != null) return window;
+
+        // map ngoài lock; 2 lane cùng map 1 cửa sổ thì bản map sau bị bỏ, không sai dữ liệu
+        window = in.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+        synchronized (windows) {
+            MappedByteBuffer previous = windows.putIfAbsent(start, window);
+            return previous != null ? previous : window;
         }
     }
-}
 
+    /**
+     * Gửi 1 chunk; gọi lại được (ConnectionPool thử lại trên kết nối mới)
+     */
+    public void writeChunk(PeerConnection conn, Chunk chunk) throws Exception {
+        conn.send(Opcode.FILE_CHUNK, merkle ? FrameCodec.FLAG_MERKLE : 0, dos -> {
+            dos.writeUTF(transferId);
+            dos.writeInt(chunk.index);
+            dos.write(chunk.iv);
+        }, chunk.data);
+    }
+
+    /**
+     * FILE_END. Bên nhận báo đúng các chunk thiếu / hỏng → xếp vào hàng gửi lại, trả false
+     * (PeerClient gửi tiếp rồi gọi lại end); còn thiếu mà không có danh sách → IOException để resume từ FILE_ACK
+     *
+     * @return true nếu bên nhận đã nhận đủ
+     */
+    public boolean end(PeerConnection conn) throws Exception {
+        if (legacy) return true;
+
+        // root chỉ có khi đã hash mọi chunk trong lần chạy này (resume sau khi tắt app thì không)
+        byte[] root = merkle && tree.complete() ? tree.root() : null;
+        conn.send(Opcode.FILE_END, merkle ? FrameCodec.FLAG_MERKLE : 0, dos -> {
+            dos.writeUTF(transferId);
+            dos.writeLong(size);
+            if (merkle) {
+                dos.writeByte(root != null ? root.length : 0);
+                if (root != null) dos.write(root);
+            }
+        });
+
+        Frame reply = conn.readReply();
+        DataInputStream body = reply.body();
+        long offset = readAck(reply.opcode(), body);
+        if (offset < size) {
+            int missing = body.available() >= 4 ? body.readInt() : 0;
+            if (missing > 0) {
+                for (int i = 0; i < missing; i++) {
+                    int index = body.readInt();
+                    if (index < 0 || index >= chunkCount) throw new ProtocolException("Invalid chunk in FILE_ACK: " + index);
+                    repair.add(index);
+                }
+                System.err.println("⚠️ " + file.getName() + ": receiver asked again for " + missing + " chunk(s)");
+                cancelled = false;
+                return false;
+            }
+
+            seek(offset);
+            throw new IOException("Receiver missing data of " + file.getName() + " after " + offset + " bytes");
+        }
+
+        manifest.delete();
+
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        double mbps = (size - startOffset) / 1e6 / Math.max(seconds, 1e-9);
+        if (matcher != null) {
+            System.out.printf("📤 File sent: %s (delta: %d bytes copied, %d bytes sent, %.1f MB/s)%n",
+                    file.getName(), matcher.copiedBytes(), matcher.literalBytes(), mbps);
+            return true;
+        }
+        System.out.printf("📤 File sent: %s (%d chunks, %d stream(s), %.1f MB/s)%n",
+                file.getName(), chunkCount, streams(), mbps);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // mapping tự unmap khi GC thu hồi, chỉ bỏ tham chiếu
+        synchronized (windows) {
+            windows.clear();
+        }
+        in.close();
+        closeDelta();
+        flow.close();
+    }
+
+    private long readAck(int opcode, DataInputStream body) throws IOException {
+        if (opcode != Opcode.FILE_ACK) throw new ProtocolException("Expected FILE_ACK, got " + opcode);
+
+        long offset = body.readLong();
+        if (offset < 0 || offset > size || (offset % chunkSize != 0 && offset != size)) {
+            throw new ProtocolException("Invalid FILE_ACK offset " + offset);
+        }
+        return offset;
+    }
+
+    private void seek(long offset) {
+        cursor.set(offset / chunkSize);
+        cancelled = false;
+        manifest.setNext(offset / chunkSize);
+        manifest.save();
+    }
+
+    /* ================= V1 ================= */
+
+    private void sendLegacy(PeerConnection conn) throws Exception {
+        if (size > LEGACY_MAX_SIZE) {
+            // không phải lỗi mạng → PeerClient không thử lại
+            throw new IllegalArgumentException("File too large for legacy peer " + peer.getId() + ": " + size + " bytes");
+        }
+
+        // ===== READ FILE =====
+        byte[] fileBytes = Files.readAllBytes(file.toPath());
+
+        // ===== ENCRYPT =====
+        IvParameterSpec spec = CryptoUtils.generateIv();
+        byte[] data = keyManager.encrypt(peer.getId(), spec, fileBytes);
+
+        // ===== SEND =====
+        flow.acquire(data.length);
+        conn.send(Opcode.FILE, dos -> {
+            dos.writeUTF(peer.getId());   // keyId
+            dos.writeUTF(file.getName());
+
+            dos.writeInt(spec.getIV().length);
+            dos.write(spec.getIV());
+
+            dos.writeInt(data.length);
+            dos.write(data);
+        });
+
+        System.out.println("📤 File sent: " + file.getName());
+    }
+}
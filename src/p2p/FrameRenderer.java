@@ -0,0 +1,99 @@
+package p2p;
+
+import javafx.application.Platform;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * FrameRenderer
+ * -------------
+ * Vẽ Mat (BGR) lên 1 ImageView, thay cho VideoUtils.matToImage (PNG encode + decode mỗi frame):
+ * - 2 WritableImage dựng trên PixelBuffer (BGRA premultiplied, direct ByteBuffer) → double buffering
+ * - cvtColor BGR → BGRA ghi thẳng vào ByteBuffer của buffer sau (Mat bọc chính ByteBuffer đó),
+ *   FX thread chỉ đánh dấu dirty + đổi ảnh → không cấp phát gì mỗi frame
+ * - frame trước chưa lên màn hình (FX thread bận) → bỏ frame mới, không ghi đè buffer đang chờ hiển thị
+ * Đổi kích thước frame → tạo lại 2 buffer (hiếm).
+ *
+ * Gọi render() từ đúng 1 thread (thread video), clear() từ bất kỳ thread nào.
+ */
+public final class FrameRenderer {
+
+    private static final PixelFormat<ByteBuffer> FORMAT = PixelFormat.getByteBgraPreInstance();
+
+    private static final class Buffer {
+        final PixelBuffer<ByteBuffer> pixels;
+        final WritableImage image;
+        // Mat dùng chung bộ nhớ với pixels
+        final Mat mat;
+
+        Buffer(int width, int height) {
+            ByteBuffer data = ByteBuffer.allocateDirect(width * height * 4);
+            pixels = new PixelBuffer<>(width, height, data, FORMAT);
+            image = new WritableImage(pixels);
+            mat = new Mat(height, width, CvType.CV_8UC4, data);
+        }
+    }
+
+    private final ImageView view;
+    private final Buffer[] buffers = new Buffer[2];
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final Runnable show = this::show;
+
+    // buffer sẽ ghi frame kế tiếp, chỉ đổi trên FX thread khi pending = true
+    private volatile int back = 0;
+    private int width, height;
+
+    public FrameRenderer(ImageView view) {
+        this.view = view;
+    }
+
+    /**
+     * Chép frame vào buffer sau rồi hẹn FX thread hiển thị
+     *
+     * @return false nếu bỏ frame vì frame trước chưa hiển thị
+     */
+    public boolean render(Mat bgr) {
+        if (bgr.empty() || pending.get()) return false;
+
+        if (bgr.cols() != width || bgr.rows() != height) {
+            width = bgr.cols();
+            height = bgr.rows();
+            // buffer cũ có thể vẫn đang gắn vào ImageView → tạo mới, không ghi vào
+            buffers[0] = new Buffer(width, height);
+            buffers[1] = new Buffer(width, height);
+        }
+
+        toBgra(bgr, buffers[back].mat);
+        pending.set(true);
+        Platform.runLater(show);
+        return true;
+    }
+
+    /**
+     * BGR (hoặc gray) → BGRA ghi thẳng vào `bgra` (Mat bọc direct ByteBuffer cùng kích thước)
+     */
+    public static void toBgra(Mat bgr, Mat bgra) {
+        Imgproc.cvtColor(bgr, bgra, bgr.channels() == 1 ? Imgproc.COLOR_GRAY2BGRA : Imgproc.COLOR_BGR2BGRA);
+    }
+
+    // FX thread
+    private void show() {
+        Buffer buffer = buffers[back];
+        buffer.pixels.updateBuffer(pb -> null); // null = cả ảnh dirty
+        view.setImage(buffer.image);
+        back ^= 1;
+        pending.set(false);
+    }
+
+    public void clear() {
+        Platform.runLater(() -> view.setImage(null));
+    }
+}
@@ -0,0 +1,133 @@
+package p2p;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IoExecutor
+ * ----------
+ * Chạy các tác vụ blocking (gửi socket, gửi file, signalling call, PeerHandler):
+ * - JDK 21+: mỗi task 1 virtual thread (tạo gần như miễn phí)
+ * - JDK cũ hơn hoặc -Dp2p.virtualThreads=false: pool platform thread có giới hạn, hàng đợi có giới hạn
+ *   (đầy → RejectedExecutionException cho bên gọi xử lý)
+ * Task con mà task đang chạy sẽ chờ (lane gửi file) đi qua fork(): pool riêng, không chiếm slot của pool
+ * chính → task cha join() không thể làm kẹt pool.
+ * Đếm số task đang chạy / đang chờ qua inFlight().
+ */
+public final class IoExecutor {
+
+    // đủ lớn cho các PeerHandler blocking sống lâu + burst gửi tin
+    private static final int MAX_PLATFORM_THREADS = 256;
+    private static final int PLATFORM_QUEUE_CAPACITY = 4096;
+    private static final int MAX_FORK_THREADS = 64;
+
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static final ExecutorService EXECUTOR;
+    private static final ExecutorService FORKS;
+    private static final boolean VIRTUAL;
+
+    static {
+        ExecutorService virtual = Boolean.parseBoolean(System.getProperty("p2p.virtualThreads", "true"))
+                ? createVirtual()
+                : null;
+        VIRTUAL = virtual != null;
+        EXECUTOR = VIRTUAL ? virtual : createPlatform();
+        FORKS = VIRTUAL ? virtual : createForkPool();
+        System.out.println("🧵 IoExecutor: " + (VIRTUAL ? "virtual threads" : "platform pool (" + MAX_PLATFORM_THREADS + ")"));
+    }
+
+    private IoExecutor() {}
+
+    /**
+     * @throws RejectedExecutionException pool platform đã đầy hàng đợi
+     */
+    public static void execute(Runnable task) {
+        try {
+            submit(EXECUTOR, task);
+        } catch (RejectedExecutionException e) {
+            System.err.println("⚠️ IoExecutor full (" + inFlight() + " tasks), task rejected");
+            throw e;
+        }
+    }
+
+    /**
+     * Task con mà bên gọi (đang chạy trên IoExecutor) sẽ chờ.
+     * Pool fork hết thread → chạy luôn trên thread gọi (chậm hơn nhưng không deadlock).
+     */
+    public static void fork(Runnable task) {
+        submit(FORKS, task);
+    }
+
+    private static void submit(ExecutorService executor, Runnable task) {
+        IN_FLIGHT.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                } finally {
+                    IN_FLIGHT.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            IN_FLIGHT.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Số task đã submit mà chưa chạy xong
+     */
+    public static int inFlight() {
+        return IN_FLIGHT.get();
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /* ================= FACTORIES ================= */
+
+    // Project build với target 17 → gọi API JDK 21 qua reflection
+    private static ExecutorService createVirtual() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService createPlatform() {
+        AtomicInteger seq = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                MAX_PLATFORM_THREADS, MAX_PLATFORM_THREADS,
+                30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(PLATFORM_QUEUE_CAPACITY),
+                r -> {
+                    Thread t = new Thread(r, "IoExecutor-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ExecutorService createForkPool() {
+        AtomicInteger seq = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                0, MAX_FORK_THREADS,
+                30L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "IoExecutor-fork-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+    }
+}
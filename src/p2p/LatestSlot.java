@@ -0,0 +1,52 @@
+package p2p;
+
+/**
+ * LatestSlot
+ * ----------
+ * Hàng đợi 1 chỗ giữa 2 stage của pipeline video: giá trị mới luôn thay giá trị chưa lấy
+ * → stage sau chậm thì bỏ frame cũ, không dồn độ trễ. put() trả lại giá trị bị thay / bị từ chối
+ * để bên gọi tái dùng (Mat) hoặc bỏ.
+ */
+final class LatestSlot<T> {
+
+    private T value;
+    private boolean closed;
+    private long dropped;
+
+    /**
+     * @return giá trị bị thay (chưa ai lấy) hoặc chính `v` nếu slot đã đóng, null nếu không có
+     */
+    synchronized T put(T v) {
+        if (closed) return v;
+        T old = value;
+        if (old != null) dropped++;
+        value = v;
+        notifyAll();
+        return old;
+    }
+
+    /**
+     * Chờ giá trị mới nhất, null nếu slot đã đóng
+     */
+    synchronized T take() throws InterruptedException {
+        while (value == null && !closed) wait();
+        T v = value;
+        value = null;
+        return v;
+    }
+
+    /**
+     * Đóng slot, đánh thức take(); trả giá trị còn lại (nếu có)
+     */
+    synchronized T close() {
+        closed = true;
+        notifyAll();
+        T v = value;
+        value = null;
+        return v;
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+}
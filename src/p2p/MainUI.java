@@ -11,12 +11,14 @@ import javafx.scene.control.*;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseButton;
 import javafx.scene.layout.*;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import p2p.crypto.KeyManager;
 
 import javax.crypto.SecretKey;
 import java.io.File;
+import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -26,7 +28,7 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.*;
 
-public class MainUI extends Application implements PeerServer.ConnectionListener {
+public class MainUI extends Application implements PeerServer.ConnectionListener, PeerServer.ChannelListener {
 
     private KeyManager keyManager;
     private PeerClient peerClient;
@@ -60,6 +62,8 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
     private PeerDiscoverySender discoverySender;
     private PeerDiscoveryListener discoveryListener;
     private PeerServer peerServer;
+    private final FileReceiver fileReceiver = new FileReceiver();
+    private SwarmManager swarmManager;
 
     private final ObservableList<Peer> peerList = FXCollections.observableArrayList();
     private FilteredList<Peer> filteredPeers;
@@ -83,6 +87,7 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
         localIP = InetAddress.getLocalHost().getHostAddress();
         keyManager = new KeyManager();
         callManager = new CallManager(keyManager);
+        swarmManager = new SwarmManager(uiEvents);
         peerClient = null;
         OpenCVLoader.init();
 
@@ -131,6 +136,8 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
         txtInput = new TextField();
         Button btnSend = new Button("Send");
         Button btnFile = new Button("Send File");
+        Button btnFileAll = new Button("Send to All");
+        Button btnFolder = new Button("Send Folder");
 
         btnVideoCall = new Button("Video Call");
         btnEndVideo = new Button("End Video");
@@ -151,7 +158,7 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
         HBox videoBox = new HBox(8, videoViewRemote, videoViewLocal);
         videoBox.setPadding(new Insets(8));
 
-        HBox sendBox = new HBox(8, txtInput, btnSend, btnFile, btnVideoCall, btnEndVideo);
+        HBox sendBox = new HBox(8, txtInput, btnSend, btnFile, btnFileAll, btnFolder, btnVideoCall, btnEndVideo);
         VBox right = new VBox(8, txtChat, videoBox, sendBox);
         right.setPadding(new Insets(8));
 
@@ -181,6 +188,8 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
         btnSend.setOnAction(e -> sendMessage());
         txtInput.setOnAction(e -> sendMessage());
         btnFile.setOnAction(e -> sendFile(stage));
+        btnFileAll.setOnAction(e -> sendFileToAll(stage));
+        btnFolder.setOnAction(e -> sendFolder(stage));
         btnVideoCall.setOnAction(e -> startCall());
         btnEndVideo.setOnAction(e -> stopCall());
 
@@ -224,6 +233,7 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
 
             peerClient = new PeerClient(keyManager, localPeerId, servicePort, username);
             callManager.setPeerClient(peerClient);
+            swarmManager.setPeerClient(peerClient);
 
             // Listener UDP để nhận peer discovery
             discoveryListener = new PeerDiscoveryListener(servicePort, discoveryPort) {
@@ -248,14 +258,19 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
             discoverySender = new PeerDiscoverySender(username, servicePort, discoveryPort);
             discoverySender.start();
 
-            // Server TCP
-            peerServer = new PeerServer(servicePort, this);
+            // Server TCP: mặc định NIO (selector + worker pool), -Dp2p.server=blocking để dùng 1 thread / connection
+            if ("blocking".equalsIgnoreCase(System.getProperty("p2p.server"))) {
+                peerServer = new PeerServer(servicePort, this);
+            } else {
+                peerServer = new PeerServer(servicePort, this, Math.max(2, Runtime.getRuntime().availableProcessors()));
+            }
             peerServer.start();
 
             // UI refresher
             uiRefresher = Executors.newSingleThreadScheduledExecutor();
             uiRefresher.scheduleAtFixedRate(() -> {
                 List<Peer> snap = discoveryListener.snapshot();
+                snap.forEach(peerClient::resumeTransfers);
                 Platform.runLater(() -> {
                     peerList.setAll(snap);
                     tblPeers.refresh();
@@ -279,6 +294,7 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
         if (peerServer != null) peerServer.shutdown();
         if (uiRefresher != null) uiRefresher.shutdownNow();
         stopCall();
+        if (peerClient != null) peerClient.shutdown();
     }
 
     /* ================= CHAT ================= */
@@ -298,7 +314,10 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
 
         txtChat.appendText("[YOU -> " + p.getUsername() + "] " + msg + "\n");
         txtInput.clear();
-        new Thread(() -> peerClient.sendMessage(p, msg)).start();
+        peerClient.sendMessageAsync(p, msg).whenComplete((r, e) -> {
+            if (e != null) Platform.runLater(() ->
+                    txtChat.appendText("⚠️ Not delivered to " + p.getUsername() + ": " + msg + " (" + e.getMessage() + ")\n"));
+        });
 
         ChatWindow cw = openChats.get(p.getId());
         if (cw != null) cw.appendIncoming("YOU", msg);
@@ -307,23 +326,57 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
     private void sendFile(Stage stage) {
         Peer p = tblPeers.getSelectionModel().getSelectedItem();
         if (p == null) return;
+        if (peerClient == null) {
+            alert("Please start network first");
+            return;
+        }
         FileChooser fc = new FileChooser();
         File f = fc.showOpenDialog(stage);
         if (f == null) return;
 
-        new Thread(() ->
-                FileSender.sendFile(
-                        p,
-                        f,
-                        keyManager,
-                        username,      // 🔥 username của MainUI
-                        servicePort    // 🔥 servicePort của MainUI
-                )
-        ).start();
+        IoExecutor.execute(() -> peerClient.sendFile(p, f));
 
         txtChat.appendText("[YOU -> " + p.getUsername() + "] [file] " + f.getName() + "\n");
     }
 
+    private void sendFolder(Stage stage) {
+        Peer p = tblPeers.getSelectionModel().getSelectedItem();
+        if (p == null) return;
+        if (peerClient == null) {
+            alert("Please start network first");
+            return;
+        }
+        DirectoryChooser dc = new DirectoryChooser();
+        File dir = dc.showDialog(stage);
+        if (dir == null) return;
+
+        IoExecutor.execute(() -> peerClient.sendDirectory(p, dir));
+
+        txtChat.appendText("[YOU -> " + p.getUsername() + "] [folder] " + dir.getName() + "\n");
+    }
+
+    /**
+     * 1 file → mọi peer đang thấy, người nhận chia mảnh cho nhau (SwarmManager)
+     */
+    private void sendFileToAll(Stage stage) {
+        if (peerClient == null) {
+            alert("Please start network first");
+            return;
+        }
+        List<Peer> peers = discoveryListener.snapshot();
+        if (peers.isEmpty()) {
+            alert("No peers online");
+            return;
+        }
+        FileChooser fc = new FileChooser();
+        File f = fc.showOpenDialog(stage);
+        if (f == null) return;
+
+        IoExecutor.execute(() -> swarmManager.share(f, peers));
+
+        txtChat.appendText("[YOU -> " + peers.size() + " peers] [file] " + f.getName() + "\n");
+    }
+
     private void openChat(Peer p) {
         openChats.computeIfAbsent(p.getId(),
                         k -> new ChatWindow(p, keyManager, peerClient))
@@ -348,7 +401,7 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
         callManager.createOutgoingCall(peer, currentCallKey, localVideoPort, localAudioPort, videoViewLocal);
 
 // Gửi CALL_REQUEST
-        new Thread(() -> peerClient.sendCallRequest(peer, localVideoPort, localAudioPort, currentCallKey)).start();
+        IoExecutor.execute(() -> peerClient.sendCallRequest(peer, localVideoPort, localAudioPort, currentCallKey));
 
         inCall = true;
         btnVideoCall.setDisable(true);
@@ -358,8 +411,8 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
     }
 
     // Khi nhận CALL_REQUEST từ peer
-    public void onIncomingCall(Peer peer, String callKey, int callerVideoPort, int callerAudioPort) {
-        if (inCall) { peerClient.sendCallEnd(peer); return; }
+    public void onIncomingCall(Peer peer, String callKey, int callerVideoPort, int callerAudioPort, boolean aead) {
+        if (inCall) { IoExecutor.execute(() -> peerClient.sendCallEnd(peer)); return; }
 
         currentCallPeer = peer;
         currentCallKey = callKey;
@@ -367,7 +420,7 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
         localVideoPort = getFreePort();
         localAudioPort = getFreePort();
 
-        callManager.onIncomingCall(peer, callKey, callerVideoPort, callerAudioPort, videoViewRemote);
+        callManager.onIncomingCall(peer, callKey, callerVideoPort, callerAudioPort, videoViewRemote, aead);
 
 // Show dialog
         Platform.runLater(() -> {
@@ -385,16 +438,16 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
                     CallManager.CallSession session = callManager.getSession(callKey);
                     if (session != null) {
                         session.setLocalPorts(localVideoPort, localAudioPort);
-                        new Thread(session::startSending).start();
+                        IoExecutor.execute(session::startSending);
                     }
 
                     // Gửi CALL_ACCEPT tới caller
-                    new Thread(() -> peerClient.sendCallAccept(peer, localVideoPort, localAudioPort, callKey)).start();
+                    IoExecutor.execute(() -> peerClient.sendCallAccept(peer, localVideoPort, localAudioPort, callKey, aead));
 
                     inCall = true;
                     btnVideoCall.setDisable(true);
                     btnEndVideo.setDisable(false);
-                } else peerClient.sendCallEnd(peer);
+                } else IoExecutor.execute(() -> peerClient.sendCallEnd(peer));
             });
         });
 
@@ -404,7 +457,8 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
     public void onCallAccepted(Peer peer,
                                int calleeVideoPort,
                                int calleeAudioPort,
-                               String callKey) {
+                               String callKey,
+                               boolean aead) {
 
         if (currentCallPeer == null
                 || !peer.getId().equals(currentCallPeer.getId())
@@ -426,7 +480,8 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
                 localVideoPort,
                 localAudioPort,
                 videoViewLocal,
-                videoViewRemote
+                videoViewRemote,
+                aead
         );
 
         System.out.println("📞 Call started with " + peer.getUsername());
@@ -479,13 +534,60 @@ public class MainUI extends Application implements PeerServer.ConnectionListener
 
 
     /* ================= SERVER CALLBACK ================= */
+
+    // PeerHandler gọi trên thread mạng → chuyển sang FX thread
+    private final PeerEvents uiEvents = new PeerEvents() {
+        @Override
+        public void onMessage(Peer peer, String msg) {
+            ChatWindow.appendToHistoryFileStatic(peer, peer.getUsername(), msg);
+            Platform.runLater(() -> onIncomingMessage(peer, msg));
+        }
+
+        @Override
+        public void onCallRequest(Peer peer, String callKey, int videoPort, int audioPort, boolean aead) {
+            Platform.runLater(() -> onIncomingCall(peer, callKey, videoPort, audioPort, aead));
+        }
+
+        @Override
+        public void onCallAccepted(Peer peer, String callKey, int videoPort, int audioPort, boolean aead) {
+            Platform.runLater(() -> {
+                setCurrentCallKey(callKey);   // ✅ QUAN TRỌNG
+                MainUI.this.onCallAccepted(peer, videoPort, audioPort, callKey, aead);
+            });
+        }
+
+        @Override
+        public void onCallEnded(Peer peer) {
+            Platform.runLater(() -> stopCallFromRemote(peer));
+        }
+
+        @Override
+        public void onFileReceived(Peer peer, File file) {
+            Platform.runLater(() -> onIncomingMessage(peer, "[FILE] Đã nhận: " + file.getName()));
+        }
+    };
+
     public void onNewConnection(Socket socket) {
         // ⚠️ Peer sẽ được hoàn thiện sau HELLO
         Peer peer = new Peer(socket.getInetAddress(), 0, "", "");
 
-        new Thread(
-                new PeerHandler(socket, peer, keyManager, settingsStore, this, callManager)
-        ).start();
+        try {
+            IoExecutor.execute(
+                    new PeerHandler(socket, peer, keyManager, settingsStore, uiEvents, callManager, fileReceiver, swarmManager)
+            );
+        } catch (RejectedExecutionException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+
+
+    public PeerHandler onNewChannel(InetAddress remote) {
+        // ⚠️ Peer sẽ được hoàn thiện sau HELLO
+        Peer peer = new Peer(remote, 0, "", "");
+        return new PeerHandler(peer, keyManager, settingsStore, uiEvents, callManager, fileReceiver, swarmManager);
     }
 
 
@@ -0,0 +1,95 @@
+package p2p;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * MerkleTree
+ * ----------
+ * Cây hash SHA-256 trên các chunk của 1 transfer:
+ * - leaf = SHA-256(0x00 | chunk), tính ngay lúc mã hoá / nhận chunk (không đọc lại file)
+ * - nút trong = SHA-256(0x01 | trái | phải), nút lẻ đẩy thẳng lên tầng trên
+ * Leaf đi kèm từng FILE_CHUNK (trong phần mã hoá) → bên nhận kiểm tra chunk ngay khi tới, thứ tự bất kỳ;
+ * root đi kèm FILE_END → kiểm tra cả bộ chunk (đủ, đúng vị trí) trước khi đổi tên .part.
+ *
+ * Leaf lưu liền trong 1 mảng (32 byte / chunk): file 1 GB, chunk 64 KiB → 512 KB.
+ */
+public final class MerkleTree {
+
+    public static final int HASH_SIZE = 32;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int leafCount;
+    private final byte[] leaves;
+    private final BitSet present = new BitSet();
+
+    public MerkleTree(long leafCount) {
+        if (leafCount * HASH_SIZE > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Too many leaves: " + leafCount);
+        this.leafCount = (int) leafCount;
+        this.leaves = new byte[this.leafCount * HASH_SIZE];
+    }
+
+    /**
+     * Hash leaf của 1 chunk (không đổi position của data)
+     */
+    public static byte[] leaf(ByteBuffer data) {
+        MessageDigest sha = SHA256.get();
+        sha.update((byte) 0x00);
+        sha.update(data.duplicate());
+        return sha.digest();
+    }
+
+    public synchronized void set(int index, byte[] leaf) {
+        System.arraycopy(leaf, 0, leaves, index * HASH_SIZE, HASH_SIZE);
+        present.set(index);
+    }
+
+    public synchronized void clear() {
+        present.clear();
+    }
+
+    /**
+     * Đủ leaf của mọi chunk (transfer resume sau khi tắt app thì thiếu leaf phần đầu)
+     */
+    public synchronized boolean complete() {
+        return present.cardinality() == leafCount;
+    }
+
+    /**
+     * Root từ các leaf (chỉ hash 64 byte / nút, không đụng tới dữ liệu file)
+     */
+    public synchronized byte[] root() {
+        if (leafCount == 0) return SHA256.get().digest(new byte[]{0x00});
+
+        MessageDigest sha = SHA256.get();
+        byte[] level = leaves.clone();
+        int count = leafCount;
+        while (count > 1) {
+            int parents = (count + 1) / 2;
+            for (int i = 0; i < parents; i++) {
+                int left = 2 * i;
+                if (left + 1 < count) {
+                    sha.update((byte) 0x01);
+                    sha.update(level, left * HASH_SIZE, 2 * HASH_SIZE);
+                    System.arraycopy(sha.digest(), 0, level, i * HASH_SIZE, HASH_SIZE);
+                } else {
+                    System.arraycopy(level, left * HASH_SIZE, level, i * HASH_SIZE, HASH_SIZE);
+                }
+            }
+            count = parents;
+        }
+
+        byte[] root = new byte[HASH_SIZE];
+        System.arraycopy(level, 0, root, 0, HASH_SIZE);
+        return root;
+    }
+}
@@ -0,0 +1,145 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * OutboundQueue
+ * -------------
+ * Hàng đợi tin nhắn đi theo từng peer, gom nhiều tin thành 1 lần gửi:
+ * - flush sau BATCH_WINDOW_MS kể từ tin đầu tiên trong hàng đợi
+ * - hoặc ngay khi đủ MAX_BATCH tin
+ * Mỗi peer chỉ có 1 flush chạy tại 1 thời điểm → giữ đúng thứ tự tin.
+ * Mỗi tin có 1 future, hoàn tất khi lô chứa nó đã ghi ra socket (hoặc lỗi).
+ *
+ * Cấu hình: -Dp2p.batch.windowMs=2 -Dp2p.batch.maxMessages=32
+ */
+public class OutboundQueue {
+
+    public interface Flusher {
+        /**
+         * Gửi 1 lô tin (theo thứ tự) tới peer, chạy trên IoExecutor
+         */
+        void flush(Peer peer, List<String> batch) throws Exception;
+    }
+
+    static final long BATCH_WINDOW_MS = Long.getLong("p2p.batch.windowMs", 2);
+    static final int MAX_BATCH = Integer.getInteger("p2p.batch.maxMessages", 32);
+
+    private final Flusher flusher;
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "OutboundQueue-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public OutboundQueue(Flusher flusher) {
+        this.flusher = flusher;
+    }
+
+    public CompletableFuture<SendResult> enqueue(Peer peer, String message) {
+        Pending pending = new Pending(message);
+        outboxes.computeIfAbsent(peer.getId(), k -> new Outbox(peer)).add(pending);
+        return pending.result;
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        // tin chưa gửi → báo lỗi cho caller thay vì treo future
+        for (Outbox outbox : outboxes.values()) outbox.failQueued(new IOException("Client shut down"));
+    }
+
+    /* ================= PER PEER ================= */
+
+    private static class Pending {
+        final String message;
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<SendResult> result = new CompletableFuture<>();
+
+        Pending(String message) {
+            this.message = message;
+        }
+    }
+
+    private class Outbox {
+        private final Peer peer;
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        private boolean flushScheduled = false;
+        private boolean flushing = false;
+
+        Outbox(Peer peer) {
+            this.peer = peer;
+        }
+
+        synchronized void add(Pending pending) {
+            queue.add(pending);
+            if (flushing) return; // flush đang chạy sẽ lấy tiếp
+
+            if (queue.size() >= MAX_BATCH || BATCH_WINDOW_MS <= 0) {
+                startFlush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                timer.schedule(this::onWindowElapsed, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void onWindowElapsed() {
+            flushScheduled = false;
+            if (!flushing && !queue.isEmpty()) startFlush();
+        }
+
+        synchronized void failQueued(Exception cause) {
+            Pending p;
+            while ((p = queue.poll()) != null) p.result.completeExceptionally(cause);
+        }
+
+        // gọi khi đang giữ lock
+        private void startFlush() {
+            flushing = true;
+            try {
+                IoExecutor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // không để flushing kẹt ở true: tin trong hàng đợi báo lỗi cho bên gọi
+                flushing = false;
+                failQueued(e);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                List<Pending> batch;
+                synchronized (this) {
+                    if (queue.isEmpty()) {
+                        flushing = false;
+                        return;
+                    }
+                    batch = new ArrayList<>(Math.min(queue.size(), MAX_BATCH));
+                    while (!queue.isEmpty() && batch.size() < MAX_BATCH) batch.add(queue.poll());
+                }
+
+                List<String> messages = new ArrayList<>(batch.size());
+                for (Pending p : batch) messages.add(p.message);
+
+                try {
+                    flusher.flush(peer, messages);
+                } catch (Exception e) {
+                    for (Pending p : batch) p.result.completeExceptionally(e);
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                for (Pending p : batch) {
+                    int bytes = p.message.getBytes(StandardCharsets.UTF_8).length;
+                    p.result.complete(new SendResult(peer.getId(), bytes, now - p.enqueuedAt));
+                }
+            }
+        }
+    }
+}
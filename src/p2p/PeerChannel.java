@@ -0,0 +1,327 @@
+package p2p;
+
+import p2p.protocol.Frame;
+import p2p.protocol.FrameDecoder;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * PeerChannel
+ * -----------
+ * Trạng thái 1 kết nối trong chế độ NIO của PeerServer:
+ * - selector thread gom byte, decode lệnh khi đủ
+ *   (v1: PeerHandler.decodeNext, v2: FrameDecoder + PeerHandler.decodeFrame)
+ * - Action của 1 kết nối chạy tuần tự trên worker pool dùng chung
+ * - reply được xếp hàng, selector thread ghi ra channel
+ */
+class PeerChannel {
+
+    private static final int INITIAL_BUFFER = 8 * 1024;
+    // quá nhiều lệnh chưa xử lý → tạm ngừng đọc (backpressure về TCP)
+    private static final int MAX_PENDING_ACTIONS = 256;
+    // frame trước handshake (chưa nhận session key) tối đa chừng này, sau đó tới FrameCodec.MAX_PAYLOAD
+    private static final int PRE_HANDSHAKE_MAX_FRAME = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final PeerHandler handler;
+    private final Executor workers;
+    private final PeerServer server;
+    private SelectionKey key;
+
+    /* ===== Inbound (selector thread) ===== */
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER);
+    private int needed = 0; // số byte lệnh / frame đang dở cần (v1: chưa đủ thì chưa thử decode lại)
+    private final FrameDecoder frameDecoder = new FrameDecoder();
+    private long lastActivity = System.currentTimeMillis();
+
+    /* ===== Actions ===== */
+    private final ArrayDeque<PeerHandler.Action> pending = new ArrayDeque<>();
+    private boolean draining = false;
+    private volatile boolean readPaused = false;
+
+    /* ===== Outbound ===== */
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final DataOutputStream replies = new DataOutputStream(new ReplyStream());
+
+    private volatile boolean closed = false;
+
+    PeerChannel(SocketChannel channel, PeerHandler handler, Executor workers, PeerServer server) {
+        this.channel = channel;
+        this.handler = handler;
+        this.workers = workers;
+        this.server = server;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    long idleMillis() {
+        return System.currentTimeMillis() - lastActivity;
+    }
+
+    /**
+     * Đang ngừng đọc vì backpressure → im lặng không phải do peer, không tính idle
+     */
+    boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /* ================= SELECTOR THREAD ================= */
+
+    /**
+     * @return false nếu peer đã đóng kết nối
+     */
+    boolean onReadable() throws IOException {
+        if (!inbound.hasRemaining()) grow();
+
+        int n = channel.read(inbound);
+        if (n < 0) return false;
+        lastActivity = System.currentTimeMillis();
+
+        decodeAvailable();
+        return true;
+    }
+
+    void onWritable() throws IOException {
+        ByteBuffer buf;
+        while ((buf = outbound.peek()) != null) {
+            channel.write(buf);
+            if (buf.hasRemaining()) break; // socket buffer đầy, chờ OP_WRITE
+            outbound.poll();
+        }
+        updateInterest();
+    }
+
+    /**
+     * Gọi từ selector thread sau khi worker báo có reply / cần đọc tiếp
+     */
+    void onWakeup() throws IOException {
+        if (closed || !key.isValid()) return;
+        onWritable();
+    }
+
+    private void decodeAvailable() throws IOException {
+        while (inbound.position() > 0) {
+            if (handler.isFramed()) {
+                decodeFrames();
+                return;
+            }
+
+            PeerHandler.Action action = nextLegacyCommand();
+            if (action == null) return; // chờ thêm byte
+            enqueue(action);
+        }
+    }
+
+    /**
+     * v2: FrameDecoder đọc thẳng trên buffer, compact 1 lần cho cả loạt frame
+     */
+    private void decodeFrames() throws IOException {
+        inbound.flip();
+        Frame frame;
+        while ((frame = frameDecoder.decode(inbound)) != null) {
+            enqueue(handler.decodeFrame(frame, replies));
+        }
+        needed = frameDecoder.pendingFrameSize(inbound);
+        inbound.compact();
+
+        if (needed > PRE_HANDSHAKE_MAX_FRAME && !handler.isHandshakeDone()) {
+            throw new ProtocolException("Frame too large before handshake: " + needed);
+        }
+    }
+
+    /**
+     * v1: thử decode trên byte hiện có, thiếu thì chờ tới khi đủ `needed` byte
+     */
+    private PeerHandler.Action nextLegacyCommand() throws IOException {
+        if (inbound.position() < needed) return null;
+
+        BufferInput in = new BufferInput(inbound.array(), inbound.position());
+
+        PeerHandler.Action action;
+        try {
+            action = handler.decodeNext(new DataInputStream(in), replies);
+        } catch (EOFException e) {
+            needed = Math.max(in.needed(), inbound.position() + 1);
+            return null;
+        }
+
+        if (action == null) throw new IOException("Unknown command");
+
+        inbound.flip();
+        inbound.position(in.consumed());
+        inbound.compact();
+        needed = 0;
+        return action;
+    }
+
+    /**
+     * Buffer đầy: nới gấp đôi nhưng không quá `needed`
+     * → header khai báo lệnh lớn chỉ được cấp bộ nhớ theo số byte thực sự tới
+     */
+    private void grow() {
+        int capacity = inbound.capacity();
+        long limit = needed > capacity ? needed : Integer.MAX_VALUE - 8;
+        ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(capacity * 2L, limit));
+        inbound.flip();
+        bigger.put(inbound);
+        inbound = bigger;
+    }
+
+    private void enqueue(PeerHandler.Action action) {
+        synchronized (this) {
+            pending.add(action);
+            if (pending.size() >= MAX_PENDING_ACTIONS) readPaused = true;
+            if (draining) {
+                updateInterest();
+                return;
+            }
+            draining = true;
+        }
+        updateInterest();
+        submitDrain();
+    }
+
+    /**
+     * Hàng đợi worker đầy → ngừng đọc kết nối này, selector thử submit lại (PeerServer.retryStalled)
+     * thay vì chạy Action ngay trên selector thread
+     */
+    private void submitDrain() {
+        if (retryDrain()) return;
+        synchronized (this) {
+            readPaused = true;
+        }
+        updateInterest();
+        server.stalled(this);
+    }
+
+    /**
+     * @return false nếu worker pool vẫn từ chối
+     */
+    boolean retryDrain() {
+        if (closed) return true;
+        try {
+            workers.execute(this::drain);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void updateInterest() {
+        if (closed || !key.isValid()) return;
+        int ops = readPaused ? 0 : SelectionKey.OP_READ;
+        if (!outbound.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /* ================= WORKER ================= */
+
+    private void drain() {
+        while (true) {
+            PeerHandler.Action action;
+            boolean resume = false;
+            synchronized (this) {
+                action = pending.poll();
+                if (action == null) {
+                    draining = false;
+                    return;
+                }
+                if (readPaused && pending.size() < MAX_PENDING_ACTIONS / 2) {
+                    readPaused = false;
+                    resume = true;
+                }
+            }
+            if (resume) server.wakeup(this);
+            if (closed) continue;
+
+            try {
+                action.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+    }
+
+    /* ================= CLOSE ================= */
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    /* ================= STREAMS ================= */
+
+    /**
+     * Reply của Action: gom byte, flush() → xếp hàng và báo selector ghi
+     */
+    private class ReplyStream extends ByteArrayOutputStream {
+        @Override
+        public synchronized void flush() {
+            if (size() == 0 || closed) return;
+            outbound.add(ByteBuffer.wrap(toByteArray()));
+            reset();
+            server.wakeup(PeerChannel.this);
+        }
+    }
+
+    /**
+     * InputStream đọc trên buffer hiện có, ghi nhận số byte lệnh đang cần
+     * để không decode lại liên tục khi 1 lệnh lớn (FILE) đến từng phần.
+     */
+    private static class BufferInput extends InputStream {
+        private final byte[] data;
+        private final int limit;
+        private int pos = 0;
+        private int needed = 0;
+
+        BufferInput(byte[] data, int limit) {
+            this.data = data;
+            this.limit = limit;
+        }
+
+        int consumed() {
+            return pos;
+        }
+
+        int needed() {
+            return needed;
+        }
+
+        @Override
+        public int read() {
+            if (pos >= limit) {
+                needed = Math.max(needed, pos + 1);
+                return -1;
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (pos + len > limit) needed = Math.max(needed, pos + len);
+            if (pos >= limit) return -1;
+
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
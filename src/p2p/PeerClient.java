@@ -1,16 +1,29 @@
 package p2p;
 
+import p2p.crypto.CryptoUtils;
 import p2p.crypto.KeyManager;
+import p2p.protocol.Frame;
+import p2p.protocol.FrameCodec;
+import p2p.protocol.MessageBatch;
+import p2p.protocol.Opcode;
 
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.net.Socket;
+import java.io.IOException;
+import java.net.ProtocolException;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 public class PeerClient {
 
@@ -18,6 +31,29 @@ public class PeerClient {
     private final String localPeerId;
     private final int localServicePort;
     private final String localUsername;
+
+    // 1 kết nối sống lâu / peer, HELLO chỉ gửi khi mở kết nối
+    private final ConnectionPool pool;
+
+    // gom tin nhắn liên tiếp tới cùng peer thành 1 frame
+    private final OutboundQueue outbound;
+
+    // số tin tối đa đang chờ gửi / peer (-Dp2p.send.window=256)
+    static final int SEND_WINDOW = Integer.getInteger("p2p.send.window", 256);
+    private final Map<String, Semaphore> sendWindows = new ConcurrentHashMap<>();
+
+    // gửi file lỗi mạng → thử lại (resume) tối đa FILE_RETRIES lần, chờ 1s, 2s, 4s...
+    static final int FILE_RETRIES = 5;
+    static final long FILE_RETRY_DELAY_MS = 1000;
+    // số vòng gửi lại chunk hỏng trong 1 lần gửi (trước khi chuyển sang resume)
+    static final int REPAIR_ROUNDS = 3;
+
+    // file gửi dở từ lần chạy trước, theo peer id (xem resumeTransfers)
+    private final Map<String, List<TransferManifest>> pendingTransfers = new ConcurrentHashMap<>();
+
+    // Key của peer chưa gửi thành công (gửi lại ở lệnh sau nếu lần trước lỗi)
+    private final Set<String> undeliveredKeys = ConcurrentHashMap.newKeySet();
+
     private String currentCallId;
     public String getCurrentCallId() {
         return currentCallId;
@@ -34,62 +70,112 @@ public class PeerClient {
         this.localPeerId = localPeerId;
         this.localServicePort = localServicePort;
         this.localUsername = localUsername;
+        this.pool = new ConnectionPool(localUsername, localServicePort);
+        this.outbound = new OutboundQueue(this::sendBatch);
+
+        for (TransferManifest m : TransferManifest.listOutgoing()) {
+            pendingTransfers.computeIfAbsent(m.peerId(), k -> new ArrayList<>()).add(m);
+        }
     }
-    private void sendHello(DataOutputStream dos) throws Exception {
-        dos.writeUTF("HELLO");
-        dos.writeUTF(localUsername);   // ✅ ĐÚNG
-        dos.writeInt(localServicePort);
-        dos.flush();
+
+    public void shutdown() {
+        outbound.shutdown();
+        pool.shutdown();
     }
 
 
     /* ================= MESSAGE ================= */
 
+    /**
+     * Giữ cho code cũ: cửa sổ của peer đầy → chờ tới khi có chỗ (không bỏ tin),
+     * không chờ gửi xong, lỗi gửi chỉ log
+     */
     public void sendMessage(Peer peer, String message) {
+        Semaphore window = windowFor(peer);
         try {
-            // 1️⃣ ĐẢM BẢO ĐÃ CÓ SESSION KEY
-            if (!keyManager.hasKey(peer.getId())) {
-                SecretKey key = keyManager.getOrCreate(peer.getId());
-
-                try (Socket s = new Socket(peer.getAddress(), peer.getServicePort());
-                     DataOutputStream dos = new DataOutputStream(s.getOutputStream())) {
-
-                    sendHello(dos);
-                    dos.writeUTF("SESSION_KEY");
-                    dos.writeUTF(peer.getId());
-                    dos.write(key.getEncoded());
-                    dos.flush();
-                }
-            }
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("❌ Send to " + peer.getId() + " interrupted, not sent: " + message);
+            return;
+        }
 
-            // 2️⃣ GỬI MESSAGE
-            try (Socket socket = new Socket(peer.getAddress(), peer.getServicePort());
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+        enqueue(peer, message, window).whenComplete((r, e) -> {
+            if (e != null) System.err.println("❌ Send to " + peer.getId() + " failed: " + e);
+        });
+    }
 
-                sendHello(dos);
-                dos.writeUTF("MSG");
+    /**
+     * Xếp tin vào hàng đợi của peer, OutboundQueue gom thành lô rồi gọi sendBatch.
+     * Future hoàn tất khi tin đã ghi ra socket.
+     * Cửa sổ của peer đầy (peer chậm / mất kết nối) → future lỗi ngay với
+     * RejectedExecutionException, caller tự quyết định chờ, bỏ hay báo UI.
+     */
+    public CompletableFuture<SendResult> sendMessageAsync(Peer peer, String message) {
+        Semaphore window = windowFor(peer);
+        if (!window.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException(
+                    "Send window full for peer " + peer.getId() + " (" + SEND_WINDOW + " in flight)"));
+        }
+        return enqueue(peer, message, window);
+    }
 
-                // 🔐 ENCRYPT
-                byte[] ivBytes = new byte[16];
-                new SecureRandom().nextBytes(ivBytes);
-                IvParameterSpec iv = new IvParameterSpec(ivBytes);
+    // đã giữ 1 permit của `window`, trả lại khi tin gửi xong / lỗi
+    private CompletableFuture<SendResult> enqueue(Peer peer, String message, Semaphore window) {
+        CompletableFuture<SendResult> result = outbound.enqueue(peer, message);
+        result.whenComplete((r, e) -> window.release());
+        return result;
+    }
 
-                Cipher cipher = keyManager.createEncryptCipher(peer.getId(), iv);
-                byte[] encrypted = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Số tin còn được xếp hàng trước khi sendMessageAsync bị từ chối
+     */
+    public int sendWindowRemaining(Peer peer) {
+        return windowFor(peer).availablePermits();
+    }
 
-                // 📦 SEND
-                dos.writeInt(ivBytes.length);
-                dos.write(ivBytes);
+    private Semaphore windowFor(Peer peer) {
+        return sendWindows.computeIfAbsent(peer.getId(), k -> new Semaphore(SEND_WINDOW));
+    }
 
-                dos.writeInt(encrypted.length);
-                dos.write(encrypted);
+    private void sendBatch(Peer peer, List<String> messages) throws Exception {
+        pool.execute(peer, conn -> {
+            // 1️⃣ ĐẢM BẢO ĐÃ CÓ SESSION KEY (cùng kết nối với MSG)
+            ensurePeerKey(conn, peer);
+
+            // 2️⃣ GỬI MESSAGE: v2 gom cả lô vào 1 frame (lô quá FrameCodec.MAX_PAYLOAD thì từng tin), v1 gửi từng tin
+            byte[] batch = conn.isFramed() && messages.size() > 1 ? MessageBatch.encode(messages) : null;
+            if (batch != null && batch.length <= FrameCodec.MAX_PAYLOAD / 2) {
+                writeMessage(conn, peer, batch, FrameCodec.FLAG_BATCH);
+            } else {
+                for (String message : messages) {
+                    writeMessage(conn, peer, message.getBytes(StandardCharsets.UTF_8), 0);
+                }
+            }
+        });
+    }
+
+    private void writeMessage(PeerConnection conn, Peer peer, byte[] plain, int flags) throws Exception {
+        // 🔐 ENCRYPT
+        IvParameterSpec iv = CryptoUtils.generateIv();
+        byte[] ivBytes = iv.getIV();
+
+        byte[] encrypted = keyManager.encrypt(peer.getId(), iv, plain);
 
-                dos.flush();
+        // 📦 SEND
+        conn.send(Opcode.MSG, flags, dos -> {
+            if (conn.isFramed()) {
+                // v2: IV cố định 16 byte, ciphertext = phần còn lại của frame
+                dos.write(ivBytes);
+                dos.write(encrypted);
+                return;
             }
+            dos.writeInt(ivBytes.length);
+            dos.write(ivBytes);
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+            dos.writeInt(encrypted.length);
+            dos.write(encrypted);
+        });
     }
 
 
@@ -103,23 +189,21 @@ public class PeerClient {
         this.currentCallId = callKey;
 
         try {
-            // 1️⃣ Tạo session key và đảm bảo remote peer có key
-            SecretKey key = keyManager.getOrCreate(callKey);
-            ensureSessionKeyOnRemote(peer, callKey);
-
+            // 1️⃣ Tạo session key cho call
+            keyManager.getOrCreate(callKey);
             peer.setCallKey(callKey);
 
-            // 2️⃣ Gửi CALL_REQUEST
-            try (Socket socket = new Socket(peer.getAddress(), peer.getServicePort());
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+            pool.execute(peer, conn -> {
+                // 2️⃣ Đảm bảo remote peer có key
+                ensureSessionKeyOnRemote(conn, callKey);
 
-                sendHello(dos);
-                dos.writeUTF("CALL_REQUEST");
-                dos.writeUTF(callKey);
-                dos.writeInt(localVideoPortSend);
-                dos.writeInt(localAudioPortSend);
-                dos.flush();
-            }
+                // 3️⃣ Gửi CALL_REQUEST, đề nghị AES-GCM cho media (peer cũ bỏ qua flag)
+                conn.send(Opcode.CALL_REQUEST, FrameCodec.FLAG_AEAD, dos -> {
+                    dos.writeUTF(callKey);
+                    dos.writeInt(localVideoPortSend);
+                    dos.writeInt(localAudioPortSend);
+                });
+            });
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -133,6 +217,17 @@ public class PeerClient {
                                int localVideoPort,
                                int localAudioPort,
                                String callKey) {
+        sendCallAccept(peer, localVideoPort, localAudioPort, callKey, false);
+    }
+
+    /**
+     * @param aead caller đã đề nghị FLAG_AEAD → xác nhận lại để 2 bên cùng dùng AES-GCM
+     */
+    public void sendCallAccept(Peer peer,
+                               int localVideoPort,
+                               int localAudioPort,
+                               String callKey,
+                               boolean aead) {
         this.currentCallId = callKey;
 
 
@@ -141,15 +236,14 @@ public class PeerClient {
             return;
         }
 
-        try (Socket socket = new Socket(peer.getAddress(), peer.getServicePort());
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-
-            sendHello(dos);
-            dos.writeUTF("CALL_ACCEPT");
-            dos.writeUTF(callKey);            // 🔹 truyền callKey
-            dos.writeInt(localVideoPort);
-            dos.writeInt(localAudioPort);
-            dos.flush();
+        try {
+            pool.execute(peer, conn ->
+                    conn.send(Opcode.CALL_ACCEPT, aead ? FrameCodec.FLAG_AEAD : 0, dos -> {
+                        dos.writeUTF(callKey);            // 🔹 truyền callKey
+                        dos.writeInt(localVideoPort);
+                        dos.writeInt(localAudioPort);
+                    })
+            );
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -157,64 +251,285 @@ public class PeerClient {
     }
 
 
+    /* ================= SESSION KEY ================= */
 
+    private void ensurePeerKey(PeerConnection conn, Peer peer) throws Exception {
+        String keyId = peer.getId();
 
+        // v2: gửi 1 lần / kết nối → peer khởi động lại (mất key trong RAM) nhận lại key khi kết nối mới
+        boolean delivered = conn.isFramed() ? conn.hasDeliveredKey(keyId) : !undeliveredKeys.contains(keyId);
+        if (keyManager.hasKey(keyId) && delivered) return;
 
+        SecretKey key = keyManager.getOrCreate(keyId);
+        undeliveredKeys.add(keyId);
+        sendSessionKey(conn, keyId, key, 0);
+        undeliveredKeys.remove(keyId);
+        conn.keyDelivered(keyId);
+    }
 
-    private void ensureSessionKeyOnRemote(Peer peer, String keyId) throws Exception {
+    private void ensureSessionKeyOnRemote(PeerConnection conn, String keyId) throws Exception {
         if (keyManager.hasKey(keyId)) {
-            SecretKey key = keyManager.getOrCreate(keyId);
-
-            try (Socket s = new Socket(peer.getAddress(), peer.getServicePort());
-                 DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-                 DataInputStream dis = new DataInputStream(s.getInputStream())) {
-
-                sendHello(dos);
-                dos.writeUTF("SESSION_KEY");
-                dos.writeUTF(keyId);
-                dos.write(key.getEncoded());
-                dos.flush();
-
-                // 🔹 chờ ACK
-                String ack = dis.readUTF();
-                if (!"SESSION_KEY_ACK".equals(ack)) {
-                    throw new Exception("❌ Peer did not ack session key");
+            sendSessionKey(conn, keyId, keyManager.getOrCreate(keyId), FrameCodec.FLAG_KEY_ID);
+        }
+    }
+
+    private void sendSessionKey(PeerConnection conn, String keyId, SecretKey key, int flags) throws Exception {
+        conn.send(Opcode.SESSION_KEY, flags, dos -> {
+            dos.writeUTF(keyId);
+            dos.write(key.getEncoded());
+        });
+
+        // 🔹 chờ ACK
+        if (conn.readReply().opcode() != Opcode.SESSION_KEY_ACK) {
+            throw new Exception("❌ Peer did not ack session key");
+        }
+    }
+
+
+
+    public void sendCallEnd(Peer peer) {
+        try {
+            pool.execute(peer, conn -> conn.send(Opcode.CALL_END));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* ================= FILE ================= */
+
+    public void sendFile(Peer peer, File file) {
+        sendFile(peer, file, BandwidthScheduler.WEIGHT_NORMAL);
+    }
+
+    /**
+     * @param weight phần băng thông so với transfer khác đang gửi (BandwidthScheduler)
+     */
+    public void sendFile(Peer peer, File file, int weight) {
+        try (FileSender sender = FileSender.open(peer, file, keyManager, weight)) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    sendFileAttempt(peer, sender);
+                    return;
+                } catch (IOException e) {
+                    // mạng chập chờn / peer tắt app: FILE_BEGIN lần sau resume từ chunk đã xác nhận
+                    if (attempt >= FILE_RETRIES) throw e;
+                    System.err.println("⚠️ File " + file.getName() + " interrupted (" + e.getMessage()
+                            + "), retry " + attempt + "/" + (FILE_RETRIES - 1));
+                    Thread.sleep(FILE_RETRY_DELAY_MS << (attempt - 1));
                 }
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
+    private void sendFileAttempt(Peer peer, FileSender sender) throws Exception {
+        pool.execute(peer, conn -> {
+            ensurePeerKey(conn, peer);
+            sender.begin(conn);
+        });
+
+        if (sender.delta()) sendDelta(peer, sender);
+
+        for (int round = 0; ; round++) {
+            int streams = sender.streams();
+            if (streams == 1) {
+                sendRanges(peer, sender, 0);
+            } else if (streams > 1) {
+                // mỗi lane 1 kết nối riêng (lane 1..streams), kết nối chính để cho chat
+                List<CompletableFuture<Void>> lanes = new ArrayList<>(streams);
+                for (int lane = 1; lane <= streams; lane++) {
+                    int l = lane;
+                    CompletableFuture<Void> done = new CompletableFuture<>();
+                    // fork: sendFile đang chạy trên IoExecutor và join() các lane bên dưới
+                    IoExecutor.fork(() -> {
+                        try {
+                            sendRanges(peer, sender, l);
+                            done.complete(null);
+                        } catch (Exception e) {
+                            sender.cancel();
+                            done.completeExceptionally(e);
+                        }
+                    });
+                    lanes.add(done);
+                }
 
+                try {
+                    CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0])).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof Exception cause) throw cause;
+                    throw e;
+                }
+            }
 
+            boolean[] ended = new boolean[1];
+            pool.execute(peer, conn -> ended[0] = sender.end(conn));
+            if (ended[0]) return;
 
+            // bên nhận báo đúng các chunk hỏng / thiếu → vòng sau chỉ gửi lại các chunk đó
+            if (round >= REPAIR_ROUNDS) {
+                throw new IOException("Receiver still missing chunks after " + REPAIR_ROUNDS + " repair rounds");
+            }
+        }
+    }
 
+    private void sendDelta(Peer peer, FileSender sender) throws Exception {
+        // lệnh delta áp tuần tự → chỉ kết nối chính, giữ thứ tự
+        FileSender.DeltaBatch batch;
+        while ((batch = sender.nextDelta()) != null) {
+            FileSender.DeltaBatch b = batch;
+            sender.flow().acquire(b.data.length);
+            pool.execute(peer, conn -> {
+                ensurePeerKey(conn, peer);
+                sender.writeDelta(conn, b);
+            });
+        }
+    }
 
-    public void sendCallEnd(Peer peer) {
-        try (Socket socket =
-                     new Socket(peer.getAddress(), peer.getServicePort());
-             DataOutputStream dos =
-                     new DataOutputStream(socket.getOutputStream())) {
-
-            sendHello(dos);
-            dos.writeUTF("CALL_END");
-            dos.flush();
+    private void sendRanges(Peer peer, FileSender sender, int lane) throws Exception {
+        // mỗi chunk 1 lệnh, giữa 2 chunk tin nhắn khác lấy được kết nối
+        List<FileSender.Chunk> range;
+        while ((range = sender.nextRange()) != null) {
+            try {
+                for (FileSender.Chunk chunk : range) {
+                    // chờ token ngoài lock của kết nối → tin nhắn chat vẫn chen vào được
+                    sender.flow().acquire(chunk.data.remaining());
+                    pool.executeIdempotent(peer, lane, conn -> {
+                        ensurePeerKey(conn, peer); // kết nối có thể vừa mở lại
+                        sender.writeChunk(conn, chunk);
+                    });
+                }
+            } finally {
+                range.forEach(FileSender.Chunk::release);
+            }
+        }
 
+        // lane phụ: PONG về khi bên nhận đã xử lý hết chunk trên kết nối này → FILE_END không tới trước
+        if (lane > 0) {
+            pool.executeIdempotent(peer, lane, conn -> {
+                if (!conn.ping()) throw new ProtocolException("Expected PONG");
+            });
+        }
+    }
 
+    /**
+     * Gửi cả thư mục trên kết nối chính (DirectorySender), lỗi giữa chừng → gửi lại cả thư mục
+     */
+    public void sendDirectory(Peer peer, File dir) {
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try (DirectorySender sender = DirectorySender.open(peer, dir, keyManager)) {
+                    if (!sendDirectoryAttempt(peer, sender)) {
+                        // peer bản cũ: từng file như trước
+                        for (File file : sender.files()) sendFile(peer, file);
+                    }
+                    return;
+                } catch (IOException e) {
+                    if (attempt >= FILE_RETRIES) throw e;
+                    System.err.println("⚠️ Folder " + dir.getName() + " interrupted (" + e.getMessage()
+                            + "), retry " + attempt + "/" + (FILE_RETRIES - 1));
+                    Thread.sleep(FILE_RETRY_DELAY_MS << (attempt - 1));
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    /* ================= FILE ================= */
+    private boolean sendDirectoryAttempt(Peer peer, DirectorySender sender) throws Exception {
+        boolean[] framed = new boolean[1];
+        pool.execute(peer, conn -> {
+            ensurePeerKey(conn, peer);
+            framed[0] = sender.begin(conn);
+        });
+        if (!framed[0]) return false;
+
+        // mỗi lô 1 lệnh, tin nhắn chat chen vào giữa được
+        DirectorySender.Batch batch;
+        while ((batch = sender.next()) != null) {
+            DirectorySender.Batch b = batch;
+            sender.flow().acquire(b.data.length);
+            pool.executeIdempotent(peer, conn -> {
+                ensurePeerKey(conn, peer);
+                sender.write(conn, b);
+            });
+        }
 
-    public void sendFile(Peer peer, File file) {
-        FileSender.sendFile(
-                peer,
-                file,
-                keyManager,
-                localUsername,     // 🔥 QUAN TRỌNG
-                localServicePort   // 🔥 QUAN TRỌNG
-        );
+        pool.execute(peer, sender::end);
+        return true;
+    }
+
+    /* ================= SWARM ================= */
+
+    /**
+     * Mời peer tải file theo swarm (others = người nhận còn lại)
+     *
+     * @return false nếu peer từ chối / bản cũ không hiểu swarm → caller gửi thẳng
+     */
+    public boolean sendSwarmOffer(Peer peer, Swarm swarm, List<Peer> others) throws Exception {
+        boolean[] joined = new boolean[1];
+        pool.execute(peer, conn -> {
+            if (!conn.isFramed()) return; // v1 không có swarm
+
+            conn.send(Opcode.SWARM_OFFER, dos -> swarm.writeOffer(dos, others));
+            Frame reply = conn.readReply();
+            if (reply.opcode() != Opcode.SWARM_JOIN) throw new ProtocolException("Expected SWARM_JOIN, got " + reply.opcode());
+            joined[0] = reply.body().readUnsignedByte() == 1;
+        });
+        return joined[0];
+    }
+
+    /**
+     * Xin 1 mảnh của swarm, mảnh mã hoá bằng session key của mình với peer đó
+     */
+    public SwarmManager.PieceReply requestPiece(Peer peer, String swarmId, int piece) throws Exception {
+        SwarmManager.PieceReply[] result = new SwarmManager.PieceReply[1];
+        pool.executeIdempotent(peer, conn -> {
+            if (!conn.isFramed()) throw new ProtocolException("Peer " + peer.getId() + " does not support swarm");
+            ensurePeerKey(conn, peer);
+
+            conn.send(Opcode.SWARM_GET, dos -> {
+                dos.writeUTF(swarmId);
+                dos.writeInt(piece);
+            });
+
+            Frame reply = conn.readReply();
+            if (reply.opcode() != Opcode.SWARM_PIECE) throw new ProtocolException("Expected SWARM_PIECE, got " + reply.opcode());
+
+            DataInputStream dis = reply.body();
+            int status = dis.readUnsignedByte();
+            byte[] bitfield = new byte[dis.readInt()];
+            dis.readFully(bitfield);
+
+            byte[] data = null;
+            if (status == Swarm.PIECE_OK) {
+                byte[] iv = new byte[16];
+                dis.readFully(iv);
+                data = keyManager.decrypt(peer.getId(), new IvParameterSpec(iv), dis.readAllBytes());
+            }
+            result[0] = new SwarmManager.PieceReply(status, BitSet.valueOf(bitfield), data);
+        });
+        return result[0];
+    }
+
+    /**
+     * Gửi tiếp các file còn dở với peer từ lần chạy trước (TransferManifest),
+     * gọi mỗi khi thấy peer qua discovery, mỗi manifest chỉ resume 1 lần / lần chạy
+     */
+    public void resumeTransfers(Peer peer) {
+        List<TransferManifest> pending = pendingTransfers.remove(peer.getId());
+        if (pending == null) return;
+
+        for (TransferManifest m : pending) {
+            File file = new File(m.path());
+            if (!file.exists()) {
+                m.delete();
+                continue;
+            }
+            System.out.println("🔁 Resuming transfer of " + file.getName() + " to " + peer.getId());
+            IoExecutor.execute(() -> sendFile(peer, file, BandwidthScheduler.WEIGHT_BACKGROUND));
+        }
     }
 
 }
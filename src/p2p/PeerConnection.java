@@ -0,0 +1,262 @@
+package p2p;
+
+import p2p.protocol.Frame;
+import p2p.protocol.FrameCodec;
+import p2p.protocol.FrameWriter;
+import p2p.protocol.Opcode;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * PeerConnection
+ * --------------
+ * 1 kết nối TCP tới 1 peer, HELLO chỉ gửi 1 lần lúc mở.
+ * Dùng chung cho nhiều lệnh liên tiếp (xem ConnectionPool).
+ *
+ * Sau HELLO client gửi PROTO(version mong muốn), server trả PROTO_ACK(version chốt):
+ * - v2: lệnh gửi dạng frame nhị phân (FrameCodec)
+ * - v1 / peer bản cũ: tên lệnh writeUTF như trước
+ *
+ * Kết nối one-shot (peer bản cũ: 1 connection = 1 command): mỗi lệnh sau lệnh đầu tự mở socket mới
+ * + HELLO trước khi ghi, reply của lệnh trước (SESSION_KEY_ACK) vẫn đọc trên socket cũ như bản gốc.
+ */
+public class PeerConnection implements Closeable {
+
+    public interface Body {
+        void write(DataOutputStream out) throws Exception;
+    }
+
+    static final int CONNECT_TIMEOUT_MS = 3000;
+    static final int REPLY_TIMEOUT_MS = 5000;
+
+    private SocketChannel channel;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    // one-shot: thông tin để mở lại, số lệnh đã ghi trên socket hiện tại
+    private Peer peer;
+    private String localUsername;
+    private int localServicePort;
+    private boolean oneShot;
+    private int commands;
+
+    // số frame lệnh đã ghi xong ra socket (ConnectionPool: lệnh chưa ghi gì thì chạy lại an toàn)
+    private long framesWritten;
+
+    private final FrameWriter frameWriter = new FrameWriter();
+    private int version = FrameCodec.VERSION_LEGACY;
+
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    // session key đã gửi trên kết nối này (ConnectionPool: 1 lệnh / thời điểm)
+    private final Set<String> deliveredKeys = new HashSet<>();
+
+    private PeerConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Kết nối cho peer bản cũ: mỗi lệnh 1 socket (xem beginCommand)
+     */
+    static PeerConnection oneShot(Peer peer, String localUsername, int localServicePort) throws IOException {
+        PeerConnection conn = connect(peer, localUsername, localServicePort);
+        conn.peer = peer;
+        conn.localUsername = localUsername;
+        conn.localServicePort = localServicePort;
+        conn.oneShot = true;
+        return conn;
+    }
+
+    /**
+     * Trước khi ghi 1 lệnh: one-shot và socket đã có lệnh → đóng, mở socket mới + HELLO
+     */
+    private void beginCommand() throws IOException {
+        if (oneShot && commands > 0) {
+            out.flush();
+            close();
+            // connect() đã ghi HELLO vào stream của kết nối mới → dùng luôn stream đó
+            PeerConnection next = connect(peer, localUsername, localServicePort);
+            channel = next.channel;
+            socket = next.socket;
+            in = next.in;
+            out = next.out;
+            commands = 0;
+        }
+        commands++;
+    }
+
+    /**
+     * Mở socket tới peer và gửi HELLO (chưa flush, lệnh đầu tiên sẽ flush cùng)
+     */
+    static PeerConnection connect(Peer peer, String localUsername, int localServicePort) throws IOException {
+        // socket của SocketChannel (blocking): lệnh thường dùng stream, chunk file ghi thẳng ByteBuffer
+        SocketChannel channel = SocketChannel.open();
+        Socket socket = channel.socket();
+        try {
+            socket.connect(new InetSocketAddress(peer.getAddress(), peer.getServicePort()), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+
+            PeerConnection conn = new PeerConnection(channel);
+            conn.out.writeUTF("HELLO");
+            conn.out.writeUTF(localUsername);
+            conn.out.writeInt(localServicePort);
+            return conn;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /* ================= IO ================= */
+
+    public DataOutputStream out() {
+        return out;
+    }
+
+    public DataInputStream in() {
+        return in;
+    }
+
+    public boolean isFramed() {
+        return version >= FrameCodec.VERSION;
+    }
+
+    /**
+     * Gửi 1 lệnh + flush. Body encode field giống nhau ở cả 2 version,
+     * v2 chỉ thay tên lệnh bằng header frame.
+     */
+    public void send(int opcode, int flags, Body body) throws Exception {
+        beginCommand();
+        if (isFramed()) {
+            body.write(frameWriter.begin());
+            frameWriter.writeTo(out, opcode, flags);
+        } else {
+            out.writeUTF(Opcode.legacyName(opcode));
+            body.write(out);
+        }
+        out.flush();
+        framesWritten++;
+    }
+
+    /**
+     * Gửi 1 frame có phần đuôi là ByteBuffer (direct): header + head qua buffer nhỏ,
+     * tail ghi thẳng ra SocketChannel bằng gathering write, không copy qua heap.
+     * Không đổi position của tail (gọi lại được khi ConnectionPool thử lại).
+     */
+    public void send(int opcode, int flags, Body head, ByteBuffer tail) throws Exception {
+        ByteBuffer data = tail.duplicate();
+        if (!isFramed()) {
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            send(opcode, flags, dos -> {
+                head.write(dos);
+                dos.write(copy);
+            });
+            return;
+        }
+
+        beginCommand();
+        head.write(frameWriter.begin());
+        ByteBuffer[] frame = {frameWriter.toBuffer(opcode, flags, data.remaining()), data};
+
+        out.flush(); // byte còn trong stream (HELLO...) phải ra trước
+        while (frame[0].hasRemaining() || frame[1].hasRemaining()) {
+            channel.write(frame);
+        }
+        framesWritten++;
+    }
+
+    public void send(int opcode, Body body) throws Exception {
+        send(opcode, 0, body);
+    }
+
+    public void send(int opcode) throws Exception {
+        send(opcode, 0, out -> {});
+    }
+
+    /**
+     * Đọc 1 reply (SESSION_KEY_ACK, PONG...), timeout REPLY_TIMEOUT_MS
+     */
+    public Frame readReply() throws IOException {
+        if (isFramed()) return FrameCodec.read(in);
+        return new Frame(Opcode.fromLegacyName(in.readUTF()), 0, null);
+    }
+
+    /**
+     * Reply cần bên kia xử lý lâu (vd: tính chữ ký file cũ), timeout riêng rồi trả lại REPLY_TIMEOUT_MS
+     */
+    public Frame readReply(int timeoutMs) throws IOException {
+        socket.setSoTimeout(timeoutMs);
+        try {
+            return readReply();
+        } finally {
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Chốt version với server.
+     * Peer bản cũ (1 connection = 1 command) bỏ qua lệnh lạ và đóng socket → EOFException.
+     */
+    void negotiate() throws IOException {
+        out.writeUTF("PROTO");
+        out.writeByte(FrameCodec.VERSION);
+        out.flush();
+
+        if (!"PROTO_ACK".equals(in.readUTF())) throw new ProtocolException("Expected PROTO_ACK");
+        version = in.readUnsignedByte();
+    }
+
+    boolean ping() throws IOException {
+        if (isFramed()) FrameCodec.write(out, Opcode.PING, 0);
+        else out.writeUTF("PING");
+        out.flush();
+        return readReply().opcode() == Opcode.PONG;
+    }
+
+    /* ================= STATE ================= */
+
+    long framesWritten() {
+        return framesWritten;
+    }
+
+    boolean hasDeliveredKey(String keyId) {
+        return deliveredKeys.contains(keyId);
+    }
+
+    void keyDelivered(String keyId) {
+        deliveredKeys.add(keyId);
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    long idleMillis() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+
+    boolean isClosed() {
+        return socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -3,6 +3,7 @@ package p2p;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PeerDiscoverySender extends Thread {
@@ -10,14 +11,34 @@ public class PeerDiscoverySender extends Thread {
     private final String username;
     private final int servicePort;
     private final int discoveryPort;
+    // null → broadcast trên mọi interface; khác null → gửi unicast tới từng địa chỉ
+    private final List<InetSocketAddress> targets;
     private final AtomicBoolean running = new AtomicBoolean(true);
 
     public PeerDiscoverySender(String username,
                                int servicePort,
                                int discoveryPort) {
+        this(username, servicePort, discoveryPort, null);
+    }
+
+    /**
+     * Gửi DISCOVER thẳng tới các listener cho trước (vd. 127.0.0.1:port trong load test,
+     * nơi loopback không có broadcast)
+     */
+    public PeerDiscoverySender(String username,
+                               int servicePort,
+                               List<InetSocketAddress> targets) {
+        this(username, servicePort, 0, targets);
+    }
+
+    private PeerDiscoverySender(String username,
+                                int servicePort,
+                                int discoveryPort,
+                                List<InetSocketAddress> targets) {
         this.username = username;
         this.servicePort = servicePort;
         this.discoveryPort = discoveryPort;
+        this.targets = targets;
         setName("PeerDiscoverySender");
         setDaemon(true);
     }
@@ -35,6 +56,14 @@ public class PeerDiscoverySender extends Thread {
                 String msg = "DISCOVER|" + username + "|" + servicePort;
                 byte[] data = msg.getBytes(StandardCharsets.UTF_8);
 
+                if (targets != null) {
+                    for (InetSocketAddress target : targets) {
+                        socket.send(new DatagramPacket(data, data.length, target));
+                    }
+                    Thread.sleep(2000);
+                    continue;
+                }
+
                 Enumeration<NetworkInterface> interfaces =
                         NetworkInterface.getNetworkInterfaces();
 
@@ -0,0 +1,27 @@
+package p2p;
+
+import java.io.File;
+
+/**
+ * PeerEvents
+ * ----------
+ * Sự kiện PeerHandler báo lên sau khi xử lý 1 lệnh.
+ * Gọi trên thread của connection / worker pool, KHÔNG phải JavaFX thread:
+ * - MainUI chuyển sang FX thread (Platform.runLater)
+ * - load test (p2p.loadtest) chạy headless, chỉ đo đếm
+ */
+public interface PeerEvents {
+
+    void onMessage(Peer peer, String msg);
+
+    /**
+     * @param aead media của cuộc gọi dùng AES-GCM (FLAG_AEAD), false → AES-CBC như bản cũ
+     */
+    void onCallRequest(Peer peer, String callKey, int videoPort, int audioPort, boolean aead);
+
+    void onCallAccepted(Peer peer, String callKey, int videoPort, int audioPort, boolean aead);
+
+    void onCallEnded(Peer peer);
+
+    void onFileReceived(Peer peer, File file);
+}
@@ -1,199 +1,653 @@
 package p2p;
 
-import javafx.application.Platform;
+import p2p.crypto.CryptoUtils;
 import p2p.crypto.KeyManager;
+import p2p.protocol.Frame;
+import p2p.protocol.FrameCodec;
+import p2p.protocol.MessageBatch;
+import p2p.protocol.Opcode;
 
 import javax.crypto.spec.IvParameterSpec;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.net.SocketTimeoutException;
+import java.util.UUID;
 
 /**
  * PeerHandler
  * ----------
- * 1 connection = 1 command
+ * 1 connection = nhiều command (HELLO 1 lần, sau đó lặp tới khi peer đóng)
+ * Giao thức v1 (tên lệnh writeUTF) hoặc v2 (frame, xem FrameCodec) chốt qua PROTO sau HELLO.
+ *
+ * Mỗi lệnh tách 2 bước:
+ * - decode: đọc đủ byte của lệnh, không side effect
+ * - Action: xử lý, chạy tuần tự theo thứ tự lệnh
+ * Chế độ blocking chạy cả 2 trên thread của connection,
+ * chế độ NIO (PeerServer + PeerChannel) decode trên selector, Action chạy trên worker pool.
  */
 public class PeerHandler implements Runnable {
 
+    interface Action {
+        void run() throws Exception;
+    }
+
+    // client đóng kết nối idle sau 60s, server tự dọn nếu peer biến mất
+    static final int IDLE_TIMEOUT_MS = 120_000;
+
     private final Socket socket;
     private final Peer peer;
     private final KeyManager keyManager;
     private final SettingsStore settings;
-    private final MainUI mainUI;
+    private final PeerEvents events;
     private final CallManager callManager;
+    private final FileReceiver files;
+    private final SwarmManager swarms;
+
+    private boolean helloDone = false;
+    private boolean framed = false;   // sau PROTO v2, mọi lệnh là frame
+    private boolean keyReceived = false;
 
     public PeerHandler(Socket socket,
                        Peer peer,
                        KeyManager keyManager,
                        SettingsStore settings,
-                       MainUI mainUI,
-                       CallManager callManager) {
+                       PeerEvents events,
+                       CallManager callManager,
+                       FileReceiver files,
+                       SwarmManager swarms) {
         this.socket = socket;
         this.peer = peer;
         this.keyManager = keyManager;
         this.settings = settings;
-        this.mainUI = mainUI;
+        this.events = events;
         this.callManager = callManager;
+        this.files = files;
+        this.swarms = swarms;
+    }
+
+    /**
+     * Handler cho chế độ NIO: không giữ socket, byte được đẩy vào qua decodeNext
+     */
+    public PeerHandler(Peer peer,
+                       KeyManager keyManager,
+                       SettingsStore settings,
+                       PeerEvents events,
+                       CallManager callManager,
+                       FileReceiver files,
+                       SwarmManager swarms) {
+        this(null, peer, keyManager, settings, events, callManager, files, swarms);
     }
 
     @Override
     public void run() {
         try {
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            socket.setSoTimeout(IDLE_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            while (true) {
+                Action action;
+                try {
+                    action = decodeNext(dis, dos);
+                } catch (EOFException | SocketTimeoutException e) {
+                    break; // peer đóng / idle quá lâu
+                }
+
+                if (action == null) {
+                    System.err.println("Unknown command from " + peer.getId());
+                    return; // stream lệch, không đọc tiếp được
+                }
+                action.run();
+            }
 
-            String hello = dis.readUTF();
-            if (!"HELLO".equals(hello)) return;
+        } catch (Exception e) {
+            if (!socket.isClosed()) e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
 
-            peer.setUsername(dis.readUTF());
-            peer.setServicePort(dis.readInt());
-            peer.rebuildId();
+    boolean isFramed() {
+        return framed;
+    }
 
-            String type = dis.readUTF();
+    /**
+     * v1: sau HELLO (client bản cũ không gửi key trước FILE), v2: sau SESSION_KEY đầu tiên trên kết nối
+     */
+    boolean isHandshakeDone() {
+        return framed ? keyReceived : helloDone;
+    }
 
-            switch (type) {
-                case "SESSION_KEY" -> handleSessionKey(dis, dos);
-                case "MSG" -> handleMessage(dis);
-                case "CALL_REQUEST" -> handleCallRequest(dis);
-                case "CALL_ACCEPT" -> handleCallAccept(dis);
-                case "CALL_END" ->
-                        Platform.runLater(() -> mainUI.stopCallFromRemote(peer));
-                case "FILE" -> handleFile(dis);
-            }
+    /**
+     * Đọc đủ 1 lệnh (lệnh đầu tiên luôn là HELLO).
+     * Thiếu byte → EOFException, không có side effect nên có thể đọc lại từ đầu.
+     * Lệnh lạ ở v1 → null (không biết độ dài để bỏ qua).
+     */
+    Action decodeNext(DataInputStream dis, DataOutputStream dos) throws IOException {
+        if (framed) return decodeFrame(FrameCodec.read(dis), dos);
+
+        if (!helloDone) {
+            if (!"HELLO".equals(dis.readUTF())) return null;
+            String username = dis.readUTF();
+            int servicePort = dis.readInt();
+            helloDone = true;
+
+            return () -> {
+                peer.setUsername(username);
+                peer.setServicePort(servicePort);
+                peer.rebuildId();
+            };
+        }
+
+        // v1: tên lệnh → opcode 1 lần, sau đó dispatch chung với v2
+        int opcode = Opcode.fromLegacyName(dis.readUTF());
+        if (opcode == Opcode.PROTO) return decodeProto(dis, dos);
+        return decodeCommand(opcode, 0, dis, dos, false);
+    }
 
-            socket.close();
+    /**
+     * v2: frame đã đủ byte (FrameCodec.read hoặc FrameDecoder), dispatch theo opcode
+     */
+    Action decodeFrame(Frame frame, DataOutputStream dos) throws IOException {
+        // chunk file: giải mã thẳng từ payload của frame, không copy ra mảng mới
+        if (frame.opcode() == Opcode.FILE_CHUNK) return decodeFileChunk(frame);
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        Action action = decodeCommand(frame.opcode(), frame.flags(), frame.body(), dos, true);
+        if (action != null) return action;
+
+        // frame có độ dài → bỏ qua được lệnh lạ (peer bản mới hơn)
+        return () -> System.err.println("Unknown opcode " + frame.opcode() + " from " + peer.getId());
+    }
+
+    private Action decodeCommand(int opcode, int flags, DataInputStream dis, DataOutputStream dos, boolean framed) throws IOException {
+        return switch (opcode) {
+            case Opcode.PING -> () -> reply(dos, framed, Opcode.PONG);
+            case Opcode.SESSION_KEY -> decodeSessionKey(dis, dos, flags, framed);
+            case Opcode.MSG -> decodeMessage(dis, flags, framed);
+            case Opcode.CALL_REQUEST -> decodeCallRequest(dis, flags);
+            case Opcode.CALL_ACCEPT -> decodeCallAccept(dis, flags);
+            case Opcode.CALL_END -> () -> events.onCallEnded(peer);
+            case Opcode.FILE -> decodeFile(dis);
+            case Opcode.FILE_BEGIN -> decodeFileBegin(dis, flags, dos);
+            case Opcode.FILE_DELTA -> decodeFileDelta(dis);
+            case Opcode.DIR_BEGIN -> decodeDirBegin(dis, dos);
+            case Opcode.DIR_DATA -> decodeDirData(dis);
+            case Opcode.DIR_END -> decodeDirEnd(dis, dos);
+            case Opcode.SWARM_OFFER -> decodeSwarmOffer(dis, dos);
+            case Opcode.SWARM_GET -> decodeSwarmGet(dis, dos);
+            case Opcode.FILE_END -> decodeFileEnd(dis, flags, dos);
+            default -> null;
+        };
+    }
+
+    /* ================= PROTOCOL ================= */
+    private Action decodeProto(DataInputStream dis, DataOutputStream dos) throws IOException {
+        int agreed = Math.min(dis.readUnsignedByte(), FrameCodec.VERSION);
+
+        // byte ngay sau PROTO đã là frame (client gửi tiếp không chờ ACK)
+        framed = agreed >= FrameCodec.VERSION;
+
+        return () -> {
+            dos.writeUTF("PROTO_ACK");
+            dos.writeByte(agreed);
+            dos.flush();
+        };
+    }
+
+    private static void reply(DataOutputStream dos, boolean framed, int opcode) throws IOException {
+        synchronized (dos) {
+            if (framed) FrameCodec.write(dos, opcode, 0);
+            else dos.writeUTF(Opcode.legacyName(opcode));
+            dos.flush();
         }
     }
 
     /* ================= SESSION KEY ================= */
-    private void handleSessionKey(DataInputStream dis, DataOutputStream dos) throws Exception {
-        String keyId = dis.readUTF(); // bỏ dùng
+
+    /**
+     * SESSION_KEY: keyId (UTF) | key (16), trả SESSION_KEY_ACK
+     * - không cờ: key tin nhắn / file của peer → KeyManager.inboundKeyId(peer id)
+     * - FLAG_KEY_ID (chỉ v2): call key → lưu theo keyId
+     * Peer bản cũ không gửi cờ, bỏ qua cờ khi nhận → chỉ còn khác chỗ lưu key phía mình.
+     */
+    private Action decodeSessionKey(DataInputStream dis, DataOutputStream dos, int flags, boolean framed) throws IOException {
+        // key tin nhắn: keyId là id của mình phía peer → lưu theo id của peer (chiều nhận)
+        // call key (v2, FLAG_KEY_ID): lưu đúng keyId, không ghi đè key tin nhắn
+        String keyId = dis.readUTF();
+        boolean namedKey = (flags & FrameCodec.FLAG_KEY_ID) != 0;
 
         byte[] keyBytes = new byte[16];
         dis.readFully(keyBytes);
+        keyReceived = true;
 
-        peer.rebuildId();
-        keyManager.storeSessionKey(peer.getId(), keyBytes);
+        return () -> {
+            peer.rebuildId();
+            String storeId = namedKey ? keyId : KeyManager.inboundKeyId(peer.getId());
+            keyManager.storeSessionKey(storeId, keyBytes);
 
-        System.out.println("🔐 Session key stored for peer: " + peer.getId());
+            System.out.println("🔐 Session key stored: " + storeId);
 
-        dos.writeUTF("SESSION_KEY_ACK");
-        dos.flush();
+            reply(dos, framed, Opcode.SESSION_KEY_ACK);
+        };
     }
 
     /* ================= MESSAGE ================= */
-    private void handleMessage(DataInputStream dis) throws Exception {
+    private Action decodeMessage(DataInputStream dis, int flags, boolean framed) throws IOException {
+        byte[] iv;
+        byte[] encrypted;
 
-        int ivLen = dis.readInt();
-        byte[] iv = new byte[ivLen];
-        dis.readFully(iv);
+        if (framed) {
+            // v2: IV 16 byte + ciphertext tới hết frame
+            iv = new byte[16];
+            dis.readFully(iv);
+            encrypted = dis.readAllBytes();
+        } else {
+            int ivLen = dis.readInt();
+            iv = new byte[ivLen];
+            dis.readFully(iv);
 
-        int len = dis.readInt();
-        byte[] encrypted = new byte[len];
-        dis.readFully(encrypted);
+            int len = dis.readInt();
+            encrypted = new byte[len];
+            dis.readFully(encrypted);
+        }
+
+        return () -> {
+            byte[] decrypted = keyManager.decrypt(messageKeyId(), new IvParameterSpec(iv), encrypted);
 
-        byte[] decrypted = keyManager.createDecryptCipher(
-                peer.getId(),
-                new IvParameterSpec(iv)
-        ).doFinal(encrypted);
+            if ((flags & FrameCodec.FLAG_BATCH) != 0) {
+                // nhiều tin gom trong 1 frame, giữ nguyên thứ tự
+                for (String msg : MessageBatch.decode(decrypted)) deliverMessage(msg);
+            } else {
+                deliverMessage(new String(decrypted));
+            }
+        };
+    }
 
-        String msg = new String(decrypted);
+    /**
+     * Key peer đã gửi cho mình; peer bản cũ không gửi lại key nếu đã nhận key của mình
+     * → dùng key chung lưu theo peer id
+     */
+    private String messageKeyId() {
+        String inbound = KeyManager.inboundKeyId(peer.getId());
+        return keyManager.hasKey(inbound) ? inbound : peer.getId();
+    }
 
+    private void deliverMessage(String msg) {
         if (settings.isBlockedById(peer.getId())) return;
 
         peer.setLastMessage(msg);
-        ChatWindow.appendToHistoryFileStatic(peer, peer.getUsername(), msg);
-
-        Platform.runLater(() ->
-                mainUI.onIncomingMessage(peer, msg)
-        );
+        events.onMessage(peer, msg);
     }
 
     /* ================= CALL ================= */
-    private void handleCallRequest(DataInputStream dis) throws Exception {
+    private Action decodeCallRequest(DataInputStream dis, int flags) throws IOException {
         String callKey = dis.readUTF();
         int callerVideoPort = dis.readInt();
         int callerAudioPort = dis.readInt();
+        boolean aead = (flags & FrameCodec.FLAG_AEAD) != 0;
 
-        Platform.runLater(() ->
-                mainUI.onIncomingCall(peer, callKey, callerVideoPort, callerAudioPort)
-        );
+        return () -> events.onCallRequest(peer, callKey, callerVideoPort, callerAudioPort, aead);
     }
 
 
-//    private void handleCallAccept(DataInputStream dis) throws Exception {
-//        String callKey = dis.readUTF();
-//        peer.setCallKey(callKey);
-//
-//        int remoteVideoPort = dis.readInt();
-//        int remoteAudioPort = dis.readInt();
-//
-//        Platform.runLater(() -> mainUI.onCallAccepted(peer, remoteVideoPort, remoteAudioPort));
-//    }
+    private Action decodeCallAccept(DataInputStream dis, int flags) throws IOException {
+        String callKey = dis.readUTF();
+        int remoteVideoPort = dis.readInt();
+        int remoteAudioPort = dis.readInt();
+        boolean aead = (flags & FrameCodec.FLAG_AEAD) != 0;
+
+        return () -> {
+            if (!keyManager.hasKey(callKey)) {
+                keyManager.getOrCreate(callKey);
+            }
 
+            peer.setCallKey(callKey);
 
-    private void handleCallAccept(DataInputStream dis) throws Exception {
-        String callKey = dis.readUTF();
+            events.onCallAccepted(peer, callKey, remoteVideoPort, remoteAudioPort, aead);
+        };
+    }
+
+
+
+    /* ================= FILE ================= */
+    private Action decodeFile(DataInputStream dis) throws IOException {
+        // keyId trên dây là id của mình phía peer (key bên gửi), không phải keyId mình lưu
+        // → giải mã bằng key chiều nhận của peer, như MSG
+        dis.readUTF();
+        String fileName = dis.readUTF();
+
+        int ivLen = dis.readInt();
+        byte[] iv = new byte[ivLen];
+        dis.readFully(iv);
+
+        int dataLen = dis.readInt();
+        byte[] encrypted = new byte[dataLen];
+        dis.readFully(encrypted);
 
-        if (!keyManager.hasKey(callKey)) {
-            keyManager.getOrCreate(callKey);
+        return () -> {
+            if (settings.isBlockedById(peer.getId())) return;
+
+            try {
+                byte[] plain = keyManager.decrypt(messageKeyId(), new IvParameterSpec(iv), encrypted);
+
+                File dir = FileReceiver.downloadDir();
+                if (!dir.exists()) dir.mkdirs();
+
+                File outFile = new File(dir, new File(fileName).getName());
+                try (FileOutputStream fos = new FileOutputStream(outFile)) {
+                    fos.write(plain);
+                }
+
+                events.onFileReceived(peer, outFile);
+
+                System.out.println("📥 File received: " + outFile.getAbsolutePath());
+
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        };
+    }
+
+    /* ================= FILE STREAM (v2) ================= */
+
+    /**
+     * transferId của FILE_* / DIR_* đi vào tên file manifest (TransferManifest)
+     * → chỉ nhận UUID đúng dạng bên gửi tạo, còn lại coi như stream hỏng
+     */
+    private static String readTransferId(DataInputStream dis) throws IOException {
+        String transferId = dis.readUTF();
+        try {
+            if (UUID.fromString(transferId).toString().equals(transferId)) return transferId;
+        } catch (IllegalArgumentException ignored) {}
+        throw new ProtocolException("Invalid transferId: " + transferId);
+    }
+
+    private Action decodeFileBegin(DataInputStream dis, int flags, DataOutputStream dos) throws IOException {
+        String transferId = readTransferId(dis);
+        String fileName = dis.readUTF();
+        long size = dis.readLong();
+        int chunkSize = dis.readInt();
+        boolean delta = (flags & FrameCodec.FLAG_DELTA) != 0;
+        // bên gửi kèm leaf hash nếu mình xác nhận lại FLAG_MERKLE trong FILE_ACK
+        int ackFlags = flags & FrameCodec.FLAG_MERKLE;
+
+        return () -> {
+            // peer bị chặn: báo đã nhận đủ để bên gửi không gửi chunk
+            if (settings.isBlockedById(peer.getId())) {
+                replyFileAck(dos, size);
+                return;
+            }
+
+            long offset = files.begin(peer, transferId, fileName, size, chunkSize, delta);
+            if (!delta || offset != 0) {
+                replyFileAck(dos, ackFlags, ByteBuffer.allocate(8).putLong(offset).array());
+                return;
+            }
+
+            // chữ ký đọc cả file cũ → tính trên DiskWriter, reply gửi từ đó
+            files.signature(peer, transferId, signature -> {
+                if (signature == null) {
+                    replyFileAck(dos, ackFlags, ByteBuffer.allocate(8).putLong(offset).array());
+                    return;
+                }
+
+                // chữ ký lộ nội dung file cũ (đoán được block) → mã hoá như chunk
+                ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                signature.write(new DataOutputStream(plain));
+
+                IvParameterSpec spec = CryptoUtils.generateIv();
+                byte[] encrypted = keyManager.encrypt(messageKeyId(), spec, plain.toByteArray());
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream(8 + 16 + encrypted.length);
+                DataOutputStream out = new DataOutputStream(body);
+                out.writeLong(offset);
+                out.write(spec.getIV());
+                out.write(encrypted);
+                replyFileAck(dos, ackFlags, body.toByteArray());
+
+                System.out.println("📥 Delta signature for " + fileName + ": " + signature.blockCount() + " blocks");
+            });
+        };
+    }
+
+    private Action decodeFileDelta(DataInputStream dis) throws IOException {
+        String transferId = readTransferId(dis);
+        long offset = dis.readLong();
+
+        byte[] iv = new byte[16];
+        dis.readFully(iv);
+
+        byte[] encrypted = new byte[dis.available()];
+        dis.readFully(encrypted);
+
+        return () -> {
+            if (settings.isBlockedById(peer.getId())) return;
+
+            byte[] ops = keyManager.decrypt(messageKeyId(), new IvParameterSpec(iv), encrypted);
+
+            files.delta(peer, transferId, offset, ops);
+        };
+    }
+
+    private Action decodeFileChunk(Frame frame) throws IOException {
+        DataInputStream dis = frame.body();
+        String transferId = readTransferId(dis);
+        int index = dis.readInt();
+
+        byte[] iv = new byte[16];
+        dis.readFully(iv);
+
+        byte[] payload = frame.payload();
+        int offset = payload.length - dis.available();
+        boolean merkle = frame.hasFlag(FrameCodec.FLAG_MERKLE);
+
+        return () -> {
+            if (settings.isBlockedById(peer.getId())) return;
+
+            // plaintext vào direct buffer của pool → DiskWriter ghi thẳng, không qua buffer tạm
+            ByteBuffer plain = FileReceiver.BUFFERS.acquire(payload.length - offset);
+            boolean handedOff = false;
+            try {
+                keyManager.decrypt(messageKeyId(), new IvParameterSpec(iv),
+                        ByteBuffer.wrap(payload, offset, payload.length - offset), plain);
+                plain.flip();
+
+                // leaf hash nằm cuối plaintext
+                byte[] leaf = null;
+                if (merkle) {
+                    if (plain.remaining() < MerkleTree.HASH_SIZE) throw new ProtocolException("FILE_CHUNK too short for leaf hash");
+                    leaf = new byte[MerkleTree.HASH_SIZE];
+                    plain.get(plain.limit() - leaf.length, leaf);
+                    plain.limit(plain.limit() - leaf.length);
+                }
+
+                // FileReceiver giữ buffer tới khi ghi xong (trên DiskWriter)
+                handedOff = true;
+                files.chunk(peer, transferId, index, plain, leaf);
+            } catch (GeneralSecurityException e) {
+                // chunk hỏng trên đường truyền (padding sai): không ghi, FILE_END sẽ xin lại
+                System.err.println("⚠️ Cannot decrypt chunk " + index + " of " + transferId + ": " + e.getMessage());
+            } finally {
+                if (!handedOff) FileReceiver.BUFFERS.release(plain);
+            }
+        };
+    }
+
+    private Action decodeFileEnd(DataInputStream dis, int flags, DataOutputStream dos) throws IOException {
+        String transferId = readTransferId(dis);
+        long size = dis.readLong();
+
+        boolean merkle = (flags & FrameCodec.FLAG_MERKLE) != 0;
+        byte[] root = null;
+        if (merkle) {
+            int rootLen = dis.readUnsignedByte();
+            if (rootLen > 0) {
+                root = new byte[rootLen];
+                dis.readFully(root);
+            }
         }
+        byte[] expectedRoot = root;
 
-        peer.setCallKey(callKey);
+        return () -> {
+            if (settings.isBlockedById(peer.getId())) {
+                replyFileAck(dos, size);
+                return;
+            }
 
-        int remoteVideoPort = dis.readInt();
-        int remoteAudioPort = dis.readInt();
+            // kiểm tra / force / đổi tên chạy trên DiskWriter, reply gửi từ đó (không chờ hàng đợi ghi ở đây)
+            files.end(peer, transferId, size, expectedRoot, outFile -> {
+                if (outFile == null) {
+                    // còn thiếu chunk → bên gửi gửi lại đúng các chunk đó (FLAG_MERKLE) / resume từ phần đã xác nhận
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(body);
+                    out.writeLong(files.confirmed(peer, transferId));
+                    if (merkle) {
+                        int[] missing = files.missing(peer, transferId);
+                        out.writeInt(missing.length);
+                        for (int index : missing) out.writeInt(index);
+                    }
+                    replyFileAck(dos, 0, body.toByteArray());
+                    return;
+                }
+
+                replyFileAck(dos, size);
+                events.onFileReceived(peer, outFile);
+
+                System.out.println("📥 File received: " + outFile.getAbsolutePath());
+            });
+        };
+    }
 
-        Platform.runLater(() -> {
-            mainUI.setCurrentCallKey(callKey);   // ✅ QUAN TRỌNG
-            mainUI.onCallAccepted(peer, remoteVideoPort, remoteAudioPort, callKey);
-        });
+    /* ================= DIRECTORY ================= */
+    private Action decodeDirBegin(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String transferId = readTransferId(dis);
+        String name = dis.readUTF();
+        int fileCount = dis.readInt();
+        long totalBytes = dis.readLong();
+
+        return () -> {
+            // peer bị chặn: nhận rồi bỏ, như FILE_BEGIN
+            if (!settings.isBlockedById(peer.getId())) {
+                files.beginDirectory(peer, transferId, name);
+                System.out.println("📥 Folder " + name + ": " + fileCount + " files, " + totalBytes + " bytes");
+            }
+            replyDirAck(dos, true);
+        };
     }
 
+    private Action decodeDirData(DataInputStream dis) throws IOException {
+        String transferId = readTransferId(dis);
+        int seq = dis.readInt();
 
+        byte[] iv = new byte[16];
+        dis.readFully(iv);
 
-    /* ================= FILE ================= */
-    private void handleFile(DataInputStream dis) {
-        try {
-            String keyId = dis.readUTF();
-            String fileName = dis.readUTF();
+        byte[] encrypted = new byte[dis.available()];
+        dis.readFully(encrypted);
 
-            if (settings.isBlockedById(keyId)) return;
+        return () -> {
+            if (settings.isBlockedById(peer.getId())) return;
 
-            int ivLen = dis.readInt();
-            byte[] iv = new byte[ivLen];
-            dis.readFully(iv);
+            byte[] records = keyManager.decrypt(messageKeyId(), new IvParameterSpec(iv), encrypted);
 
-            int dataLen = dis.readInt();
-            byte[] encrypted = new byte[dataLen];
-            dis.readFully(encrypted);
+            files.directoryData(peer, transferId, seq, records);
+        };
+    }
+
+    private Action decodeDirEnd(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String transferId = readTransferId(dis);
+        int batches = dis.readInt();
+
+        return () -> {
+            if (settings.isBlockedById(peer.getId())) {
+                replyDirAck(dos, true);
+                return;
+            }
 
-            byte[] plain = keyManager.createDecryptCipher(
-                    keyId,
-                    new IvParameterSpec(iv)
-            ).doFinal(encrypted);
+            files.endDirectory(peer, transferId, batches, dir -> {
+                replyDirAck(dos, dir != null);
+                if (dir == null) return;
 
-            File dir = new File(System.getProperty("user.home"), "Downloads/p2p-chat");
-            if (!dir.exists()) dir.mkdirs();
+                events.onFileReceived(peer, dir);
+                System.out.println("📥 Folder received: " + dir.getAbsolutePath());
+            });
+        };
+    }
+
+    private static void replyDirAck(DataOutputStream dos, boolean ok) throws IOException {
+        // có thể gửi từ DiskWriter → giữ nguyên frame
+        synchronized (dos) {
+            FrameCodec.write(dos, Opcode.DIR_ACK, 0, new byte[]{(byte) (ok ? 1 : 0)}, 0, 1);
+            dos.flush();
+        }
+    }
 
-            File outFile = new File(dir, fileName);
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                fos.write(plain);
+    /* ================= SWARM ================= */
+    private Action decodeSwarmOffer(DataInputStream dis, DataOutputStream dos) throws IOException {
+        Swarm.Offer offer = Swarm.readOffer(dis);
+
+        return () -> {
+            // origin = peer gửi offer, xin mảnh qua cổng dịch vụ của nó (không phải cổng nguồn của kết nối này)
+            boolean accepted = swarms != null
+                    && !settings.isBlockedById(peer.getId())
+                    && swarms.join(new Peer(peer.getAddress(), peer.getServicePort(), peer.getUsername(), ""), offer);
+
+            FrameCodec.write(dos, Opcode.SWARM_JOIN, 0, new byte[]{(byte) (accepted ? 1 : 0)}, 0, 1);
+            dos.flush();
+        };
+    }
+
+    private Action decodeSwarmGet(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String swarmId = dis.readUTF();
+        int piece = dis.readInt();
+
+        return () -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+
+            if (swarms == null || settings.isBlockedById(peer.getId())) {
+                out.writeByte(Swarm.PIECE_MISSING);
+                out.writeInt(0);
+            } else {
+                try (SwarmManager.Upload upload = swarms.serve(swarmId, piece, peer.getId())) {
+                    out.writeByte(upload.status);
+                    out.writeInt(upload.bitfield.length);
+                    out.write(upload.bitfield);
+
+                    if (upload.data != null) {
+                        // lấy token như chunk file: cap toàn cục / mỗi peer, hạ khi đang gọi, hiện trong flows()
+                        upload.flow.acquire(upload.data.length);
+
+                        // mã hoá bằng key người xin đã gửi (như chunk file)
+                        IvParameterSpec spec = CryptoUtils.generateIv();
+                        out.write(spec.getIV());
+                        out.write(keyManager.encrypt(messageKeyId(), spec, upload.data));
+                    }
+                }
             }
 
-            Platform.runLater(() ->
-                    mainUI.onIncomingMessage(peer, "[FILE] Đã nhận: " + outFile.getName())
-            );
+            byte[] reply = body.toByteArray();
+            FrameCodec.write(dos, Opcode.SWARM_PIECE, 0, reply, 0, reply.length);
+            dos.flush();
+        };
+    }
 
-            System.out.println("📥 File received: " + outFile.getAbsolutePath());
+    private static void replyFileAck(DataOutputStream dos, long offset) throws IOException {
+        replyFileAck(dos, 0, ByteBuffer.allocate(8).putLong(offset).array());
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static void replyFileAck(DataOutputStream dos, int flags, byte[] body) throws IOException {
+        // FILE_END reply gửi từ DiskWriter → không xen với reply của thread kết nối
+        synchronized (dos) {
+            FrameCodec.write(dos, Opcode.FILE_ACK, flags, body, 0, body.length);
+            dos.flush();
         }
     }
 }
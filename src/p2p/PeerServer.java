@@ -1,16 +1,21 @@
 package p2p;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * PeerServer
  * ----------
  * TCP server lắng nghe kết nối từ peer khác
+ * - blocking: accept() + ConnectionListener (1 thread / connection)
+ * - NIO: 1 selector thread + worker pool cố định, số thread không tăng theo số connection
  */
 public class PeerServer extends Thread {
 
@@ -18,22 +23,75 @@ public class PeerServer extends Thread {
         void onNewConnection(Socket socket);
     }
 
+    public interface ChannelListener {
+        /**
+         * Tạo handler (không socket) cho 1 kết nối NIO mới
+         */
+        PeerHandler onNewChannel(InetAddress remote);
+    }
+
+    private static final int SELECT_TIMEOUT_MS = 1000;
+    private static final int WORKER_QUEUE_CAPACITY = 1024;
+    // có kết nối chờ submit lại vào worker pool → select ngắn hơn để thử lại sớm
+    private static final int STALLED_RETRY_MS = 10;
+
     private final int port;
     private final ConnectionListener listener;
+    private final ChannelListener channelListener;
 
     private ServerSocket serverSocket;
     private final AtomicBoolean running = new AtomicBoolean(true);
-    private final ExecutorService acceptPool = Executors.newSingleThreadExecutor();
+    private final ExecutorService acceptPool;
+
+    /* ===== NIO ===== */
+    private Selector selector;
+    private final Queue<PeerChannel> wakeups = new ConcurrentLinkedQueue<>();
+    private final Queue<PeerChannel> stalled = new ArrayDeque<>(); // chỉ selector thread
 
     public PeerServer(int port, ConnectionListener listener) {
         this.port = port;
         this.listener = listener;
+        this.channelListener = null;
+        this.acceptPool = Executors.newSingleThreadExecutor();
         setName("PeerServer");
         setDaemon(true);
     }
 
+    /**
+     * Chế độ NIO: lệnh đã decode chạy trên pool workerThreads thread.
+     * Hàng đợi pool đầy → kết nối đó ngừng đọc tới khi submit lại được, selector thread không chạy lệnh.
+     */
+    public PeerServer(int port, ChannelListener channelListener, int workerThreads) {
+        this.port = port;
+        this.listener = null;
+        this.channelListener = channelListener;
+        this.acceptPool = new ThreadPoolExecutor(
+                workerThreads, workerThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WORKER_QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    private final AtomicInteger seq = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "PeerServer-worker-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        setName("PeerServer-NIO");
+        setDaemon(true);
+    }
+
     @Override
     public void run() {
+        if (channelListener != null) runSelector();
+        else runBlocking();
+    }
+
+    private void runBlocking() {
         try {
             serverSocket = new ServerSocket();
             serverSocket.setReuseAddress(true);
@@ -48,6 +106,113 @@ public class PeerServer extends Thread {
         }
     }
 
+    /* ================= NIO ================= */
+
+    private void runSelector() {
+        try (Selector sel = Selector.open();
+             ServerSocketChannel server = ServerSocketChannel.open()) {
+
+            selector = sel;
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(sel, SelectionKey.OP_ACCEPT);
+
+            while (running.get()) {
+                sel.select(stalled.isEmpty() ? SELECT_TIMEOUT_MS : STALLED_RETRY_MS);
+                retryStalled();
+
+                PeerChannel woken;
+                while ((woken = wakeups.poll()) != null) {
+                    try {
+                        woken.onWakeup();
+                    } catch (IOException e) {
+                        woken.close();
+                    }
+                }
+
+                Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept(server, sel);
+                        continue;
+                    }
+
+                    PeerChannel pc = (PeerChannel) key.attachment();
+                    try {
+                        if (key.isReadable() && !pc.onReadable()) {
+                            pc.close();
+                            continue;
+                        }
+                        if (key.isValid() && key.isWritable()) pc.onWritable();
+                    } catch (IOException e) {
+                        pc.close();
+                    }
+                }
+
+                closeIdleChannels(sel);
+            }
+
+            for (SelectionKey key : sel.keys()) {
+                if (key.attachment() instanceof PeerChannel pc) pc.close();
+            }
+
+        } catch (IOException e) {
+            if (running.get()) e.printStackTrace();
+        } finally {
+            acceptPool.shutdownNow();
+        }
+    }
+
+    private void accept(ServerSocketChannel server, Selector sel) throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            InetAddress remote = ((InetSocketAddress) ch.getRemoteAddress()).getAddress();
+            PeerChannel pc = new PeerChannel(ch, channelListener.onNewChannel(remote), acceptPool, this);
+            pc.attach(ch.register(sel, SelectionKey.OP_READ, pc));
+        }
+    }
+
+    private void closeIdleChannels(Selector sel) {
+        for (SelectionKey key : sel.keys()) {
+            if (key.attachment() instanceof PeerChannel pc
+                    && !pc.isReadPaused()
+                    && pc.idleMillis() > PeerHandler.IDLE_TIMEOUT_MS) {
+                pc.close();
+            }
+        }
+    }
+
+    /**
+     * Worker pool từ chối drain của channel (gọi trên selector thread)
+     */
+    void stalled(PeerChannel channel) {
+        stalled.add(channel);
+    }
+
+    private void retryStalled() {
+        for (int n = stalled.size(); n > 0; n--) {
+            PeerChannel pc = stalled.poll();
+            if (!pc.retryDrain()) stalled.add(pc);
+        }
+    }
+
+    /**
+     * Worker báo channel có reply cần ghi / được đọc tiếp
+     */
+    void wakeup(PeerChannel channel) {
+        wakeups.add(channel);
+        Selector sel = selector;
+        if (sel != null) sel.wakeup();
+    }
+
 
     public void shutdown() {
         running.set(false);
@@ -57,6 +222,9 @@ public class PeerServer extends Thread {
             }
         } catch (IOException ignored) {}
 
+        Selector sel = selector;
+        if (sel != null) sel.wakeup();
+
         acceptPool.shutdownNow();
         interrupt();
     }
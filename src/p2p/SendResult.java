@@ -0,0 +1,42 @@
+package p2p;
+
+/**
+ * SendResult
+ * ----------
+ * Kết quả 1 lần gửi thành công qua PeerClient.*Async:
+ * số byte plaintext đã ghi ra socket và thời gian từ lúc xếp hàng tới lúc ghi xong.
+ * Gửi lỗi → future completeExceptionally (IOException, RejectedExecutionException...).
+ */
+public final class SendResult {
+
+    private final String peerId;
+    private final int bytes;
+    private final long latencyNanos;
+
+    public SendResult(String peerId, int bytes, long latencyNanos) {
+        this.peerId = peerId;
+        this.bytes = bytes;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public String getPeerId() {
+        return peerId;
+    }
+
+    public int getBytes() {
+        return bytes;
+    }
+
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    public double getLatencyMillis() {
+        return latencyNanos / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "SendResult{" + peerId + ", " + bytes + "B, " + String.format("%.2f", getLatencyMillis()) + "ms}";
+    }
+}
@@ -0,0 +1,453 @@
+package p2p;
+
+import p2p.protocol.FrameCodec;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Swarm
+ * -----
+ * 1 file phát cho nhiều peer trong LAN (kiểu BitTorrent):
+ * - origin chia file thành mảnh PIECE_SIZE, băm SHA-256 từng mảnh, gửi SWARM_OFFER
+ *   (tên, size, hash, danh sách người nhận còn lại) cho từng người nhận
+ * - người nhận xin mảnh (SWARM_GET) từ nhau và từ origin, reply SWARM_PIECE luôn kèm bitfield
+ *   của bên trả → biết ai có mảnh nào mà không cần broadcast
+ * - origin mỗi mảnh chỉ gửi 1 lần (trừ khi sau REUPLOAD_MS vẫn có người phải xin lại),
+ *   người nhận chỉ hỏi origin khi bitfield mới nhất của mọi người khác đều chưa có mảnh đó
+ *   → origin upload ~1 lần file, phần còn lại đi giữa người nhận với nhau
+ *
+ *   SWARM_OFFER  swarmId | tên | size (u64) | pieceSize | count | count × SHA-256 | n | n × (host | port)
+ *   SWARM_JOIN   accepted (u8)                                        ← reply SWARM_OFFER
+ *   SWARM_GET    swarmId | piece
+ *   SWARM_PIECE  status (u8) | bitfield (u32 + byte) | [IV (16) | AES-CBC(mảnh)]  ← reply SWARM_GET
+ *
+ * Cấu hình: -Dp2p.swarm.pieceSize=1048576
+ */
+public class Swarm {
+
+    public static final int PIECE_SIZE = Integer.getInteger("p2p.swarm.pieceSize", 1024 * 1024);
+
+    // SWARM_PIECE status
+    static final int PIECE_OK = 0;
+    static final int PIECE_MISSING = 1;
+    static final int PIECE_BUSY = 2;   // hết slot upload / origin đã gửi mảnh này, hỏi người khác
+
+    // origin gửi lại mảnh đã gửi nếu sau chừng này vẫn có người không tìm thấy ở ai khác
+    static final long REUPLOAD_MS = 2000;
+    // bitfield của người nhận khác cũ hơn → hỏi lại (dò) trước khi tìm tới origin
+    static final long PROBE_MS = 1000;
+    // origin báo bận cho 1 mảnh → thử mảnh khác một lúc
+    static final long ORIGIN_RETRY_MS = 200;
+    static final long BUSY_BACKOFF_MS = 50;
+    static final long FAIL_BACKOFF_MS = 3000;
+    // mỗi người nhận giữ tối đa chừng này request tới cùng 1 member
+    static final int MAX_INFLIGHT_PER_MEMBER = 2;
+
+    private static final int HASH_SIZE = 32;
+
+    /**
+     * 1 bên có thể xin mảnh: origin hoặc người nhận khác
+     */
+    static final class Member {
+        final Peer peer;
+        final boolean origin;
+        BitSet have = new BitSet();
+        long seenAt;          // lúc nhận bitfield gần nhất
+        long backoffUntil;
+        int inflight;
+
+        Member(Peer peer, boolean origin) {
+            this.peer = peer;
+            this.origin = origin;
+        }
+    }
+
+    /**
+     * Mảnh đã chọn + bên sẽ xin
+     */
+    static final class Pick {
+        final int piece;
+        final Member member;
+
+        Pick(int piece, Member member) {
+            this.piece = piece;
+            this.member = member;
+        }
+    }
+
+    /**
+     * Nội dung SWARM_OFFER
+     */
+    static final class Offer {
+        final String swarmId;
+        final String name;
+        final long size;
+        final int pieceSize;
+        final byte[][] hashes;
+        final List<Peer> members;
+
+        Offer(String swarmId, String name, long size, int pieceSize, byte[][] hashes, List<Peer> members) {
+            this.swarmId = swarmId;
+            this.name = name;
+            this.size = size;
+            this.pieceSize = pieceSize;
+            this.hashes = hashes;
+            this.members = members;
+        }
+    }
+
+    final String id;
+    final String name;
+    final long size;
+    final int pieceSize;
+    final int pieceCount;
+    final boolean origin;
+    private final byte[][] hashes;
+    private final List<Member> members = new ArrayList<>();
+
+    private final BitSet have = new BitSet();
+    private final BitSet inflight = new BitSet();
+
+    // người nhận: lúc origin báo bận cho từng mảnh
+    private final long[] originRefused;
+    // origin: số lần / lúc gửi gần nhất của từng mảnh
+    private final int[] uploads;
+    private final long[] lastUpload;
+
+    private final Object io = new Object();
+    private File file;
+    private final File part;
+    private FileChannel channel;
+
+    private long uploadedBytes;
+    private volatile long lastActive = System.currentTimeMillis();
+
+    private Swarm(String id, String name, long size, int pieceSize, byte[][] hashes, boolean origin,
+                  File file, File part, FileChannel channel) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.pieceSize = pieceSize;
+        this.pieceCount = hashes.length;
+        this.hashes = hashes;
+        this.origin = origin;
+        this.file = file;
+        this.part = part;
+        this.channel = channel;
+        this.originRefused = origin ? null : new long[pieceCount];
+        this.uploads = origin ? new int[pieceCount] : null;
+        this.lastUpload = origin ? new long[pieceCount] : null;
+        if (origin) have.set(0, pieceCount);
+    }
+
+    /**
+     * Origin: băm cả file 1 lượt
+     */
+    static Swarm origin(File file) throws IOException {
+        long size = file.length();
+        int count = (int) Math.max(1, (size + PIECE_SIZE - 1) / PIECE_SIZE);
+        // SWARM_OFFER mang hash của mọi mảnh trong 1 frame
+        if ((size + PIECE_SIZE - 1) / PIECE_SIZE * HASH_SIZE > FrameCodec.MAX_PAYLOAD / 2) {
+            throw new IOException("File too large for swarm: " + size);
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        byte[][] hashes = new byte[count][];
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(PIECE_SIZE);
+            MessageDigest sha = sha256();
+            for (int i = 0; i < count; i++) {
+                read(channel, buf, (long) i * PIECE_SIZE, pieceLength(size, PIECE_SIZE, i));
+                sha.update(buf.array(), 0, buf.limit());
+                hashes[i] = sha.digest();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Swarm(UUID.randomUUID().toString(), file.getName(), size, PIECE_SIZE, hashes, true, file, null, channel);
+    }
+
+    /**
+     * Người nhận: ghi vào <tên>.part trong thư mục download, xong mới đổi tên
+     */
+    static Swarm recipient(Peer originPeer, Offer offer) throws IOException {
+        File dir = FileReceiver.downloadDir();
+        if (!dir.exists()) dir.mkdirs();
+
+        // chỉ lấy tên, không cho peer ghi ra ngoài thư mục download
+        File file = new File(dir, new File(offer.name).getName());
+        File part = new File(dir, file.getName() + ".part");
+        FileChannel channel = FileChannel.open(part.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        Swarm swarm = new Swarm(offer.swarmId, file.getName(), offer.size, offer.pieceSize, offer.hashes, false, file, part, channel);
+        swarm.members.add(new Member(originPeer, true));
+        for (Peer p : offer.members) swarm.members.add(new Member(p, false));
+        return swarm;
+    }
+
+    /* ================= OFFER ================= */
+
+    void writeOffer(DataOutputStream out, List<Peer> others) throws IOException {
+        out.writeUTF(id);
+        out.writeUTF(name);
+        out.writeLong(size);
+        out.writeInt(pieceSize);
+        out.writeInt(pieceCount);
+        for (byte[] hash : hashes) out.write(hash);
+
+        out.writeShort(others.size());
+        for (Peer p : others) {
+            out.writeUTF(p.getIp());
+            out.writeInt(p.getServicePort());
+        }
+    }
+
+    static Offer readOffer(DataInputStream in) throws IOException {
+        String swarmId = in.readUTF();
+        String name = in.readUTF();
+        long size = in.readLong();
+        int pieceSize = in.readInt();
+        int count = in.readInt();
+        if (size < 0 || pieceSize <= 0 || count != Math.max(1, (size + pieceSize - 1) / pieceSize)) {
+            throw new ProtocolException("Invalid SWARM_OFFER: size=" + size + " piece=" + pieceSize + " count=" + count);
+        }
+
+        byte[][] hashes = new byte[count][HASH_SIZE];
+        for (byte[] hash : hashes) in.readFully(hash);
+
+        int n = in.readUnsignedShort();
+        List<Peer> members = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            InetAddress address = InetAddress.getByName(in.readUTF());
+            members.add(new Peer(address, in.readInt(), "", ""));
+        }
+        return new Offer(swarmId, name, size, pieceSize, hashes, members);
+    }
+
+    /* ================= DOWNLOAD (người nhận) ================= */
+
+    /**
+     * Chọn mảnh + bên xin tiếp theo, null nếu hiện chưa có gì để xin (thử lại sau)
+     */
+    synchronized Pick pick(long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        // 1. mảnh hiếm nhất trong số mảnh người nhận khác đã có
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        int start = random.nextInt(pieceCount);
+        for (int k = 0; k < pieceCount; k++) {
+            int piece = (start + k) % pieceCount;
+            if (have.get(piece) || inflight.get(piece)) continue;
+
+            int count = 0;
+            for (Member m : members) {
+                if (!m.origin && m.have.get(piece) && available(m, now)) count++;
+            }
+            if (count > 0 && count < bestCount) {
+                best = piece;
+                bestCount = count;
+            }
+        }
+        if (best >= 0) {
+            Member source = null;
+            for (Member m : members) {
+                if (!m.origin && m.have.get(best) && available(m, now)
+                        && (source == null || m.inflight < source.inflight)) source = m;
+            }
+            return take(best, source);
+        }
+
+        // 2. chưa ai có (theo bitfield cũ) → dò người nhận khác trước, reply nào cũng kèm bitfield
+        List<Member> stale = new ArrayList<>();
+        for (Member m : members) {
+            if (!m.origin && m.inflight == 0 && available(m, now) && now - m.seenAt >= PROBE_MS) stale.add(m);
+        }
+        int piece = randomMissing(now, false);
+        if (piece < 0) return null;
+        if (!stale.isEmpty()) return take(piece, stale.get(random.nextInt(stale.size())));
+
+        // 3. không ai khác có → origin
+        Member originMember = members.get(0);
+        if (!available(originMember, now)) return null;
+        piece = randomMissing(now, true);
+        return piece >= 0 ? take(piece, originMember) : null;
+    }
+
+    private boolean available(Member m, long now) {
+        return m.backoffUntil <= now && m.inflight < MAX_INFLIGHT_PER_MEMBER;
+    }
+
+    private int randomMissing(long now, boolean skipRefused) {
+        int start = ThreadLocalRandom.current().nextInt(pieceCount);
+        for (int k = 0; k < pieceCount; k++) {
+            int piece = (start + k) % pieceCount;
+            if (have.get(piece) || inflight.get(piece)) continue;
+            if (skipRefused && now - originRefused[piece] < ORIGIN_RETRY_MS) continue;
+            return piece;
+        }
+        return -1;
+    }
+
+    private Pick take(int piece, Member member) {
+        inflight.set(piece);
+        member.inflight++;
+        return new Pick(piece, member);
+    }
+
+    /**
+     * Bitfield mới nhất của member (kèm trong mọi SWARM_PIECE)
+     */
+    synchronized void learn(Member member, BitSet bits, long now) {
+        if (!member.origin) member.have = bits;
+        member.seenAt = now;
+    }
+
+    /**
+     * Mảnh xin về: kiểm tra hash rồi ghi vào .part
+     *
+     * @return false nếu hash sai (bỏ mảnh, xin lại chỗ khác)
+     */
+    boolean store(Pick pick, byte[] data, long now) throws IOException {
+        MessageDigest sha = sha256();
+        boolean valid = data.length == pieceLength(size, pieceSize, pick.piece)
+                && MessageDigest.isEqual(sha.digest(data), hashes[pick.piece]);
+
+        if (valid) {
+            ByteBuffer src = ByteBuffer.wrap(data);
+            long offset = (long) pick.piece * pieceSize;
+            while (src.hasRemaining()) offset += channel.write(src, offset);
+        }
+
+        synchronized (this) {
+            inflight.clear(pick.piece);
+            pick.member.inflight--;
+            if (valid) {
+                have.set(pick.piece);
+                lastActive = now;
+            } else {
+                pick.member.backoffUntil = now + FAIL_BACKOFF_MS;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Member không gửi mảnh (không có / bận) hoặc lỗi mạng
+     */
+    synchronized void release(Pick pick, int status, long now) {
+        inflight.clear(pick.piece);
+        pick.member.inflight--;
+        if (status == PIECE_BUSY) {
+            if (pick.member.origin) originRefused[pick.piece] = now;
+            else pick.member.backoffUntil = now + BUSY_BACKOFF_MS;
+        } else if (status != PIECE_MISSING) {
+            pick.member.backoffUntil = now + FAIL_BACKOFF_MS;
+        }
+    }
+
+    synchronized boolean complete() {
+        return have.cardinality() == pieceCount;
+    }
+
+    /**
+     * Đủ mảnh: force, đổi tên .part → file thật, mở lại để tiếp tục cho người khác xin
+     */
+    File finish() throws IOException {
+        synchronized (io) {
+            channel.force(false);
+            channel.close();
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return file;
+    }
+
+    /* ================= UPLOAD ================= */
+
+    /**
+     * Có gửi mảnh này cho người xin không (origin: mỗi mảnh 1 lần / REUPLOAD_MS)
+     */
+    synchronized int serveStatus(int piece, long now) {
+        if (piece < 0 || piece >= pieceCount || !have.get(piece)) return PIECE_MISSING;
+        if (origin) {
+            if (uploads[piece] > 0 && now - lastUpload[piece] < REUPLOAD_MS) return PIECE_BUSY;
+            uploads[piece]++;
+            lastUpload[piece] = now;
+        }
+        uploadedBytes += pieceLength(size, pieceSize, piece);
+        lastActive = now;
+        return PIECE_OK;
+    }
+
+    byte[] readPiece(int piece) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(pieceLength(size, pieceSize, piece));
+        synchronized (io) {
+            read(channel, buf, (long) piece * pieceSize, buf.capacity());
+        }
+        return buf.array();
+    }
+
+    synchronized byte[] bitfield() {
+        return have.toByteArray();
+    }
+
+    synchronized long uploadedBytes() {
+        return uploadedBytes;
+    }
+
+    long lastActive() {
+        return lastActive;
+    }
+
+    void close() throws IOException {
+        synchronized (io) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Người nhận bỏ dở: đóng và xoá .part
+     */
+    void abort() throws IOException {
+        close();
+        if (part != null) Files.deleteIfExists(part.toPath());
+    }
+
+    /* ================= UTIL ================= */
+
+    static int pieceLength(long size, int pieceSize, int piece) {
+        return (int) Math.max(0, Math.min(pieceSize, size - (long) piece * pieceSize));
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buf, long offset, int len) throws IOException {
+        buf.clear().limit(len);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) throw new EOFException("File shrank");
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
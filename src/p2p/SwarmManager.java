@@ -0,0 +1,283 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SwarmManager
+ * ------------
+ * Các Swarm đang phát / đang nhận của app (xem Swarm):
+ * - share(): origin gửi SWARM_OFFER cho từng người nhận, peer bản cũ nhận bằng sendFile như trước
+ * - join(): người nhận chạy DOWNLOAD_WORKERS luồng xin mảnh song song
+ * - serve(): trả mảnh cho SWARM_GET, tối đa UPLOAD_SLOTS mảnh cùng lúc, quá thì báo bận;
+ *   mỗi (swarm, người xin) 1 Flow của BandwidthScheduler → mảnh upload chịu cùng cap / chia phần như chunk file
+ * Nhận xong vẫn cho người khác xin tới khi không ai xin trong SEED_MS.
+ *
+ * Cấu hình: -Dp2p.swarm.workers=4 -Dp2p.swarm.uploadSlots=4 -Dp2p.swarm.seedMillis=300000
+ */
+public class SwarmManager {
+
+    static final int DOWNLOAD_WORKERS = Integer.getInteger("p2p.swarm.workers", 4);
+    static final int UPLOAD_SLOTS = Integer.getInteger("p2p.swarm.uploadSlots", 4);
+    static final long SEED_MS = Long.getLong("p2p.swarm.seedMillis", 5 * 60_000);
+
+    // không nhận thêm được mảnh nào trong chừng này → bỏ
+    static final long STALL_MS = 60_000;
+    private static final long IDLE_POLL_MS = 20;
+
+    /**
+     * Mảnh đã đọc để trả SWARM_GET; close() trả slot upload
+     */
+    public final class Upload implements AutoCloseable {
+        final int status;
+        final byte[] bitfield;
+        final byte[] data;
+        // Flow của người xin, null nếu không có mảnh để gửi
+        final BandwidthScheduler.Flow flow;
+        private final boolean slot;
+
+        private Upload(int status, byte[] bitfield, byte[] data, BandwidthScheduler.Flow flow, boolean slot) {
+            this.status = status;
+            this.bitfield = bitfield;
+            this.data = data;
+            this.flow = flow;
+            this.slot = slot;
+        }
+
+        @Override
+        public void close() {
+            if (slot) uploadSlots.release();
+        }
+    }
+
+    /**
+     * Reply SWARM_PIECE đã giải mã (data null nếu status != PIECE_OK)
+     */
+    public static final class PieceReply {
+        final int status;
+        final BitSet have;
+        final byte[] data;
+
+        PieceReply(int status, BitSet have, byte[] data) {
+            this.status = status;
+            this.have = have;
+            this.data = data;
+        }
+    }
+
+    private final Map<String, Swarm> swarms = new ConcurrentHashMap<>();
+    // swarmId → (peer id người xin → Flow upload), đóng khi bỏ swarm
+    private final Map<String, Map<String, BandwidthScheduler.Flow>> uploadFlows = new ConcurrentHashMap<>();
+    private final Semaphore uploadSlots = new Semaphore(UPLOAD_SLOTS);
+    private final PeerEvents events;
+    private volatile PeerClient client;
+
+    public SwarmManager(PeerEvents events) {
+        this.events = events;
+    }
+
+    public void setPeerClient(PeerClient client) {
+        this.client = client;
+    }
+
+    /* ================= ORIGIN ================= */
+
+    /**
+     * Phát file cho nhiều peer, chạy trên thread gọi (băm file + gửi offer), trả về khi đã mời xong
+     *
+     * @return swarmId, null nếu không phát được
+     */
+    public String share(File file, List<Peer> recipients) {
+        PeerClient client = this.client;
+        if (client == null || recipients.isEmpty()) return null;
+        cleanup();
+
+        Swarm swarm;
+        try {
+            swarm = Swarm.origin(file);
+        } catch (IOException e) {
+            // file quá lớn cho 1 offer / không đọc được → gửi thẳng như peer bản cũ
+            System.err.println("⚠️ Swarm " + file.getName() + ": " + e.getMessage() + ", sending directly");
+            for (Peer recipient : recipients) IoExecutor.execute(() -> client.sendFile(recipient, file));
+            return null;
+        }
+
+        try {
+            swarms.put(swarm.id, swarm);
+            System.out.println("📤 Swarm " + file.getName() + ": " + swarm.pieceCount + " pieces → "
+                    + recipients.size() + " peer(s)");
+
+            for (Peer recipient : recipients) {
+                List<Peer> others = new ArrayList<>(recipients);
+                others.remove(recipient);
+
+                boolean joined;
+                try {
+                    joined = client.sendSwarmOffer(recipient, swarm, others);
+                } catch (Exception e) {
+                    // peer bản cũ (không hiểu SWARM_OFFER) / lỗi mạng → gửi thẳng như trước
+                    System.err.println("⚠️ Swarm offer to " + recipient.getId() + " failed: " + e.getMessage());
+                    joined = false;
+                }
+                if (!joined) IoExecutor.execute(() -> client.sendFile(recipient, file));
+            }
+            return swarm.id;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /* ================= RECIPIENT ================= */
+
+    /**
+     * SWARM_OFFER từ origin: bắt đầu xin mảnh ở nền
+     *
+     * @return false nếu không nhận (chưa có PeerClient / lỗi tạo file)
+     */
+    public boolean join(Peer origin, Swarm.Offer offer) {
+        PeerClient client = this.client;
+        if (client == null) return false;
+        cleanup();
+
+        if (swarms.containsKey(offer.swarmId)) return true; // origin gửi lại offer
+        Swarm swarm;
+        try {
+            swarm = Swarm.recipient(origin, offer);
+        } catch (Exception e) {
+            System.err.println("⚠️ Cannot join swarm " + offer.name + ": " + e.getMessage());
+            return false;
+        }
+        swarms.put(swarm.id, swarm);
+        System.out.println("📥 Swarm " + swarm.name + " (" + swarm.size + " bytes, "
+                + offer.members.size() + " other peer(s))");
+
+        AtomicInteger running = new AtomicInteger(DOWNLOAD_WORKERS);
+        for (int i = 0; i < DOWNLOAD_WORKERS; i++) {
+            IoExecutor.execute(() -> {
+                download(client, swarm);
+                // worker cuối cùng chốt file
+                if (running.decrementAndGet() == 0) finish(origin, swarm);
+            });
+        }
+        return true;
+    }
+
+    private void download(PeerClient client, Swarm swarm) {
+        while (!swarm.complete()) {
+            long now = System.currentTimeMillis();
+            if (now - swarm.lastActive() > STALL_MS) return;
+
+            Swarm.Pick pick = swarm.pick(now);
+            if (pick == null) {
+                try {
+                    Thread.sleep(IDLE_POLL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                PieceReply reply = client.requestPiece(pick.member.peer, swarm.id, pick.piece);
+                now = System.currentTimeMillis();
+                swarm.learn(pick.member, reply.have, now);
+
+                if (reply.status == Swarm.PIECE_OK) {
+                    if (!swarm.store(pick, reply.data, now)) {
+                        System.err.println("⚠️ Swarm " + swarm.name + ": bad piece " + pick.piece
+                                + " from " + pick.member.peer.getId());
+                    }
+                } else {
+                    swarm.release(pick, reply.status, now);
+                }
+            } catch (Exception e) {
+                swarm.release(pick, -1, System.currentTimeMillis());
+            }
+        }
+    }
+
+    private void finish(Peer origin, Swarm swarm) {
+        try {
+            if (!swarm.complete()) {
+                System.err.println("❌ Swarm " + swarm.name + " stalled, giving up");
+                swarms.remove(swarm.id, swarm);
+                closeUploadFlows(swarm);
+                swarm.abort();
+                return;
+            }
+
+            File file = swarm.finish();
+            events.onFileReceived(origin, file);
+            System.out.println("📥 File received: " + file.getAbsolutePath());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* ================= UPLOAD ================= */
+
+    /**
+     * Trả lời SWARM_GET (gọi từ PeerHandler); dùng trong try-with-resources
+     */
+    public Upload serve(String swarmId, int piece, String requesterId) throws Exception {
+        Swarm swarm = swarms.get(swarmId);
+        if (swarm == null) return new Upload(Swarm.PIECE_MISSING, new byte[0], null, null, false);
+
+        if (!uploadSlots.tryAcquire()) return new Upload(Swarm.PIECE_BUSY, swarm.bitfield(), null, null, false);
+        try {
+            int status = swarm.serveStatus(piece, System.currentTimeMillis());
+            byte[] data = status == Swarm.PIECE_OK ? swarm.readPiece(piece) : null;
+            BandwidthScheduler.Flow flow = data != null ? uploadFlow(swarm, requesterId) : null;
+            return new Upload(status, swarm.bitfield(), data, flow, true);
+        } catch (Exception e) {
+            uploadSlots.release();
+            throw e;
+        }
+    }
+
+    private BandwidthScheduler.Flow uploadFlow(Swarm swarm, String requesterId) {
+        return uploadFlows.computeIfAbsent(swarm.id, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(requesterId, peerId ->
+                        BandwidthScheduler.shared().open(peerId, swarm.name + " (swarm)", BandwidthScheduler.WEIGHT_NORMAL));
+    }
+
+    private void closeUploadFlows(Swarm swarm) {
+        Map<String, BandwidthScheduler.Flow> flows = uploadFlows.remove(swarm.id);
+        if (flows != null) flows.values().forEach(BandwidthScheduler.Flow::close);
+    }
+
+    /**
+     * Số byte swarm đã upload (origin: đo mức giảm tải so với gửi riêng từng peer)
+     */
+    public long uploadedBytes(String swarmId) {
+        Swarm swarm = swarms.get(swarmId);
+        return swarm != null ? swarm.uploadedBytes() : 0;
+    }
+
+    /**
+     * Bỏ swarm đã xong và không ai xin trong SEED_MS
+     */
+    private void cleanup() {
+        long now = System.currentTimeMillis();
+        for (Swarm swarm : swarms.values()) {
+            if (swarm.complete() && now - swarm.lastActive() > SEED_MS && swarms.remove(swarm.id, swarm)) {
+                if (swarm.origin) {
+                    System.out.printf("📤 Swarm %s done: origin uploaded %.1f× file%n",
+                            swarm.name, swarm.uploadedBytes() / (double) Math.max(1, swarm.size));
+                }
+                closeUploadFlows(swarm);
+                try {
+                    swarm.close();
+                } catch (Exception ignored) {}
+            }
+        }
+    }
+}
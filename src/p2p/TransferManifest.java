@@ -0,0 +1,186 @@
+package p2p;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * TransferManifest
+ * ----------------
+ * Checkpoint của 1 transfer file, lưu dạng properties trong ~/.p2p-chat/transfers:
+ * - out-<transferId>: phía gửi nhớ transferId cho (peer, file) → gửi lại dùng đúng id cũ
+ * - in-<transferId>:  phía nhận nhớ số chunk liên tiếp đã ghi xuống đĩa (+ file .part)
+ * Mất kết nối / tắt app giữa chừng → FILE_BEGIN lần sau tiếp tục từ chunk `next`.
+ *
+ * Cấu hình: -Dp2p.transfers.dir=... (load test dùng thư mục tạm)
+ */
+public class TransferManifest {
+
+    // transfer bỏ dở quá lâu → xoá manifest, gửi lại từ đầu
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File file;
+    private final Properties props = new Properties();
+
+    private TransferManifest(File file) {
+        this.file = file;
+    }
+
+    static File baseDir() {
+        String custom = System.getProperty("p2p.transfers.dir");
+        return custom != null
+                ? new File(custom)
+                : new File(System.getProperty("user.home"), ".p2p-chat" + File.separator + "transfers");
+    }
+
+    /**
+     * transferId của peer gửi sang → không cho thoát khỏi baseDir (PeerHandler đã chặn id không phải UUID)
+     */
+    private static File manifestFile(String prefix, String transferId) {
+        File dir = baseDir();
+        File f = new File(dir, prefix + transferId + ".properties");
+        if (!dir.equals(f.getParentFile())) throw new IllegalArgumentException("Invalid transferId: " + transferId);
+        return f;
+    }
+
+    /* ================= OUTGOING ================= */
+
+    public static TransferManifest outgoing(String transferId, String peerId, File source, int chunkSize) {
+        TransferManifest m = new TransferManifest(manifestFile("out-", transferId));
+        m.props.setProperty("transferId", transferId);
+        m.props.setProperty("peerId", peerId);
+        m.props.setProperty("path", source.getAbsolutePath());
+        m.props.setProperty("size", String.valueOf(source.length()));
+        m.props.setProperty("lastModified", String.valueOf(source.lastModified()));
+        m.props.setProperty("chunkSize", String.valueOf(chunkSize));
+        m.props.setProperty("next", "0");
+        return m;
+    }
+
+    /**
+     * Manifest gửi dở của đúng file này (cùng peer, đường dẫn, size, thời điểm sửa)
+     */
+    public static TransferManifest findOutgoing(String peerId, File source) {
+        for (TransferManifest m : listOutgoing()) {
+            if (peerId.equals(m.peerId())
+                    && source.getAbsolutePath().equals(m.path())
+                    && source.length() == m.size()
+                    && source.lastModified() == m.getLong("lastModified")) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    public static List<TransferManifest> listOutgoing() {
+        List<TransferManifest> result = new ArrayList<>();
+        File[] files = baseDir().listFiles((d, name) -> name.startsWith("out-") && name.endsWith(".properties"));
+        if (files == null) return result;
+
+        for (File f : files) {
+            TransferManifest m = load(f);
+            if (m != null) result.add(m);
+        }
+        return result;
+    }
+
+    /* ================= INCOMING ================= */
+
+    public static TransferManifest incoming(String transferId, String peerId, File part, long size, int chunkSize) {
+        TransferManifest m = new TransferManifest(manifestFile("in-", transferId));
+        m.props.setProperty("transferId", transferId);
+        m.props.setProperty("peerId", peerId);
+        m.props.setProperty("path", part.getAbsolutePath());
+        m.props.setProperty("size", String.valueOf(size));
+        m.props.setProperty("chunkSize", String.valueOf(chunkSize));
+        m.props.setProperty("next", "0");
+        return m;
+    }
+
+    /**
+     * Manifest nhận dở khớp FILE_BEGIN (cùng peer, size, chunkSize) và file .part còn đủ dữ liệu
+     */
+    public static TransferManifest findIncoming(String transferId, String peerId, long size, int chunkSize) {
+        TransferManifest m = load(manifestFile("in-", transferId));
+        if (m == null) return null;
+
+        File part = new File(m.path());
+        if (!peerId.equals(m.peerId())
+                || m.size() != size
+                || m.chunkSize() != chunkSize
+                || !part.exists()
+                || part.length() < Math.min(size, m.next() * chunkSize)) {
+            m.delete();
+            return null;
+        }
+        return m;
+    }
+
+    /* ================= LOAD / SAVE ================= */
+
+    private static TransferManifest load(File f) {
+        if (!f.exists()) return null;
+        if (System.currentTimeMillis() - f.lastModified() > MAX_AGE_MS) {
+            f.delete();
+            return null;
+        }
+
+        TransferManifest m = new TransferManifest(f);
+        try (InputStream in = new FileInputStream(f)) {
+            m.props.load(in);
+            return m;
+        } catch (IOException | IllegalArgumentException e) {
+            f.delete(); // manifest hỏng → coi như chưa gửi
+            return null;
+        }
+    }
+
+    public synchronized void save() {
+        try {
+            File dir = file.getParentFile();
+            if (!dir.exists()) dir.mkdirs();
+
+            // ghi file tạm rồi rename → tắt app giữa lúc ghi không làm hỏng manifest cũ
+            File tmp = new File(dir, file.getName() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                props.store(out, "P2P Chat transfer");
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Cannot save transfer manifest " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    /* ================= FIELDS ================= */
+
+    public String transferId() { return props.getProperty("transferId"); }
+    public String peerId() { return props.getProperty("peerId"); }
+    public String path() { return props.getProperty("path"); }
+    public long size() { return getLong("size"); }
+    public int chunkSize() { return (int) getLong("chunkSize"); }
+
+    /**
+     * Số chunk liên tiếp từ đầu đã được xác nhận (phía nhận: đã force xuống đĩa)
+     */
+    public synchronized long next() { return getLong("next"); }
+
+    public synchronized void setNext(long next) {
+        props.setProperty("next", String.valueOf(next));
+    }
+
+    private long getLong(String key) {
+        try {
+            return Long.parseLong(props.getProperty(key, "-1"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package p2p;
+
+import java.util.Arrays;
+
+/**
+ * VideoFec
+ * --------
+ * Chunk chẵn lẻ XOR cho frame video: mất 1 chunk trong 1 nhóm → bên nhận dựng lại, không mất cả frame.
+ *
+ * Frame `total` chunk dữ liệu, `groups` = ceil(total × OVERHEAD) nhóm, chunk i thuộc nhóm i % groups
+ * (xen kẽ → mất liên tiếp vài gói rơi vào nhiều nhóm khác nhau). Mỗi nhóm thêm 1 packet:
+ *
+ *   header VideoFrameAssembler: frameId | index = total + nhóm | total | len
+ *   payload: groups (u8) | XOR độ dài các chunk (u16) | XOR nội dung (đệm 0 tới chunk dài nhất)
+ *
+ * Peer bản cũ bỏ qua packet có index >= total → tương thích. index u8 → total + groups <= 255.
+ *
+ * Cấu hình: -Dp2p.video.fec=0.1 (số chunk chẵn lẻ / chunk dữ liệu, 0 = tắt)
+ */
+final class VideoFec {
+
+    static final double OVERHEAD = Double.parseDouble(System.getProperty("p2p.video.fec", "0.1"));
+
+    private static final int MAX_INDEX = 255;
+    private static final int PARITY_HEADER = 3;
+
+    private VideoFec() {
+    }
+
+    /**
+     * Số chunk dữ liệu tối đa để còn chỗ cho chunk chẵn lẻ trong index u8
+     */
+    static int maxDataChunks() {
+        return OVERHEAD > 0 ? (int) (MAX_INDEX / (1 + OVERHEAD)) : MAX_INDEX;
+    }
+
+    static int groups(int total) {
+        if (OVERHEAD <= 0 || total == 0) return 0;
+        return Math.min((int) Math.ceil(total * OVERHEAD), MAX_INDEX - total);
+    }
+
+    /**
+     * Packet chẵn lẻ cho các packet dữ liệu của 1 frame (kết quả VideoSender.packetize)
+     */
+    static byte[][] parity(int frameId, byte[][] packets, int groups) {
+        int total = packets.length;
+        int h = VideoFrameAssembler.HEADER_SIZE;
+        byte[][] out = new byte[groups][];
+
+        for (int g = 0; g < groups; g++) {
+            int maxLen = 0;
+            for (int i = g; i < total; i += groups) maxLen = Math.max(maxLen, packets[i].length - h);
+
+            int len = PARITY_HEADER + maxLen;
+            byte[] p = new byte[h + len];
+            p[0] = (byte) (frameId >> 8);
+            p[1] = (byte) frameId;
+            p[2] = (byte) (total + g);
+            p[3] = (byte) total;
+            p[4] = (byte) (len >> 8);
+            p[5] = (byte) len;
+            p[h] = (byte) groups;
+
+            int lenXor = 0;
+            for (int i = g; i < total; i += groups) {
+                byte[] c = packets[i];
+                lenXor ^= c.length - h;
+                for (int j = h; j < c.length; j++) p[h + PARITY_HEADER + j - h] ^= c[j];
+            }
+            p[h + 1] = (byte) (lenXor >> 8);
+            p[h + 2] = (byte) lenXor;
+            out[g] = p;
+        }
+        return out;
+    }
+
+    /**
+     * Số nhóm ghi trong payload chẵn lẻ, -1 nếu payload hỏng
+     */
+    static int groupsOf(byte[] parity) {
+        return parity.length < PARITY_HEADER ? -1 : parity[0] & 0xFF;
+    }
+
+    /**
+     * Dựng lại chunk `missing` (chunk duy nhất còn thiếu của nhóm `group`)
+     *
+     * @param chunks payload các chunk dữ liệu (không header), null = chưa có
+     * @return payload chunk bị mất, null nếu parity không khớp
+     */
+    static byte[] rebuild(byte[] parity, byte[][] chunks, int group, int groups, int missing) {
+        int lenXor = ((parity[1] & 0xFF) << 8) | (parity[2] & 0xFF);
+        byte[] out = Arrays.copyOfRange(parity, PARITY_HEADER, parity.length);
+
+        for (int i = group; i < chunks.length; i += groups) {
+            if (i == missing) continue;
+            byte[] c = chunks[i];
+            if (c.length > out.length) return null;
+            lenXor ^= c.length;
+            for (int j = 0; j < c.length; j++) out[j] ^= c[j];
+        }
+        return lenXor <= out.length ? Arrays.copyOf(out, lenXor) : null;
+    }
+}
@@ -0,0 +1,211 @@
+package p2p;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * VideoFeedback
+ * -------------
+ * Phản hồi chất lượng video bên nhận → bên gửi, mỗi REPORT_MS gửi 1 gói UDP ngược về địa chỉ nguồn
+ * của packet video (socket gửi của VideoSender), mã hoá luồng MediaCrypto.STREAM_VIDEO_FEEDBACK:
+ *
+ *   REPORT (u8 = 1) | frames (u16) | lost (u16) | late (u16) | packet loss ‰ (u16) | jitter ms (u16)
+ *                   | FEC recovered (u16)
+ *   NACK   (u8 = 2) | frameId (u16) | n (u8) | index chunk (u8) × n        ← ngay khi thấy thiếu chunk
+ *
+ * - frames: frame ghép đủ trong kỳ; lost: frame thiếu chunk (timeout / bị đẩy) + frameId bị nhảy qua
+ * - late: frame ghép lâu hơn LATE_MS, hoặc xong sau frame mới hơn (không hiển thị)
+ * - packet loss: chunk thiếu / chunk cần của các frame đã xong trong kỳ, sau khi bù bằng chẵn lẻ
+ * - FEC recovered: frame chỉ đủ nhờ chẵn lẻ (VideoFec) → bên gửi thấy mạng đang mất gói dù frame vẫn tới
+ * - jitter: độ lệch trung bình (EWMA 1/16) của khoảng cách giữa 2 frame ghép xong
+ * NACK: VideoFrameAssembler thấy chunk thiếu mà chẵn lẻ không bù được → VideoSender gửi lại từ bộ đệm
+ * các frame vừa gửi (chỉ frame chưa quá FRAME_TIMEOUT_MS, quá rồi thì bên nhận cũng đã bỏ).
+ * Peer bản cũ không gửi / không đọc phản hồi → VideoSender giữ mức mặc định (VideoQuality).
+ *
+ * Bộ đếm bên nhận: chỉ thread VideoReceiver dùng (không khoá).
+ */
+final class VideoFeedback {
+
+    static final int TYPE_REPORT = 1;
+    static final int TYPE_NACK = 2;
+    static final long REPORT_MS = 500;
+    static final int LATE_MS = 100;
+
+    private static final long JITTER_RESET_NANOS = 1_000_000_000L;
+
+    /**
+     * 1 kỳ báo cáo
+     */
+    static final class Report {
+        static final int SIZE = 13;
+
+        final int frames, lost, late, packetLoss, jitterMs, recovered;
+
+        Report(int frames, int lost, int late, int packetLoss, int jitterMs, int recovered) {
+            this.frames = frames;
+            this.lost = lost;
+            this.late = late;
+            this.packetLoss = packetLoss;
+            this.jitterMs = jitterMs;
+            this.recovered = recovered;
+        }
+
+        byte[] toBytes() {
+            byte[] b = new byte[SIZE];
+            b[0] = TYPE_REPORT;
+            put16(b, 1, frames);
+            put16(b, 3, lost);
+            put16(b, 5, late);
+            put16(b, 7, packetLoss);
+            put16(b, 9, jitterMs);
+            put16(b, 11, recovered);
+            return b;
+        }
+
+        /**
+         * @return null nếu không phải REPORT
+         */
+        static Report parse(byte[] b) {
+            if (b.length < SIZE || b[0] != TYPE_REPORT) return null;
+            return new Report(get16(b, 1), get16(b, 3), get16(b, 5), get16(b, 7), get16(b, 9), get16(b, 11));
+        }
+
+        @Override
+        public String toString() {
+            return "frames " + frames + ", lost " + lost + ", late " + late
+                    + ", packet loss " + packetLoss + "‰, jitter " + jitterMs + " ms, FEC recovered " + recovered;
+        }
+    }
+
+    /**
+     * Xin gửi lại các chunk của 1 frame
+     */
+    static final class Nack {
+        final int frameId;
+        final int[] indices;
+
+        Nack(int frameId, int[] indices) {
+            this.frameId = frameId;
+            this.indices = indices;
+        }
+
+        byte[] toBytes() {
+            byte[] b = new byte[4 + indices.length];
+            b[0] = TYPE_NACK;
+            put16(b, 1, frameId);
+            b[3] = (byte) indices.length;
+            for (int i = 0; i < indices.length; i++) b[4 + i] = (byte) indices[i];
+            return b;
+        }
+
+        /**
+         * @return null nếu không phải NACK
+         */
+        static Nack parse(byte[] b) {
+            if (b.length < 4 || b[0] != TYPE_NACK) return null;
+            int n = Math.min(b[3] & 0xFF, b.length - 4);
+            int[] indices = new int[n];
+            for (int i = 0; i < n; i++) indices[i] = b[4 + i] & 0xFF;
+            return new Nack(get16(b, 1), indices);
+        }
+    }
+
+    private final ArrayDeque<Nack> nacks = new ArrayDeque<>();
+
+    private int frames, lost, late, recovered;
+    private long chunksExpected, chunksReceived;
+
+    private long lastFrameAt = -1;
+    private double interval = -1;
+    private double jitter = 0;
+
+    private long lastReportAt = System.currentTimeMillis();
+
+    /* ================= COUNTERS (VideoFrameAssembler / VideoReceiver) ================= */
+
+    /**
+     * frameId nhảy qua `n` frame không có chunk nào
+     */
+    void framesSkipped(int n) {
+        lost += n;
+    }
+
+    /**
+     * Frame rời bộ đệm ghép: đủ chunk (received == expected) hoặc bị bỏ
+     */
+    void frameDone(int expected, int received, int fecRecovered, long assemblyMs) {
+        chunksExpected += expected;
+        chunksReceived += received;
+        if (fecRecovered > 0 && received == expected) recovered++;
+        if (received < expected) lost++;
+        else if (assemblyMs > LATE_MS) late++;
+    }
+
+    /**
+     * Frame ghép xong nhưng frame mới hơn đã hiển thị
+     */
+    void frameLate() {
+        late++;
+    }
+
+    /**
+     * Frame ghép xong và được hiển thị
+     */
+    void frameShown(long nowNanos) {
+        frames++;
+        if (lastFrameAt >= 0) {
+            long gap = nowNanos - lastFrameAt;
+            if (gap > JITTER_RESET_NANOS) {
+                // bên gửi tạm dừng → không tính vào jitter
+                interval = -1;
+            } else if (interval < 0) {
+                interval = gap;
+            } else {
+                jitter += (Math.abs(gap - interval) - jitter) / 16;
+                interval += (gap - interval) / 16;
+            }
+        }
+        lastFrameAt = nowNanos;
+    }
+
+    /**
+     * Chunk thiếu cần xin lại (VideoFrameAssembler), VideoReceiver gửi qua pollNack()
+     */
+    void nack(int frameId, int[] indices, int n) {
+        nacks.add(new Nack(frameId, Arrays.copyOf(indices, n)));
+    }
+
+    Nack pollNack() {
+        return nacks.poll();
+    }
+
+    /**
+     * @return báo cáo của kỳ vừa xong (và bắt đầu kỳ mới), null nếu chưa tới lúc / kỳ không có gì
+     */
+    Report poll(long nowMs) {
+        if (nowMs - lastReportAt < REPORT_MS) return null;
+        lastReportAt = nowMs;
+        if (frames == 0 && lost == 0 && late == 0) return null;
+
+        int packetLoss = chunksExpected == 0 ? 0
+                : (int) ((chunksExpected - chunksReceived) * 1000 / chunksExpected);
+        Report r = new Report(clamp(frames), clamp(lost), clamp(late), packetLoss, clamp((long) (jitter / 1e6)), clamp(recovered));
+
+        frames = lost = late = recovered = 0;
+        chunksExpected = chunksReceived = 0;
+        return r;
+    }
+
+    private static int clamp(long v) {
+        return (int) Math.min(v, 0xFFFF);
+    }
+
+    private static void put16(byte[] b, int off, int v) {
+        b[off] = (byte) (v >> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    private static int get16(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+}
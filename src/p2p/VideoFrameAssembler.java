@@ -0,0 +1,340 @@
+package p2p;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VideoFrameAssembler
+ * -------------------
+ * Ghép các chunk UDP của VideoSender thành 1 frame (IV + ciphertext).
+ * Header 6 byte: frameId (u16) | index (u8) | total (u8) | len (u16)
+ * - bỏ frame quá cũ (anti-lag), giữ tối đa MAX_BUFFERED_FRAMES frame dở dang
+ * - frame không đủ chunk sau FRAME_TIMEOUT_MS bị bỏ
+ * Frame xong / bị bỏ / frameId bị nhảy qua được đếm vào VideoFeedback (nếu có).
+ * Packet chẵn lẻ (index >= total, xem VideoFec): thiếu đúng 1 chunk trong nhóm → dựng lại chunk đó.
+ * NACK (qua VideoFeedback): chunk còn thiếu khi đã qua phần dữ liệu của frame (tới packet chẵn lẻ,
+ * hoặc tới chunk sau nếu bên gửi không gửi chẵn lẻ, hoặc frame mới hơn đã bắt đầu) → xin gửi lại,
+ * tối đa MAX_NACKS lần / chunk cách nhau NACK_RETRY_MS, chỉ khi frame chưa quá FRAME_TIMEOUT_MS.
+ */
+public class VideoFrameAssembler {
+
+    public static final int HEADER_SIZE = 6;
+
+    static final int FRAME_TIMEOUT_MS = 300; // drop frame quá trễ
+    private static final int MAX_BUFFERED_FRAMES = 5;
+
+    private static final int MAX_NACKS = 2;
+    private static final int NACK_RETRY_MS = 30;
+
+    // ===== Frame buffer =====
+    private static class FrameBuffer {
+        byte[][] chunks;
+        int received;
+        int expected;
+        long firstSeen;
+
+        // FEC: payload chẵn lẻ theo nhóm, groups = 0 khi chưa nhận packet chẵn lẻ nào
+        byte[][] parity;
+        int groups;
+        int recovered;
+
+        // NACK: số lần đã xin mỗi chunk (null = chưa xin gì), index chunk dữ liệu kế tiếp theo thứ tự
+        byte[] nacked;
+        long lastNackAt;
+        int nextIndex;
+    }
+
+    // frame đã xong / đã bỏ gần đây: packet tới muộn (chẵn lẻ gửi sau dữ liệu, gói lặp) không mở lại frame
+    private static final int RECENT = 16;
+
+    // frameId -> FrameBuffer
+    private final Map<Integer, FrameBuffer> frameMap = new ConcurrentHashMap<>();
+
+    // để bỏ frame cũ (anti-lag)
+    private volatile int latestFrameId = -1;
+    // frame ghép xong gần nhất: frame cũ hơn xong sau đó không trả ra (ảnh giật lùi)
+    private int latestCompleteId = -1;
+
+    private final int[] recent = new int[RECENT];
+    private int recentPos = 0;
+
+    // đã thấy packet chẵn lẻ → bên gửi có FEC, chờ chẵn lẻ rồi mới NACK
+    private boolean paritySeen = false;
+    private final int[] nackScratch = new int[256];
+
+    // ===== FEC stats =====
+    private long fecRecoveredChunks, fecRecoveredFrames, unrecoverableFrames;
+    private long nackedChunks, nackRepairedChunks;
+
+    private final VideoFeedback feedback;
+
+    public VideoFrameAssembler() {
+        this(null);
+    }
+
+    VideoFrameAssembler(VideoFeedback feedback) {
+        this.feedback = feedback;
+        Arrays.fill(recent, -1);
+    }
+
+    /**
+     * Chunk dựng lại được nhờ chẵn lẻ
+     */
+    public long fecRecoveredChunks() {
+        return fecRecoveredChunks;
+    }
+
+    /**
+     * Frame chỉ đủ nhờ chẵn lẻ
+     */
+    public long fecRecoveredFrames() {
+        return fecRecoveredFrames;
+    }
+
+    /**
+     * Chunk đã xin gửi lại (tính cả lần xin lại)
+     */
+    public long nackedChunks() {
+        return nackedChunks;
+    }
+
+    /**
+     * Chunk xin lại đã tới
+     */
+    public long nackRepairedChunks() {
+        return nackRepairedChunks;
+    }
+
+    /**
+     * Frame bỏ vì thiếu chunk (chẵn lẻ / gửi lại không đủ bù)
+     */
+    public long unrecoverableFrames() {
+        return unrecoverableFrames;
+    }
+
+    /**
+     * Nhận 1 packet
+     * @return payload đầy đủ của frame nếu packet này là chunk cuối, ngược lại null
+     */
+    public byte[] accept(byte[] buf, int length) {
+        byte[] data = Arrays.copyOf(buf, length);
+
+        if (data.length < HEADER_SIZE) return null;
+
+        // ===== Parse header =====
+        int frameId = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+        int index   = data[2] & 0xFF;
+        int total   = data[3] & 0xFF;
+        int len     = ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+
+        if (total == 0 || data.length < HEADER_SIZE + len) return null;
+        if (!frameMap.containsKey(frameId) && isRecent(frameId)) return null;
+
+        // ===== Anti-lag: drop frame cũ =====
+        // frame cũ hơn nhưng còn đang ghép (chunk gửi lại) vẫn nhận
+        boolean newest = true;
+        if (latestFrameId != -1) {
+            int diff = (frameId - latestFrameId) & 0xFFFF;
+            if (diff > 30000) {
+                if (!frameMap.containsKey(frameId)) return null; // frame quá cũ
+                newest = false;
+            } else if (diff > 1 && feedback != null) {
+                feedback.framesSkipped(diff - 1);
+            }
+        }
+
+        if (newest) {
+            // frame mới bắt đầu → chunk cuối của các frame trước không còn tới theo thứ tự nữa
+            if (frameId != latestFrameId) requestMissingAll(System.currentTimeMillis(), false);
+            latestFrameId = frameId;
+        }
+
+        // ===== Limit buffer =====
+        if (frameMap.size() > MAX_BUFFERED_FRAMES) {
+            dropOldestFrame();
+        }
+
+        // ===== Buffer frame =====
+        FrameBuffer fb = frameMap.computeIfAbsent(frameId, k -> {
+            FrameBuffer f = new FrameBuffer();
+            f.chunks = new byte[total][];
+            f.expected = total;
+            f.firstSeen = System.currentTimeMillis();
+            return f;
+        });
+
+        if (total != fb.expected) return null;
+
+        int group;
+        if (index >= total) {
+            // ===== Parity =====
+            paritySeen = true;
+            byte[] parity = Arrays.copyOfRange(data, HEADER_SIZE, HEADER_SIZE + len);
+            int groups = VideoFec.groupsOf(parity);
+            group = index - total;
+            if (groups <= group || (fb.groups != 0 && groups != fb.groups)) return null;
+            if (fb.parity == null) {
+                fb.groups = groups;
+                fb.parity = new byte[groups][];
+            }
+            fb.parity[group] = parity;
+        } else {
+            if (fb.chunks[index] == null) {
+                fb.chunks[index] = Arrays.copyOfRange(data, HEADER_SIZE, HEADER_SIZE + len);
+                fb.received++;
+                if (fb.nacked != null && fb.nacked[index] > 0) nackRepairedChunks++;
+            }
+            group = fb.groups != 0 ? index % fb.groups : -1;
+        }
+
+        // chunk nhảy cóc → [nextIndex, index) thiếu (hoặc tới không theo thứ tự)
+        int gapEnd = index < total && index > fb.nextIndex ? index : -1;
+        if (index < total) fb.nextIndex = Math.max(fb.nextIndex, index + 1);
+
+        if (group >= 0 && fb.received < fb.expected) recover(fb, group);
+
+        // ===== NACK =====
+        if (fb.received < fb.expected) {
+            long now = System.currentTimeMillis();
+            if (index >= total) requestMissing(frameId, fb, total, now);
+            else if (!paritySeen && gapEnd > 0) requestMissing(frameId, fb, gapEnd, now);
+        }
+
+        byte[] complete = null;
+
+        // ===== Frame complete =====
+        if (fb.received == fb.expected) {
+            frameMap.remove(frameId);
+            remember(frameId);
+            if (fb.recovered > 0) {
+                fecRecoveredChunks += fb.recovered;
+                fecRecoveredFrames++;
+            }
+            long assemblyMs = System.currentTimeMillis() - fb.firstSeen;
+            if (latestCompleteId != -1 && ((frameId - latestCompleteId) & 0xFFFF) > 30000) {
+                if (feedback != null) {
+                    feedback.frameDone(fb.expected, fb.received, fb.recovered, 0);
+                    feedback.frameLate();
+                }
+            } else {
+                latestCompleteId = frameId;
+                complete = join(fb);
+                if (feedback != null) feedback.frameDone(fb.expected, fb.received, fb.recovered, assemblyMs);
+            }
+        }
+
+        cleanupTimeoutFrames();
+        return complete;
+    }
+
+    /**
+     * Nhóm `group` thiếu đúng 1 chunk và đã có chẵn lẻ → dựng lại
+     */
+    private static void recover(FrameBuffer fb, int group) {
+        byte[] parity = fb.parity[group];
+        if (parity == null) return;
+
+        int missing = -1;
+        for (int i = group; i < fb.expected; i += fb.groups) {
+            if (fb.chunks[i] != null) continue;
+            if (missing >= 0) return; // thiếu >= 2
+            missing = i;
+        }
+        if (missing < 0) return;
+
+        byte[] chunk = VideoFec.rebuild(parity, fb.chunks, group, fb.groups, missing);
+        if (chunk == null) return;
+        fb.chunks[missing] = chunk;
+        fb.received++;
+        fb.recovered++;
+    }
+
+    /**
+     * Xin lại các chunk < upTo còn thiếu: chunk chưa xin → xin ngay, đã xin → chờ NACK_RETRY_MS
+     */
+    private void requestMissing(int frameId, FrameBuffer fb, int upTo, long now) {
+        if (feedback == null || now - fb.firstSeen > FRAME_TIMEOUT_MS - NACK_RETRY_MS) return;
+
+        boolean retry = now - fb.lastNackAt >= NACK_RETRY_MS;
+        int n = 0;
+        for (int i = 0; i < upTo; i++) {
+            if (fb.chunks[i] != null) continue;
+            if (fb.nacked == null) fb.nacked = new byte[fb.expected];
+            int count = fb.nacked[i];
+            if (count >= MAX_NACKS || (count > 0 && !retry)) continue;
+            fb.nacked[i]++;
+            nackScratch[n++] = i;
+        }
+        if (n == 0) return;
+
+        fb.lastNackAt = now;
+        nackedChunks += n;
+        feedback.nack(frameId, nackScratch, n);
+    }
+
+    /**
+     * @param retriesOnly true: chỉ frame đã NACK mà chưa đủ (xin lại sau NACK_RETRY_MS)
+     */
+    private void requestMissingAll(long now, boolean retriesOnly) {
+        if (feedback == null) return;
+        for (Map.Entry<Integer, FrameBuffer> e : frameMap.entrySet()) {
+            FrameBuffer fb = e.getValue();
+            if (retriesOnly && (fb.lastNackAt == 0 || now - fb.lastNackAt < NACK_RETRY_MS)) continue;
+            requestMissing(e.getKey(), fb, fb.expected, now);
+        }
+    }
+
+    private boolean isRecent(int frameId) {
+        for (int id : recent) if (id == frameId) return true;
+        return false;
+    }
+
+    private void remember(int frameId) {
+        recent[recentPos] = frameId;
+        recentPos = (recentPos + 1) % RECENT;
+    }
+
+    private static byte[] join(FrameBuffer fb) {
+        int size = 0;
+        for (byte[] c : fb.chunks) size += c.length;
+
+        byte[] full = new byte[size];
+        int pos = 0;
+        for (byte[] c : fb.chunks) {
+            System.arraycopy(c, 0, full, pos, c.length);
+            pos += c.length;
+        }
+        return full;
+    }
+
+    // ================= CLEANUP =================
+    private void cleanupTimeoutFrames() {
+        long now = System.currentTimeMillis();
+        requestMissingAll(now, true);
+        frameMap.entrySet().removeIf(e -> {
+            if (now - e.getValue().firstSeen <= FRAME_TIMEOUT_MS) return false;
+            remember(e.getKey());
+            dropped(e.getValue());
+            return true;
+        });
+    }
+
+    private void dropped(FrameBuffer fb) {
+        unrecoverableFrames++;
+        if (feedback != null) feedback.frameDone(fb.expected, fb.received, fb.recovered, -1);
+    }
+
+    private void dropOldestFrame() {
+        frameMap.entrySet().stream()
+                .min((a, b) -> Long.compare(
+                        a.getValue().firstSeen,
+                        b.getValue().firstSeen))
+                .ifPresent(e -> {
+                    if (frameMap.remove(e.getKey()) != null) {
+                        remember(e.getKey());
+                        dropped(e.getValue());
+                    }
+                });
+    }
+}
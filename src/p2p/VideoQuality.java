@@ -0,0 +1,122 @@
+package p2p;
+
+/**
+ * VideoQuality
+ * ------------
+ * Thang chất lượng video của VideoSender, điều chỉnh theo VideoFeedback của bên nhận:
+ * - mất frame > 5% / mất gói > 3% / > 10% frame trễ → hạ 1 bậc (mất > 20% → hạ 2)
+ * - kỳ sạch (không mất, không trễ, jitter < 20 ms) liên tiếp UP_AFTER lần → lên 1 bậc
+ * - vừa hạ → phải sạch gấp đôi mới lên lại, kỳ lưng chừng → giữ nguyên
+ * - jitter riêng nó (CPU bận, Wi-Fi chập chờn) chỉ chặn lên bậc: giảm độ phân giải không làm đều hơn
+ * - từng nhận phản hồi rồi im > SILENCE_MS trong lúc đang gửi → coi như nghẽn nặng, hạ bậc
+ * - frame JPEG vượt số chunk tối đa (VideoFec.maxDataChunks) → hạ bậc, bỏ frame
+ * Peer bản cũ không bao giờ phản hồi → đứng ở START_LEVEL (~ như trước: 320x240, 25 fps).
+ *
+ * Cấu hình: -Dp2p.video.startLevel=2 -Dp2p.video.maxLevel=6 (chỉ số trong LADDER)
+ */
+final class VideoQuality {
+
+    /**
+     * 1 bậc: chiều cao frame (chiều rộng theo tỉ lệ camera), chất lượng JPEG, fps
+     */
+    static final class Level {
+        final int height;
+        final int jpegQuality;
+        final int fps;
+        final long frameNanos;
+
+        Level(int height, int jpegQuality, int fps) {
+            this.height = height;
+            this.jpegQuality = jpegQuality;
+            this.fps = fps;
+            this.frameNanos = 1_000_000_000L / fps;
+        }
+
+        @Override
+        public String toString() {
+            return height + "p q" + jpegQuality + " @" + fps + "fps";
+        }
+    }
+
+    static final Level[] LADDER = {
+            new Level(120, 40, 10),
+            new Level(240, 50, 15),
+            new Level(240, 70, 25),
+            new Level(360, 70, 25),
+            new Level(480, 75, 25),
+            new Level(720, 75, 25),
+            new Level(720, 85, 30),
+    };
+
+    static final int START_LEVEL = Integer.getInteger("p2p.video.startLevel", 2);
+    static final int MAX_LEVEL = Math.min(Integer.getInteger("p2p.video.maxLevel", LADDER.length - 1), LADDER.length - 1);
+
+    private static final int UP_AFTER = 3;
+    private static final long SILENCE_MS = 2000;
+    // báo cáo tới trong khoảng này sau khi đổi bậc còn phản ánh bậc cũ → không hạ tiếp
+    private static final long DOWN_COOLDOWN_MS = 2 * VideoFeedback.REPORT_MS;
+
+    private volatile int level = Math.max(0, Math.min(START_LEVEL, MAX_LEVEL));
+
+    // chỉ đổi trong synchronized
+    private int good;
+    private long changedAt;
+    private long lastReportAt = -1;
+
+    Level level() {
+        return LADDER[level];
+    }
+
+    synchronized void onReport(VideoFeedback.Report r, long nowMs) {
+        lastReportAt = nowMs;
+        int total = r.frames + r.lost;
+        if (total == 0) return;
+
+        double lossRatio = r.lost / (double) total;
+        if (lossRatio > 0.05 || r.packetLoss > 30 || r.late * 10 > total) {
+            if (nowMs - changedAt >= DOWN_COOLDOWN_MS) {
+                step(lossRatio > 0.2 ? -2 : -1, nowMs, r.toString());
+                good = -UP_AFTER;
+            }
+        } else if (r.lost == 0 && r.late == 0 && r.packetLoss <= 5 && r.jitterMs < 20) {
+            if (++good >= UP_AFTER) {
+                step(+1, nowMs, r.toString());
+                good = 0;
+            }
+        } else if (good > 0) {
+            good = 0;
+        }
+    }
+
+    /**
+     * Gọi định kỳ trong lúc đang gửi: phản hồi im lặng → mạng (hoặc bên nhận) nghẹt
+     */
+    synchronized void checkSilence(long nowMs) {
+        if (lastReportAt < 0 || nowMs - lastReportAt < SILENCE_MS) return;
+        lastReportAt = nowMs;
+        step(-1, nowMs, "no feedback for " + SILENCE_MS + " ms");
+        good = -UP_AFTER;
+    }
+
+    /**
+     * Tạm dừng gửi (tắt camera) → im lặng sau đó không phải do mạng
+     */
+    synchronized void resetSilence(long nowMs) {
+        if (lastReportAt >= 0) lastReportAt = nowMs;
+    }
+
+    /**
+     * Frame ở bậc hiện tại quá lớn cho header chunk u8
+     */
+    synchronized void frameTooLarge(long nowMs) {
+        if (nowMs - changedAt >= DOWN_COOLDOWN_MS) step(-1, nowMs, "frame too large");
+    }
+
+    private void step(int delta, long nowMs, String reason) {
+        int next = Math.max(0, Math.min(level + delta, MAX_LEVEL));
+        changedAt = nowMs;
+        if (next == level) return;
+        level = next;
+        System.out.println("🎚️ Video " + (delta > 0 ? "up" : "down") + " → " + LADDER[next] + " (" + reason + ")");
+    }
+}
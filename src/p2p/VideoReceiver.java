@@ -1,60 +1,39 @@
 package p2p;
 
-import javafx.application.Platform;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
-import p2p.crypto.CryptoUtils;
-import p2p.crypto.KeyManager;
+import p2p.crypto.MediaCrypto;
 
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import java.io.ByteArrayInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.net.SocketAddress;
 
 public class VideoReceiver extends Thread {
 
     // ===== Tunables =====
     private static final int MAX_PACKET_SIZE = 1500;
-    private static final int FRAME_TIMEOUT_MS = 300; // drop frame quá trễ
-    private static final int MAX_BUFFERED_FRAMES = 5;
 
     private final int port;
-    private final KeyManager keyManager;
-    private final ImageView imageView;
-    private final String callKey;
+    private final MediaCrypto.Opener opener;
+    private final FrameRenderer renderer;
 
     private volatile boolean running = true;
     private DatagramSocket socket;
 
-    // ===== Frame buffer =====
-    private static class FrameBuffer {
-        byte[][] chunks;
-        int received;
-        int expected;
-        long firstSeen;
-    }
-
-    // frameId -> FrameBuffer
-    private final Map<Integer, FrameBuffer> frameMap = new ConcurrentHashMap<>();
-
-    // để bỏ frame cũ (anti-lag)
-    private volatile int latestFrameId = -1;
+    // ghép chunk → frame, đếm mất / trễ cho phản hồi
+    private final VideoFeedback feedback = new VideoFeedback();
+    private final VideoFrameAssembler assembler = new VideoFrameAssembler(feedback);
+    private final MediaCrypto.Sealer feedbackSealer;
 
     public VideoReceiver(int port,
-                         KeyManager keyManager,
-                         ImageView imageView,
-                         String callKey) {
+                         MediaCrypto crypto,
+                         ImageView imageView) {
 
         this.port = port;
-        this.keyManager = keyManager;
-        this.imageView = imageView;
-        this.callKey = callKey;
+        this.opener = crypto.opener(MediaCrypto.STREAM_VIDEO);
+        this.feedbackSealer = crypto.sealer(MediaCrypto.STREAM_VIDEO_FEEDBACK);
+        this.renderer = new FrameRenderer(imageView);
     }
 
     // ================= THREAD =================
@@ -78,90 +57,35 @@ public class VideoReceiver extends Thread {
                 DatagramPacket pkt = new DatagramPacket(buf, buf.length);
                 socket.receive(pkt);
 
-                byte[] data = Arrays.copyOf(pkt.getData(), pkt.getLength());
-
-                if (data.length < 6) continue;
-
-                // ===== Parse header =====
-                int frameId = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
-                int index   = data[2] & 0xFF;
-                int total   = data[3] & 0xFF;
-                int len     = ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
-
-                if (index >= total || data.length < 6 + len) continue;
-
-                // ===== Anti-lag: drop frame cũ =====
-                if (latestFrameId != -1) {
-                    int diff = (frameId - latestFrameId) & 0xFFFF;
-                    if (diff > 30000) continue; // frame quá cũ
-                }
-
-                latestFrameId = frameId;
+                byte[] full = assembler.accept(pkt.getData(), pkt.getLength());
+                if (full != null) handleCompleteFrame(full);
 
-                // ===== Limit buffer =====
-                if (frameMap.size() > MAX_BUFFERED_FRAMES) {
-                    dropOldestFrame();
+                // phản hồi về đúng socket gửi của VideoSender
+                for (VideoFeedback.Nack nack; (nack = feedback.pollNack()) != null; ) {
+                    sendFeedback(nack.toBytes(), pkt.getSocketAddress());
                 }
-
-                // ===== Buffer frame =====
-                FrameBuffer fb = frameMap.computeIfAbsent(frameId, k -> {
-                    FrameBuffer f = new FrameBuffer();
-                    f.chunks = new byte[total][];
-                    f.expected = total;
-                    f.firstSeen = System.currentTimeMillis();
-                    return f;
-                });
-
-                if (fb.chunks[index] == null) {
-                    fb.chunks[index] = Arrays.copyOfRange(data, 6, 6 + len);
-                    fb.received++;
-                }
-
-                // ===== Frame complete =====
-                if (fb.received == fb.expected) {
-                    frameMap.remove(frameId);
-                    handleCompleteFrame(fb);
-                }
-
-                cleanupTimeoutFrames();
+                VideoFeedback.Report report = feedback.poll(System.currentTimeMillis());
+                if (report != null) sendFeedback(report.toBytes(), pkt.getSocketAddress());
             }
 
         } catch (Exception e) {
             if (running) e.printStackTrace();
         } finally {
             if (socket != null && !socket.isClosed()) socket.close();
-            System.out.println("🎥 VideoReceiver stopped");
+            System.out.println("🎥 VideoReceiver stopped (FEC recovered " + assembler.fecRecoveredChunks()
+                    + " chunks / " + assembler.fecRecoveredFrames() + " frames, unrecoverable "
+                    + assembler.unrecoverableFrames() + " frames, NACK " + assembler.nackedChunks()
+                    + " chunks / " + assembler.nackRepairedChunks() + " repaired)");
         }
     }
 
     // ================= FRAME PROCESS =================
-    private void handleCompleteFrame(FrameBuffer fb) {
+    private void handleCompleteFrame(byte[] full) {
 
         try {
-            int size = 0;
-            for (byte[] c : fb.chunks) size += c.length;
-
-            byte[] full = new byte[size];
-            int pos = 0;
-            for (byte[] c : fb.chunks) {
-                System.arraycopy(c, 0, full, pos, c.length);
-                pos += c.length;
-            }
-
-            if (!keyManager.hasKey(callKey)) return;
-
-            SecretKey key = keyManager.getOrCreate(callKey);
-
-            if (full.length < 16) return;
-
-            byte[] iv  = Arrays.copyOfRange(full, 0, 16);
-            byte[] enc = Arrays.copyOfRange(full, 16, full.length);
-
-            byte[] raw = CryptoUtils.decryptAES(
-                    enc,
-                    key,
-                    new IvParameterSpec(iv)
-            );
+            // null: chưa có key, gói hỏng hoặc bị sửa
+            byte[] raw = opener.open(full, full.length);
+            if (raw == null) return;
 
             Mat img = Imgcodecs.imdecode(
                     new MatOfByte(raw),
@@ -170,41 +94,60 @@ public class VideoReceiver extends Thread {
 
             if (img.empty()) return;
 
-            Image fx = matToImage(img);
-            Platform.runLater(() -> imageView.setImage(fx));
+            // đo mạng: tính cả frame bị FrameRenderer bỏ khi FX thread bận
+            feedback.frameShown(System.nanoTime());
+            renderer.render(img);
+            img.release();
 
         } catch (Exception ignored) {
             // production: drop frame silently
         }
     }
 
-    // ================= CLEANUP =================
-    private void cleanupTimeoutFrames() {
-        long now = System.currentTimeMillis();
-        frameMap.entrySet().removeIf(
-                e -> now - e.getValue().firstSeen > FRAME_TIMEOUT_MS
-        );
+    private void sendFeedback(byte[] message, SocketAddress sender) {
+        try {
+            byte[] packet = feedbackSealer.seal(message);
+            socket.send(new DatagramPacket(packet, packet.length, sender));
+        } catch (Exception ignored) {
+            // mất 1 phản hồi không sao: NACK có lần xin lại, báo cáo có kỳ sau
+        }
+    }
+
+    // ================= STATS =================
+
+    /**
+     * Chunk dựng lại nhờ chẵn lẻ (VideoFec), để chỉnh -Dp2p.video.fec
+     */
+    public long fecRecoveredChunks() {
+        return assembler.fecRecoveredChunks();
     }
 
-    private void dropOldestFrame() {
-        frameMap.entrySet().stream()
-                .min((a, b) -> Long.compare(
-                        a.getValue().firstSeen,
-                        b.getValue().firstSeen))
-                .ifPresent(e -> frameMap.remove(e.getKey()));
+    public long fecRecoveredFrames() {
+        return assembler.fecRecoveredFrames();
+    }
+
+    /**
+     * Chunk đã xin gửi lại / đã tới sau khi xin
+     */
+    public long nackedChunks() {
+        return assembler.nackedChunks();
+    }
+
+    public long nackRepairedChunks() {
+        return assembler.nackRepairedChunks();
+    }
+
+    /**
+     * Frame bỏ vì thiếu chunk mà chẵn lẻ / gửi lại không bù được
+     */
+    public long unrecoverableFrames() {
+        return assembler.unrecoverableFrames();
     }
 
     // ================= CONTROL =================
     public void stopReceive() {
         running = false;
         if (socket != null) socket.close();
-        Platform.runLater(() -> imageView.setImage(null));
-    }
-
-    // ================= UTILS =================
-    private Image matToImage(Mat mat) {
-        MatOfByte buf = new MatOfByte();
-        Imgcodecs.imencode(".png", mat, buf);
-        return new Image(new ByteArrayInputStream(buf.toArray()));
+        renderer.clear();
     }
 }
@@ -1,58 +1,97 @@
 package p2p;
 
-import javafx.application.Platform;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.videoio.VideoCapture;
-import p2p.crypto.CryptoUtils;
-import p2p.crypto.KeyManager;
+import org.opencv.videoio.Videoio;
+import p2p.crypto.MediaCrypto;
 
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import java.io.ByteArrayInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * VideoSender
+ * -----------
+ * Pipeline 3 stage, mỗi stage 1 thread, nối bằng LatestSlot (1 chỗ, frame mới thay frame cũ):
+ *
+ *   capture (thread này): đọc camera → resize → preview  ─▶  encode: JPEG + seal  ─▶  transmit: cắt packet → UDP
+ *
+ * Camera không phải chờ encode / send → fps do stage chậm nhất quyết định chứ không phải tổng các stage;
+ * stage sau chậm thì bỏ frame cũ nhất, độ trễ không dồn. Mat đã capture quay vòng qua `free`
+ * (tối đa 3 cái: đang capture, trong slot, đang encode).
+ *
+ * Mỗi frame kèm chunk chẵn lẻ XOR (VideoFec) để bên nhận bù gói mất; chunk vẫn thiếu thì bên nhận NACK,
+ * gửi lại từ `sentFrames` (RETRANSMIT_FRAMES frame gần nhất, chỉ khi chưa quá FRAME_TIMEOUT_MS).
+ * Kích thước / chất lượng JPEG / fps theo bậc của VideoQuality, bên nhận phản hồi (VideoFeedback)
+ * về chính socket gửi, thread VideoFeedback đọc và điều chỉnh bậc.
+ */
 public class VideoSender extends Thread {
 
     // ===== Video config =====
-    private static final int WIDTH = 320;
-    private static final int HEIGHT = 240;
     private static final int CHUNK_SIZE = 1300;
-    private static final int FPS_DELAY_MS = 40; // ~25fps
+
+    // ===== Retransmission =====
+    // > FRAME_TIMEOUT_MS ở 30fps
+    private static final int RETRANSMIT_FRAMES = 16;
+    private static final int MAX_RESENDS = 2;
 
     // ===== Network / crypto =====
     private final InetAddress target;
     private final int port;
-    private final KeyManager keyManager;
-    private final String callKey;
+    private final MediaCrypto crypto;
 
     // ===== UI =====
-    private final ImageView localPreview;
+    private final FrameRenderer localPreview;
 
     // ===== Thread state =====
     private volatile boolean running = true;
     private volatile boolean paused = false;
 
+    // ===== Pipeline =====
+    private final LatestSlot<Mat> toEncode = new LatestSlot<>();
+    private final LatestSlot<byte[]> toSend = new LatestSlot<>();
+    private final Queue<Mat> free = new ConcurrentLinkedQueue<>();
+    private final VideoQuality quality = new VideoQuality();
+    private long captured, sent, retransmitted;
+
+    /**
+     * Packet (dữ liệu + chẵn lẻ) của 1 frame đã gửi, giữ để trả lời NACK
+     */
+    private static final class SentFrame {
+        final int frameId;
+        final byte[][] packets;
+        final long sentAt = System.currentTimeMillis();
+        // chỉ thread VideoFeedback đụng tới
+        final byte[] resends;
+
+        SentFrame(int frameId, byte[][] packets) {
+            this.frameId = frameId;
+            this.packets = packets;
+            this.resends = new byte[packets.length];
+        }
+    }
 
-    // 16-bit frame id (0 → 65535)
+    private final SentFrame[] sentFrames = new SentFrame[RETRANSMIT_FRAMES];
+
+    // 16-bit frame id (0 → 65535), chỉ thread transmit dùng
     private int frameId = 0;
 
     public VideoSender(InetAddress target,
                        int port,
-                       KeyManager keyManager,
-                       String callKey,
+                       MediaCrypto crypto,
                        ImageView localPreview) {
 
+        super("VideoCapture");
         this.target = target;
         this.port = port;
-        this.keyManager = keyManager;
-        this.callKey = callKey;
-        this.localPreview = localPreview;
+        this.crypto = crypto;
+        this.localPreview = localPreview != null ? new FrameRenderer(localPreview) : null;
     }
 
     // ================= THREAD =================
@@ -61,7 +100,7 @@ public class VideoSender extends Thread {
 
         System.out.println("🎥 VideoSender STARTED -> "
                 + target.getHostAddress() + ":" + port
-                + " callKey=" + callKey);
+                + (crypto.isAead() ? " (AES-GCM)" : " (AES-CBC)"));
 
         if (!OpenCVLoader.init()) {
             System.err.println("❌ OpenCV init failed (VideoSender)");
@@ -75,88 +114,222 @@ public class VideoSender extends Thread {
         }
         System.out.println("📷 Camera opened");
 
-        try (DatagramSocket socket = new DatagramSocket()) {
+        Thread encoder = null, transmitter = null, feedback = null;
+        DatagramSocket socket = null;
+        try {
+            DatagramSocket out = socket = new DatagramSocket();
+            encoder = stage("VideoEncode", this::encodeLoop);
+            transmitter = stage("VideoTransmit", () -> transmitLoop(out));
+            feedback = stage("VideoFeedback", () -> feedbackLoop(out));
 
-            Mat frame = new Mat();
+            Mat raw = new Mat();
+            Size size = new Size();
+            int camHeight = 0;
+            long nextFrame = System.nanoTime();
 
             while (running) {
 
                 // ===== Pause handling =====
                 if (paused) {
                     Thread.sleep(50);
+                    nextFrame = System.nanoTime();
+                    quality.resetSilence(System.currentTimeMillis());
                     continue;
                 }
 
+                VideoQuality.Level level = quality.level();
+                quality.checkSilence(System.currentTimeMillis());
+
                 // ===== Capture =====
-                cam.read(frame);
-                if (frame.empty()) continue;
+                cam.read(raw);
+                if (raw.empty()) continue;
+
+                // bậc cao hơn camera đang cho → xin camera độ phân giải lớn hơn (1 lần mỗi mức)
+                if (level.height > raw.rows() && level.height > camHeight) {
+                    camHeight = level.height;
+                    cam.set(Videoio.CAP_PROP_FRAME_WIDTH, camHeight * 16 / 9);
+                    cam.set(Videoio.CAP_PROP_FRAME_HEIGHT, camHeight);
+                }
 
-                Imgproc.resize(frame, frame, new Size(WIDTH, HEIGHT));
+                // giữ tỉ lệ camera, không phóng to
+                int h = Math.min(level.height, raw.rows());
+                size.height = h;
+                size.width = (raw.cols() * h / raw.rows()) & ~1;
+
+                Mat frame = free.poll();
+                if (frame == null) frame = new Mat();
+                if (size.width == raw.cols() && h == raw.rows()) raw.copyTo(frame);
+                else Imgproc.resize(raw, frame, size);
+                captured++;
 
                 // ===== Local preview =====
-                if (localPreview != null) {
-                    Mat copy = frame.clone();
-                    Image fx = matToImage(copy);
-                    Platform.runLater(() -> localPreview.setImage(fx));
-                    copy.release();
-                }
+                // render() chép frame ngay → giao frame cho encode được
+                if (localPreview != null) localPreview.render(frame);
+
+                Mat old = toEncode.put(frame);
+                if (old != null) free.offer(old);
+
+                // ===== Pacing =====
+                // chỉ ngủ phần còn lại của khung hình (encode / send chạy song song)
+                nextFrame += level.frameNanos;
+                long sleep = nextFrame - System.nanoTime();
+                if (sleep > 0) Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+                else nextFrame = System.nanoTime();
+            }
 
-                // ===== Encryption =====
-                SecretKey key = keyManager.getOrCreate(callKey);
-                if (key == null) continue;
+        } catch (InterruptedException ignored) {
+            // stopSend()
+        } catch (Exception e) {
+            if (running) e.printStackTrace();
+        } finally {
+            running = false;
+            Mat left = toEncode.close();
+            if (left != null) left.release();
+            toSend.close();
+            join(encoder);
+            join(transmitter);
+            if (socket != null) socket.close();
+            join(feedback);
+            for (Mat m; (m = free.poll()) != null; ) m.release();
+            cam.release();
+            System.out.println("🎥 VideoSender STOPPED (captured " + captured + ", sent " + sent
+                    + ", dropped " + (toEncode.dropped() + toSend.dropped())
+                    + ", retransmitted " + retransmitted + " chunks)");
+        }
+    }
 
-                MatOfByte jpg = new MatOfByte();
-                Imgcodecs.imencode(".jpg", frame, jpg);
+    private static Thread stage(String name, Runnable loop) {
+        Thread t = new Thread(loop, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
 
-                IvParameterSpec ivSpec = CryptoUtils.generateIv();
-                byte[] encrypted = CryptoUtils.encryptAES(
-                        jpg.toArray(),
-                        key,
-                        ivSpec
-                );
+    private static void join(Thread t) {
+        if (t == null) return;
+        t.interrupt();
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                byte[] iv = ivSpec.getIV();
-                byte[] payload = new byte[iv.length + encrypted.length];
-                System.arraycopy(iv, 0, payload, 0, iv.length);
-                System.arraycopy(encrypted, 0, payload, iv.length, encrypted.length);
+    // ===== Stage 2: JPEG + encryption =====
+    private void encodeLoop() {
+        MediaCrypto.Sealer sealer = crypto.sealer(MediaCrypto.STREAM_VIDEO);
+        MatOfByte jpg = new MatOfByte();
+        MatOfInt params = new MatOfInt();
+        int paramsQuality = -1;
+        try {
+            Mat frame;
+            while ((frame = toEncode.take()) != null) {
+                int q = quality.level().jpegQuality;
+                if (q != paramsQuality) {
+                    params.fromArray(Imgcodecs.IMWRITE_JPEG_QUALITY, q);
+                    paramsQuality = q;
+                }
 
-                // ===== Chunking =====
-                int totalChunks = (int) Math.ceil(
-                        payload.length / (double) CHUNK_SIZE
-                );
+                try {
+                    Imgcodecs.imencode(".jpg", frame, jpg, params);
+                } finally {
+                    free.offer(frame);
+                }
 
-                frameId = (frameId + 1) & 0xFFFF; // 16-bit wrap
+                byte[] payload = sealer.seal(jpg.toArray());
+                if (payload.length > VideoFec.maxDataChunks() * CHUNK_SIZE) {
+                    quality.frameTooLarge(System.currentTimeMillis());
+                    continue;
+                }
+                toSend.put(payload);
+            }
+        } catch (InterruptedException ignored) {
+            // pipeline đóng
+        } catch (Exception e) {
+            if (running) e.printStackTrace();
+        } finally {
+            jpg.release();
+            params.release();
+        }
+    }
 
-                for (int i = 0; i < totalChunks; i++) {
-                    int off = i * CHUNK_SIZE;
-                    int len = Math.min(CHUNK_SIZE, payload.length - off);
+    // ===== Stage 3: chunking + UDP =====
+    private void transmitLoop(DatagramSocket socket) {
+        try {
+            byte[] payload;
+            while ((payload = toSend.take()) != null) {
+                frameId = (frameId + 1) & 0xFFFF; // 16-bit wrap
 
-                    byte[] packet = new byte[6 + len];
+                byte[][] data = packetize(frameId, payload);
+                byte[][] parity = VideoFec.parity(frameId, data, VideoFec.groups(data.length));
 
-                    // Header
-                    packet[0] = (byte) (frameId >> 8);
-                    packet[1] = (byte) frameId;
-                    packet[2] = (byte) i;
-                    packet[3] = (byte) totalChunks;
-                    packet[4] = (byte) (len >> 8);
-                    packet[5] = (byte) len;
+                // chẵn lẻ gửi sau dữ liệu: tới nơi lúc bên nhận đã biết thiếu chunk nào
+                byte[][] packets = Arrays.copyOf(data, data.length + parity.length);
+                System.arraycopy(parity, 0, packets, data.length, parity.length);
 
-                    // Payload
-                    System.arraycopy(payload, off, packet, 6, len);
+                // lưu trước khi gửi: NACK có thể tới trước khi gửi xong
+                synchronized (sentFrames) {
+                    sentFrames[frameId % RETRANSMIT_FRAMES] = new SentFrame(frameId, packets);
+                }
 
+                for (byte[] packet : packets) {
                     socket.send(
                             new DatagramPacket(packet, packet.length, target, port)
                     );
                 }
-
-                Thread.sleep(FPS_DELAY_MS);
+                sent++;
             }
+        } catch (InterruptedException ignored) {
+            // pipeline đóng
+        } catch (Exception e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    // ===== Phản hồi từ VideoReceiver (cùng socket gửi) =====
+    private void feedbackLoop(DatagramSocket socket) {
+        MediaCrypto.Opener opener = crypto.opener(MediaCrypto.STREAM_VIDEO_FEEDBACK);
+        byte[] buf = new byte[256];
+        try {
+            while (running) {
+                DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+                socket.receive(pkt);
 
+                byte[] plain = opener.open(pkt.getData(), pkt.getLength());
+                if (plain == null) continue;
+
+                VideoFeedback.Nack nack = VideoFeedback.Nack.parse(plain);
+                if (nack != null) {
+                    retransmit(nack, socket);
+                    continue;
+                }
+
+                VideoFeedback.Report report = VideoFeedback.Report.parse(plain);
+                if (report != null) quality.onReport(report, System.currentTimeMillis());
+            }
         } catch (Exception e) {
+            // socket đóng khi dừng
             if (running) e.printStackTrace();
-        } finally {
-            cam.release();
-            System.out.println("🎥 VideoSender STOPPED");
+        }
+    }
+
+    /**
+     * Gửi lại chunk bên nhận xin, bỏ qua frame đã rời bộ đệm / quá FRAME_TIMEOUT_MS (bên nhận đã bỏ)
+     */
+    private void retransmit(VideoFeedback.Nack nack, DatagramSocket socket) throws Exception {
+        SentFrame frame;
+        synchronized (sentFrames) {
+            frame = sentFrames[nack.frameId % RETRANSMIT_FRAMES];
+        }
+        if (frame == null || frame.frameId != nack.frameId
+                || System.currentTimeMillis() - frame.sentAt > VideoFrameAssembler.FRAME_TIMEOUT_MS) return;
+
+        for (int index : nack.indices) {
+            if (index >= frame.packets.length || frame.resends[index] >= MAX_RESENDS) continue;
+            frame.resends[index]++;
+            byte[] packet = frame.packets[index];
+            socket.send(new DatagramPacket(packet, packet.length, target, port));
+            retransmitted++;
         }
     }
 
@@ -170,10 +343,36 @@ public class VideoSender extends Thread {
         this.paused = paused;
     }
 
-    // ================= UTILS =================
-    private Image matToImage(Mat mat) {
-        MatOfByte buf = new MatOfByte();
-        Imgcodecs.imencode(".png", mat, buf);
-        return new Image(new ByteArrayInputStream(buf.toArray()));
+    // ================= PACKETIZE =================
+
+    /**
+     * Cắt payload (IV + ciphertext) thành các packet CHUNK_SIZE byte,
+     * header 6 byte đọc bởi VideoFrameAssembler
+     */
+    public static byte[][] packetize(int frameId, byte[] payload) {
+        int totalChunks = (int) Math.ceil(
+                payload.length / (double) CHUNK_SIZE
+        );
+
+        byte[][] packets = new byte[totalChunks][];
+        for (int i = 0; i < totalChunks; i++) {
+            int off = i * CHUNK_SIZE;
+            int len = Math.min(CHUNK_SIZE, payload.length - off);
+
+            byte[] packet = new byte[VideoFrameAssembler.HEADER_SIZE + len];
+
+            // Header
+            packet[0] = (byte) (frameId >> 8);
+            packet[1] = (byte) frameId;
+            packet[2] = (byte) i;
+            packet[3] = (byte) totalChunks;
+            packet[4] = (byte) (len >> 8);
+            packet[5] = (byte) len;
+
+            // Payload
+            System.arraycopy(payload, off, packet, VideoFrameAssembler.HEADER_SIZE, len);
+            packets[i] = packet;
+        }
+        return packets;
     }
 }
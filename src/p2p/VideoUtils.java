@@ -0,0 +1,20 @@
+package p2p;
+
+import javafx.scene.image.Image;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.ByteArrayInputStream;
+
+public class VideoUtils {
+
+    /**
+     * Mat (BGR) → Image JavaFX, qua PNG trong bộ nhớ (ảnh tĩnh; video dùng FrameRenderer)
+     */
+    public static Image matToImage(Mat mat) {
+        MatOfByte buf = new MatOfByte();
+        Imgcodecs.imencode(".png", mat, buf);
+        return new Image(new ByteArrayInputStream(buf.toArray()));
+    }
+}
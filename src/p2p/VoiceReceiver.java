@@ -1,10 +1,7 @@
 package p2p;
 
-import p2p.crypto.CryptoUtils;
-import p2p.crypto.KeyManager;
+import p2p.crypto.MediaCrypto;
 
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import javax.sound.sampled.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -13,19 +10,17 @@ import java.util.concurrent.ArrayBlockingQueue;
 public class VoiceReceiver extends Thread {
 
     private final int port;
-    private final KeyManager keyManager;
-    private final String callKey;
+    private final MediaCrypto.Opener opener;
     private volatile boolean running = true;
     private DatagramSocket socket;
 
     private static final int AUDIO_PAYLOAD = 640; // 20ms @16kHz mono 16bit
-    private static final int IV_SIZE = 16;
+    private static final int MAX_PACKET = 1024;  // CBC: IV 16 + 656, GCM: counter 8 + 640 + tag 16
     private final ArrayBlockingQueue<byte[]> audioQueue = new ArrayBlockingQueue<>(50);
 
-    public VoiceReceiver(int port, KeyManager keyManager, String callKey) {
+    public VoiceReceiver(int port, MediaCrypto crypto) {
         this.port = port;
-        this.keyManager = keyManager;
-        this.callKey = callKey;
+        this.opener = crypto.opener(MediaCrypto.STREAM_VOICE);
     }
 
     @Override
@@ -49,29 +44,17 @@ public class VoiceReceiver extends Thread {
             });
             playback.start();
 
-            byte[] buffer = new byte[AUDIO_PAYLOAD + IV_SIZE];
+            byte[] buffer = new byte[MAX_PACKET];
 
             while (running) {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 socket.receive(packet);
 
-                if (!keyManager.hasKey(callKey) || packet.getLength() <= IV_SIZE) continue;
-
-                byte[] iv = new byte[IV_SIZE];
-                System.arraycopy(packet.getData(), 0, iv, 0, IV_SIZE);
-                byte[] encrypted = new byte[packet.getLength() - IV_SIZE];
-                System.arraycopy(packet.getData(), IV_SIZE, encrypted, 0, encrypted.length);
-
-                SecretKey key = keyManager.getSessionKey(callKey);
-                if (key == null) continue;
-
-                try {
-                    byte[] decrypted = CryptoUtils.decryptAES(encrypted, key, new IvParameterSpec(iv));
-                    // bỏ frame không đủ
-                    if (decrypted.length >= AUDIO_PAYLOAD) {
-                        audioQueue.offer(decrypted);
-                    }
-                } catch (Exception ignored) {}
+                byte[] decrypted = opener.open(packet.getData(), packet.getLength());
+                // bỏ gói lỗi / frame không đủ
+                if (decrypted != null && decrypted.length >= AUDIO_PAYLOAD) {
+                    audioQueue.offer(decrypted);
+                }
             }
 
             playback.interrupt();
@@ -1,10 +1,7 @@
 package p2p;
 
-import p2p.crypto.CryptoUtils;
-import p2p.crypto.KeyManager;
+import p2p.crypto.MediaCrypto;
 
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import javax.sound.sampled.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -14,8 +11,7 @@ public class VoiceSender extends Thread {
 
     private final InetAddress target;
     private final int port;
-    private final KeyManager keyManager;
-    private final String callKey;
+    private final MediaCrypto crypto;
     private volatile boolean running = true;
 
 
@@ -23,11 +19,10 @@ public class VoiceSender extends Thread {
     private static final int BUFFER_SIZE = 640; // 20ms @16kHz
 
 
-    public VoiceSender(InetAddress target, int port, KeyManager keyManager, String callKey) {
+    public VoiceSender(InetAddress target, int port, MediaCrypto crypto) {
         this.target = target;
         this.port = port;
-        this.keyManager = keyManager;
-        this.callKey = callKey;
+        this.crypto = crypto;
     }
 
     private volatile boolean enabled = true;
@@ -47,6 +42,7 @@ public class VoiceSender extends Thread {
             mic.open(format);
             mic.start();
             byte[] buffer = new byte[BUFFER_SIZE];
+            MediaCrypto.Sealer sealer = crypto.sealer(MediaCrypto.STREAM_VOICE);
 
             while (running) {
                 if (!enabled) {
@@ -57,16 +53,7 @@ public class VoiceSender extends Thread {
                 int read = mic.read(buffer, 0, buffer.length);
                 if (read <= 0) continue;
 
-                // Nếu key chưa tạo → skip frame
-                SecretKey key = keyManager.getOrCreate(callKey);
-                if (key == null) continue;
-
-                IvParameterSpec iv = CryptoUtils.generateIv();
-                byte[] encrypted = CryptoUtils.encryptAES(buffer, key, iv);
-
-                byte[] sendData = new byte[iv.getIV().length + encrypted.length];
-                System.arraycopy(iv.getIV(), 0, sendData, 0, iv.getIV().length);
-                System.arraycopy(encrypted, 0, sendData, iv.getIV().length, encrypted.length);
+                byte[] sendData = sealer.seal(buffer);
 
                 ds.send(new DatagramPacket(sendData, sendData.length, target, port));
 
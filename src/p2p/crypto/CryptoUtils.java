@@ -9,6 +9,21 @@ import java.util.Base64;
 
 public class CryptoUtils {
 
+    private static final String AES_CBC = "AES/CBC/PKCS5Padding";
+
+    // Cipher không thread-safe → 1 instance / thread, chỉ init lại mỗi lần (IV đổi).
+    // Cùng key với lần init trước thì provider không phải expand key lại.
+    private static final ThreadLocal<Cipher> AES_CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(AES_CBC);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // dùng chung, không tạo SecureRandom mới (và seed lại) cho mỗi IV
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     // AES
     public static SecretKey generateAESKey() throws NoSuchAlgorithmException {
         KeyGenerator kg = KeyGenerator.getInstance("AES");
@@ -18,18 +33,18 @@ public class CryptoUtils {
 
     public static IvParameterSpec generateIv() {
         byte[] iv = new byte[16];
-        new SecureRandom().nextBytes(iv);
+        RANDOM.nextBytes(iv);
         return new IvParameterSpec(iv);
     }
 
     public static byte[] encryptAES(byte[] data, SecretKey key, IvParameterSpec iv) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        Cipher cipher = AES_CIPHER.get();
         cipher.init(Cipher.ENCRYPT_MODE, key, iv);
         return cipher.doFinal(data);
     }
 
     public static byte[] decryptAES(byte[] data, SecretKey key, IvParameterSpec iv) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        Cipher cipher = AES_CIPHER.get();
         cipher.init(Cipher.DECRYPT_MODE, key, iv);
         return cipher.doFinal(data);
     }
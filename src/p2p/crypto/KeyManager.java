@@ -5,14 +5,22 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * KeyManager
  * ----------
- * Quản lý AES session key cho từng peer / call
+ * Quản lý AES session key cho từng peer / call, theo keyId:
+ * - peer id: key mình tạo để gửi tin / file cho peer đó (PeerClient gửi qua SESSION_KEY)
+ * - inboundKeyId(peer id): key peer đó gửi sang, giải mã tin / file nhận từ peer
+ * - call key: nhận qua SESSION_KEY có FLAG_KEY_ID, lưu đúng keyId
+ * Peer bản cũ chỉ có 1 key / peer id cho cả 2 chiều → PeerHandler rơi về peer id khi chưa có key chiều nhận.
  */
 public class KeyManager {
 
@@ -21,6 +29,17 @@ public class KeyManager {
 
     private final Map<String, SecretKey> sessionKeys = new ConcurrentHashMap<>();
 
+    /* ===== Cipher pool: theo keyId, mượn / trả trên thread bất kỳ ===== */
+    // IoExecutor chạy mỗi task trên 1 virtual thread → cache theo thread không bao giờ trúng
+    private static final int MAX_POOLED_PER_KEY = 16;
+
+    private static final class CipherPool {
+        final Queue<Cipher> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pooled = new AtomicInteger();
+    }
+
+    private final Map<String, CipherPool> cipherPools = new ConcurrentHashMap<>();
+
     /* ================= KEY ================= */
 
     public boolean hasKey(String keyId) {
@@ -48,17 +67,75 @@ public class KeyManager {
         sessionKeys.put(keyId, new SecretKeySpec(rawKey, AES));
     }
 
+    /**
+     * Key tin nhắn peer gửi sang (chiều nhận), tách khỏi key mình tạo để gửi (lưu theo peerId).
+     * 2 bên cùng gửi tin lần đầu sẽ không ghi đè key của nhau.
+     */
+    public static String inboundKeyId(String peerId) {
+        return "in:" + peerId;
+    }
+
     /* ================= CIPHER ================= */
 
-    public Cipher createEncryptCipher(String keyId, IvParameterSpec iv) throws Exception {
-        Cipher cipher = Cipher.getInstance(AES_MODE);
-        cipher.init(Cipher.ENCRYPT_MODE, getOrCreate(keyId), iv);
-        return cipher;
+    public byte[] encrypt(String keyId, IvParameterSpec iv, byte[] data) throws Exception {
+        return doFinal(keyId, Cipher.ENCRYPT_MODE, iv, data);
     }
 
-    public Cipher createDecryptCipher(String keyId, IvParameterSpec iv) throws Exception {
-        Cipher cipher = Cipher.getInstance(AES_MODE);
-        cipher.init(Cipher.DECRYPT_MODE, getOrCreate(keyId), iv);
+    public byte[] decrypt(String keyId, IvParameterSpec iv, byte[] data) throws Exception {
+        return doFinal(keyId, Cipher.DECRYPT_MODE, iv, data);
+    }
+
+    /**
+     * Giải mã thẳng vào output (direct buffer của pool), trả về số byte đã ghi
+     */
+    public int decrypt(String keyId, IvParameterSpec iv, ByteBuffer input, ByteBuffer output) throws Exception {
+        Cipher cipher = borrowCipher(keyId, Cipher.DECRYPT_MODE, iv);
+        try {
+            return cipher.doFinal(input, output);
+        } finally {
+            returnCipher(keyId, cipher);
+        }
+    }
+
+    private byte[] doFinal(String keyId, int mode, IvParameterSpec iv, byte[] data) throws Exception {
+        Cipher cipher = borrowCipher(keyId, mode, iv);
+        try {
+            return cipher.doFinal(data);
+        } finally {
+            returnCipher(keyId, cipher);
+        }
+    }
+
+    /**
+     * Cipher đã init cho keyId, dùng xong (kể cả khi lỗi) phải returnCipher.
+     * Cipher.getInstance chỉ khi pool của key đang hết (lần đầu / nhiều thread cùng mã hoá).
+     */
+    public Cipher borrowCipher(String keyId, int mode, IvParameterSpec iv) throws Exception {
+        SecretKey key = getOrCreate(keyId);
+
+        CipherPool pool = poolFor(keyId);
+        Cipher cipher = pool.free.poll();
+        if (cipher != null) {
+            pool.pooled.decrementAndGet();
+        } else {
+            cipher = Cipher.getInstance(AES_MODE);
+        }
+
+        // init lại với key hiện tại → storeSessionKey thay key thì cipher trong pool vẫn dùng được
+        cipher.init(mode, key, iv);
         return cipher;
     }
+
+    public void returnCipher(String keyId, Cipher cipher) {
+        CipherPool pool = poolFor(keyId);
+        if (pool.pooled.incrementAndGet() > MAX_POOLED_PER_KEY) {
+            pool.pooled.decrementAndGet();
+            return;
+        }
+        pool.free.offer(cipher);
+    }
+
+    private CipherPool poolFor(String keyId) {
+        return cipherPools.computeIfAbsent(keyId, k -> new CipherPool());
+    }
 }
@@ -0,0 +1,201 @@
+package p2p.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * MediaCrypto
+ * -----------
+ * Mã hoá gói voice / video của 1 cuộc gọi, 2 chế độ chốt lúc CALL_REQUEST / CALL_ACCEPT:
+ *
+ * - AEAD (AES-GCM, cả 2 peer v2):
+ *     counter (u64) | ciphertext | tag (16)
+ *   nonce 12 byte = prefix (4) | counter (8), không cần SecureRandom / padding cho mỗi gói.
+ *   prefix = vai trò (caller / callee) + luồng (voice / video / phản hồi video) → các luồng dùng chung call key
+ *   không bao giờ trùng nonce; call key mới cho mỗi cuộc gọi nên counter bắt đầu lại từ 0.
+ *   Bên nhận từ chối gói sai tag hoặc counter đã thấy (cửa sổ REPLAY_WINDOW gói).
+ *
+ * - Legacy (peer bản cũ): IV ngẫu nhiên (16) | AES-CBC(data)
+ */
+public class MediaCrypto {
+
+    public static final int STREAM_VOICE = 1;
+    public static final int STREAM_VIDEO = 2;
+    // VideoReceiver → VideoSender (VideoFeedback)
+    public static final int STREAM_VIDEO_FEEDBACK = 3;
+
+    private static final String AES_GCM = "AES/GCM/NoPadding";
+    private static final int TAG_BITS = 128;
+    private static final int NONCE_SIZE = 12;
+    private static final int COUNTER_SIZE = 8;
+    private static final int CBC_IV_SIZE = 16;
+    private static final int REPLAY_WINDOW = 64;
+
+    private final KeyManager keyManager;
+    private final String callKey;
+    private final boolean caller;
+    private volatile boolean aead = false;
+
+    /**
+     * @param caller true nếu máy này gọi đi (quyết định prefix nonce chiều gửi)
+     */
+    public MediaCrypto(KeyManager keyManager, String callKey, boolean caller) {
+        this.keyManager = keyManager;
+        this.callKey = callKey;
+        this.caller = caller;
+    }
+
+    public void setAead(boolean aead) {
+        this.aead = aead;
+    }
+
+    public boolean isAead() {
+        return aead;
+    }
+
+    /**
+     * Chiều gửi của 1 luồng, dùng trên 1 thread (VoiceSender / VideoSender)
+     */
+    public Sealer sealer(int stream) {
+        return new Sealer(noncePrefix(caller, stream));
+    }
+
+    /**
+     * Chiều nhận của 1 luồng (nonce theo vai trò của peer), dùng trên 1 thread
+     */
+    public Opener opener(int stream) {
+        return new Opener(noncePrefix(!caller, stream));
+    }
+
+    // 'C' = caller, 'A' = bên trả lời
+    private static byte[] noncePrefix(boolean caller, int stream) {
+        return new byte[]{(byte) (caller ? 'C' : 'A'), (byte) stream, 0, 0};
+    }
+
+    private static Cipher newGcm() {
+        try {
+            return Cipher.getInstance(AES_GCM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* ================= SEND ================= */
+
+    public final class Sealer {
+        private final byte[] nonce = new byte[NONCE_SIZE];
+        private final Cipher gcm = newGcm();
+        private long counter = 0;
+
+        private Sealer(byte[] prefix) {
+            System.arraycopy(prefix, 0, nonce, 0, prefix.length);
+        }
+
+        /**
+         * @return gói sẵn sàng gửi qua UDP
+         */
+        public byte[] seal(byte[] data) throws Exception {
+            SecretKey key = keyManager.getOrCreate(callKey);
+
+            if (!aead) {
+                IvParameterSpec iv = CryptoUtils.generateIv();
+                byte[] encrypted = CryptoUtils.encryptAES(data, key, iv);
+
+                byte[] packet = new byte[CBC_IV_SIZE + encrypted.length];
+                System.arraycopy(iv.getIV(), 0, packet, 0, CBC_IV_SIZE);
+                System.arraycopy(encrypted, 0, packet, CBC_IV_SIZE, encrypted.length);
+                return packet;
+            }
+
+            long c = counter++;
+            writeLong(nonce, NONCE_SIZE - COUNTER_SIZE, c);
+            gcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+
+            byte[] packet = new byte[COUNTER_SIZE + gcm.getOutputSize(data.length)];
+            writeLong(packet, 0, c);
+            gcm.doFinal(data, 0, data.length, packet, COUNTER_SIZE);
+            return packet;
+        }
+    }
+
+    /* ================= RECEIVE ================= */
+
+    public final class Opener {
+        private final byte[] nonce = new byte[NONCE_SIZE];
+        private final Cipher gcm = newGcm();
+
+        // counter lớn nhất đã nhận + bitmap REPLAY_WINDOW gói trước đó
+        private long highest = -1;
+        private long window = 0;
+
+        private Opener(byte[] prefix) {
+            System.arraycopy(prefix, 0, nonce, 0, prefix.length);
+        }
+
+        /**
+         * @return plaintext, hoặc null nếu chưa có key / gói hỏng / bị sửa / phát lại
+         */
+        public byte[] open(byte[] packet, int length) {
+            if (!keyManager.hasKey(callKey)) return null;
+            SecretKey key = keyManager.getSessionKey(callKey);
+
+            try {
+                if (!aead) {
+                    if (length <= CBC_IV_SIZE) return null;
+                    IvParameterSpec iv = new IvParameterSpec(packet, 0, CBC_IV_SIZE);
+                    return CryptoUtils.decryptAES(Arrays.copyOfRange(packet, CBC_IV_SIZE, length), key, iv);
+                }
+
+                if (length < COUNTER_SIZE + TAG_BITS / 8) return null;
+                long c = readLong(packet, 0);
+                if (!fresh(c)) return null;
+
+                System.arraycopy(packet, 0, nonce, NONCE_SIZE - COUNTER_SIZE, COUNTER_SIZE);
+                gcm.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+                byte[] plain = gcm.doFinal(packet, COUNTER_SIZE, length - COUNTER_SIZE);
+
+                // chỉ ghi nhận counter khi tag hợp lệ
+                markSeen(c);
+                return plain;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        private boolean fresh(long c) {
+            if (c > highest) return true;
+            long age = highest - c;
+            return age < REPLAY_WINDOW && (window & (1L << age)) == 0;
+        }
+
+        private void markSeen(long c) {
+            if (c > highest) {
+                long shift = c - highest;
+                window = shift >= REPLAY_WINDOW ? 0 : window << shift;
+                window |= 1;
+                highest = c;
+            } else {
+                window |= 1L << (highest - c);
+            }
+        }
+    }
+
+    /* ================= UTILS ================= */
+
+    private static void writeLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = (v << 8) | (b[off + i] & 0xFF);
+        return v;
+    }
+}
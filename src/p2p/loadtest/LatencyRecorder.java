@@ -0,0 +1,51 @@
+package p2p.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * LatencyRecorder
+ * ---------------
+ * Lưu mọi mẫu độ trễ (ns) rồi sort 1 lần lúc báo cáo → percentile chính xác.
+ * 1 triệu mẫu ≈ 8MB, đủ cho vài phút chạy trên 1 máy.
+ */
+class LatencyRecorder {
+
+    private long[] samples = new long[1 << 16];
+    private int count = 0;
+
+    synchronized void record(long nanos) {
+        if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+        samples[count++] = nanos;
+    }
+
+    synchronized Snapshot snapshot() {
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return new Snapshot(sorted);
+    }
+
+    static class Snapshot {
+        private final long[] sorted;
+
+        Snapshot(long[] sorted) {
+            this.sorted = sorted;
+        }
+
+        int count() {
+            return sorted.length;
+        }
+
+        /**
+         * @param q 0..1 (0.5 = p50, 0.999 = p999), trả về ms
+         */
+        double percentileMillis(double q) {
+            if (sorted.length == 0) return 0;
+            int idx = (int) Math.ceil(q * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1_000_000.0;
+        }
+
+        double maxMillis() {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1_000_000.0;
+        }
+    }
+}
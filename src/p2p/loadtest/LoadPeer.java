@@ -0,0 +1,165 @@
+package p2p.loadtest;
+
+import p2p.*;
+import p2p.crypto.KeyManager;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LoadPeer
+ * --------
+ * 1 node headless trên 127.0.0.1: PeerServer + PeerClient + discovery,
+ * PeerEvents không đụng JavaFX, chỉ ghi nhận độ trễ vào LoadTest.Stats.
+ *
+ * Độ trễ đo bằng System.nanoTime() của bên gửi nhúng trong payload
+ * (cùng JVM nên so sánh trực tiếp được):
+ * - message: "LT|nanos|padding", đo khi bên nhận decode xong
+ * - file: tên file "lt-nanos-...", đo khi bên nhận ghi xong file
+ * - call: callKey "lt-call-nanos-...", đo round-trip CALL_REQUEST → CALL_ACCEPT
+ */
+class LoadPeer implements PeerServer.ConnectionListener, PeerServer.ChannelListener, PeerEvents {
+
+    static final String MSG_PREFIX = "LT|";
+    static final String FILE_PREFIX = "lt-";
+    static final String CALL_PREFIX = "lt-call-";
+
+    final int index;
+    final int servicePort;
+    final int discoveryPort;
+
+    private final LoadTest.Stats messageStats;
+    private final LoadTest.Stats fileStats;
+    private final LoadTest.Stats callStats;
+
+    private final KeyManager keyManager = new KeyManager();
+    private final SettingsStore settings = new SettingsStore();
+    private final FileReceiver files = new FileReceiver();
+    private final PeerServer server;
+    private final PeerClient client;
+    private final PeerDiscoveryListener discoveryListener;
+    private PeerDiscoverySender discoverySender;
+
+    // callKey → hoàn tất khi nhận CALL_ACCEPT
+    private final Map<String, CompletableFuture<Void>> pendingCalls = new ConcurrentHashMap<>();
+
+    LoadPeer(int index, int servicePort, int discoveryPort, boolean nio, int workerThreads,
+             LoadTest.Stats messageStats, LoadTest.Stats fileStats, LoadTest.Stats callStats) {
+        this.index = index;
+        this.servicePort = servicePort;
+        this.discoveryPort = discoveryPort;
+        this.messageStats = messageStats;
+        this.fileStats = fileStats;
+        this.callStats = callStats;
+
+        String username = "load-" + index;
+        this.server = nio
+                ? new PeerServer(servicePort, (PeerServer.ChannelListener) this, workerThreads)
+                : new PeerServer(servicePort, (PeerServer.ConnectionListener) this);
+        this.client = new PeerClient(keyManager, username + "@127.0.0.1:" + servicePort, servicePort, username);
+        this.discoveryListener = new PeerDiscoveryListener(servicePort, discoveryPort);
+    }
+
+    void start() {
+        server.start();
+        discoveryListener.start();
+    }
+
+    /**
+     * Gọi sau khi mọi node đã start() để lượt DISCOVER đầu tiên không rơi vào port chưa bind
+     */
+    void startDiscovery(List<InetSocketAddress> discoveryTargets) {
+        discoverySender = new PeerDiscoverySender("load-" + index, servicePort, discoveryTargets);
+        discoverySender.start();
+    }
+
+    List<Peer> discovered() {
+        return discoveryListener.snapshot();
+    }
+
+    PeerClient client() {
+        return client;
+    }
+
+    CompletableFuture<Void> expectCallAccept(String callKey) {
+        CompletableFuture<Void> accepted = new CompletableFuture<>();
+        pendingCalls.put(callKey, accepted);
+        return accepted;
+    }
+
+    void forgetCall(String callKey) {
+        pendingCalls.remove(callKey);
+    }
+
+    void shutdown() {
+        if (discoverySender != null) discoverySender.shutdown();
+        discoveryListener.shutdown();
+        server.shutdown();
+        client.shutdown();
+    }
+
+    /* ================= SERVER CALLBACK ================= */
+
+    @Override
+    public void onNewConnection(Socket socket) {
+        Peer peer = new Peer(socket.getInetAddress(), 0, "", "");
+        IoExecutor.execute(new PeerHandler(socket, peer, keyManager, settings, this, null, files, null));
+    }
+
+    @Override
+    public PeerHandler onNewChannel(InetAddress remote) {
+        Peer peer = new Peer(remote, 0, "", "");
+        return new PeerHandler(peer, keyManager, settings, this, null, files, null);
+    }
+
+    /* ================= EVENTS ================= */
+
+    @Override
+    public void onMessage(Peer peer, String msg) {
+        if (!msg.startsWith(MSG_PREFIX)) return;
+        int end = msg.indexOf('|', MSG_PREFIX.length());
+        long sentAt = Long.parseLong(msg.substring(MSG_PREFIX.length(), end));
+        messageStats.delivered(System.nanoTime() - sentAt);
+    }
+
+    @Override
+    public void onCallRequest(Peer peer, String callKey, int videoPort, int audioPort, boolean aead) {
+        // trả lời ngay như người dùng bấm Accept, không mở camera / mic
+        IoExecutor.execute(() -> client.sendCallAccept(peer, 0, 0, callKey, aead));
+    }
+
+    @Override
+    public void onCallAccepted(Peer peer, String callKey, int videoPort, int audioPort, boolean aead) {
+        CompletableFuture<Void> accepted = pendingCalls.remove(callKey);
+        if (accepted == null || !callKey.startsWith(CALL_PREFIX)) return;
+
+        int end = callKey.indexOf('-', CALL_PREFIX.length());
+        long sentAt = Long.parseLong(callKey.substring(CALL_PREFIX.length(), end));
+        callStats.delivered(System.nanoTime() - sentAt);
+        accepted.complete(null);
+
+        IoExecutor.execute(() -> client.sendCallEnd(peer));
+    }
+
+    @Override
+    public void onCallEnded(Peer peer) {
+        // CALL_END của workload call, không cần ghi nhận
+    }
+
+    @Override
+    public void onFileReceived(Peer peer, File file) {
+        String name = file.getName();
+        if (name.startsWith(FILE_PREFIX)) {
+            int end = name.indexOf('-', FILE_PREFIX.length());
+            long sentAt = Long.parseLong(name.substring(FILE_PREFIX.length(), end));
+            fileStats.delivered(System.nanoTime() - sentAt, file.length());
+        }
+        file.delete();
+    }
+}
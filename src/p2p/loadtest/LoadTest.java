@@ -0,0 +1,341 @@
+package p2p.loadtest;
+
+import p2p.IoExecutor;
+import p2p.Peer;
+import p2p.PeerClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadTest
+ * --------
+ * Dựng N peer headless trên 127.0.0.1 trong 1 JVM (mỗi peer 1 port TCP + 1 port UDP discovery),
+ * chờ discovery thấy đủ nhau rồi chạy workload, in throughput + p50/p99/p999.
+ * Không cần mạng, không cần JavaFX toolkit / camera.
+ *
+ * Chạy:
+ *   mvn -q compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/classes:$(cat cp.txt) p2p.loadtest.LoadTest --peers=16 --seconds=30 --workload=message
+ *
+ * Tham số (--key=value):
+ *   peers=8           số node
+ *   seconds=10        thời gian đo (sau warmup)
+ *   warmup=2          giây chạy trước khi bắt đầu đo
+ *   workload=message  message | file | call, nhiều loại cách nhau bởi dấu phẩy
+ *   senders=1         số luồng gửi / node / workload
+ *   rate=0            tin (file, call) / giây / luồng gửi, 0 = không giới hạn
+ *   messageSize=64    byte / tin nhắn
+ *   fileSize=65536    byte / file
+ *   server=nio        nio | blocking
+ *   workers=2         worker thread / PeerServer NIO
+ *   basePort=42000    port TCP đầu tiên, discovery dùng basePort + 10000
+ */
+public class LoadTest {
+
+    private static final long DISCOVERY_TIMEOUT_MS = 15_000;
+    private static final long CALL_TIMEOUT_MS = 5_000;
+    private static final long DRAIN_MS = 1_000;
+
+    private static volatile boolean running = false;
+
+    /* ================= STATS ================= */
+
+    /**
+     * Bộ đếm của 1 loại workload, chỉ ghi khi đang trong thời gian đo
+     */
+    static class Stats {
+        final String name;
+        final LongAdder sent = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LatencyRecorder latency = new LatencyRecorder();
+        volatile boolean measuring = false;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        void sent() {
+            if (measuring) sent.increment();
+        }
+
+        void rejected() {
+            if (measuring) rejected.increment();
+        }
+
+        void failed() {
+            if (measuring) failed.increment();
+        }
+
+        void delivered(long latencyNanos) {
+            if (!measuring) return;
+            delivered.increment();
+            latency.record(latencyNanos);
+        }
+
+        void delivered(long latencyNanos, long size) {
+            if (!measuring) return;
+            bytes.add(size);
+            delivered(latencyNanos);
+        }
+
+        void report(double seconds) {
+            LatencyRecorder.Snapshot s = latency.snapshot();
+            System.out.printf("%n[%s]%n", name);
+            System.out.printf("  sent        %10d  (%,.1f/s)%n", sent.sum(), sent.sum() / seconds);
+            System.out.printf("  delivered   %10d  (%,.1f/s)%n", delivered.sum(), delivered.sum() / seconds);
+            System.out.printf("  rejected    %10d%n", rejected.sum());
+            System.out.printf("  failed      %10d%n", failed.sum());
+            if (bytes.sum() > 0) {
+                System.out.printf("  throughput  %,.1f MB/s%n", bytes.sum() / 1e6 / seconds);
+            }
+            System.out.printf("  latency ms  p50=%.3f  p99=%.3f  p999=%.3f  max=%.3f  (n=%d)%n",
+                    s.percentileMillis(0.50), s.percentileMillis(0.99),
+                    s.percentileMillis(0.999), s.maxMillis(), s.count());
+        }
+    }
+
+    /* ================= MAIN ================= */
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        int peers = intOpt(opts, "peers", 8);
+        int seconds = intOpt(opts, "seconds", 10);
+        int warmup = intOpt(opts, "warmup", 2);
+        int senders = intOpt(opts, "senders", 1);
+        int rate = intOpt(opts, "rate", 0);
+        int messageSize = intOpt(opts, "messageSize", 64);
+        int fileSize = intOpt(opts, "fileSize", 64 * 1024);
+        int workers = intOpt(opts, "workers", 2);
+        int basePort = intOpt(opts, "basePort", 42000);
+        boolean nio = !"blocking".equalsIgnoreCase(opts.getOrDefault("server", "nio"));
+        Set<String> workloads = new LinkedHashSet<>(Arrays.asList(opts.getOrDefault("workload", "message").split(",")));
+
+        if (peers < 2) throw new IllegalArgumentException("peers must be >= 2");
+
+        // file nhận được ghi vào thư mục tạm, không đụng ~/Downloads
+        File downloads = Files.createTempDirectory("p2p-loadtest-recv").toFile();
+        File outgoing = Files.createTempDirectory("p2p-loadtest-send").toFile();
+        File transfers = Files.createTempDirectory("p2p-loadtest-transfers").toFile();
+        System.setProperty("p2p.download.dir", downloads.getAbsolutePath());
+        System.setProperty("p2p.transfers.dir", transfers.getAbsolutePath());
+
+        Stats messageStats = new Stats("message");
+        Stats fileStats = new Stats("file");
+        Stats callStats = new Stats("call");
+
+        System.out.printf("Load test: peers=%d server=%s workload=%s senders=%d rate=%s seconds=%d (+%d warmup)%n",
+                peers, nio ? "nio(" + workers + ")" : "blocking", workloads, senders,
+                rate > 0 ? rate + "/s" : "unbounded", seconds, warmup);
+
+        // ===== START NODES =====
+        List<LoadPeer> nodes = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            nodes.add(new LoadPeer(i, basePort + i, basePort + 10_000 + i, nio, workers,
+                    messageStats, fileStats, callStats));
+        }
+        nodes.forEach(LoadPeer::start);
+        Thread.sleep(100);
+        for (LoadPeer node : nodes) {
+            List<InetSocketAddress> targets = new ArrayList<>();
+            for (LoadPeer other : nodes) {
+                if (other != node) targets.add(new InetSocketAddress("127.0.0.1", other.discoveryPort));
+            }
+            node.startDiscovery(targets);
+        }
+
+        // ===== DISCOVERY =====
+        long discoveryStart = System.nanoTime();
+        if (!awaitDiscovery(nodes, peers - 1)) {
+            System.err.println("❌ Discovery incomplete after " + DISCOVERY_TIMEOUT_MS + "ms");
+            shutdown(nodes);
+            System.exit(1);
+        }
+        System.out.printf("Discovery: %d peers saw each other in %.1f ms%n",
+                peers, (System.nanoTime() - discoveryStart) / 1_000_000.0);
+
+        // ===== WORKLOAD =====
+        List<Thread> drivers = new ArrayList<>();
+        AtomicLong fileSeq = new AtomicLong();
+        byte[] fileContent = new byte[fileSize];
+        new Random(42).nextBytes(fileContent);
+        String padding = "x".repeat(Math.max(0, messageSize - 24));
+        running = true;
+
+        for (LoadPeer node : nodes) {
+            List<Peer> targets = node.discovered();
+            for (int s = 0; s < senders; s++) {
+                int offset = s;
+                if (workloads.contains("message")) {
+                    drivers.add(driver("msg-" + node.index + "-" + s, rate, targets, offset,
+                            target -> sendMessage(node.client(), target, padding, messageStats)));
+                }
+                if (workloads.contains("file")) {
+                    drivers.add(driver("file-" + node.index + "-" + s, rate, targets, offset,
+                            target -> sendFile(node, target, outgoing, fileContent, fileSeq, fileStats)));
+                }
+                if (workloads.contains("call")) {
+                    drivers.add(driver("call-" + node.index + "-" + s, rate, targets, offset,
+                            target -> sendCall(node, target, callStats)));
+                }
+            }
+        }
+        if (drivers.isEmpty()) throw new IllegalArgumentException("Unknown workload: " + workloads);
+        drivers.forEach(Thread::start);
+
+        Thread.sleep(warmup * 1000L);
+        List<Stats> all = List.of(messageStats, fileStats, callStats);
+        all.forEach(s -> s.measuring = true);
+        long measureStart = System.nanoTime();
+
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Thread t : drivers) t.join(CALL_TIMEOUT_MS);
+
+        // chờ tin đang bay tới nơi rồi mới dừng đếm
+        Thread.sleep(DRAIN_MS);
+        all.forEach(s -> s.measuring = false);
+        double measured = (System.nanoTime() - measureStart) / 1e9 - DRAIN_MS / 1000.0;
+
+        // ===== REPORT =====
+        for (Stats s : all) {
+            if (workloads.contains(s.name)) s.report(measured);
+        }
+        System.out.printf("%nIoExecutor: %s, in flight at end: %d%n",
+                IoExecutor.isVirtual() ? "virtual threads" : "platform pool", IoExecutor.inFlight());
+
+        shutdown(nodes);
+        deleteDir(downloads);
+        deleteDir(outgoing);
+        deleteDir(transfers);
+        System.exit(0);
+    }
+
+    /* ================= DRIVERS ================= */
+
+    private interface Step {
+        void send(Peer target) throws Exception;
+    }
+
+    /**
+     * 1 luồng gửi: xoay vòng qua các peer đích, giữ nhịp `rate` lần / giây nếu có
+     */
+    private static Thread driver(String name, int rate, List<Peer> targets, int offset, Step step) {
+        Thread t = new Thread(() -> {
+            long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+            long next = System.nanoTime();
+            int i = offset;
+
+            while (running) {
+                if (interval > 0) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    next += interval;
+                }
+                try {
+                    step.send(targets.get(i++ % targets.size()));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "LoadTest-" + name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    private static void sendMessage(PeerClient client, Peer target, String padding, Stats stats) {
+        String msg = LoadPeer.MSG_PREFIX + System.nanoTime() + "|" + padding;
+
+        CompletableFuture<?> result = client.sendMessageAsync(target, msg);
+        if (result.isCompletedExceptionally()) {
+            // chỉ lỗi ngay khi cửa sổ đầy → lùi lại 1 chút thay vì quay vòng
+            stats.rejected();
+            LockSupport.parkNanos(100_000);
+            return;
+        }
+        stats.sent();
+        result.whenComplete((r, e) -> {
+            if (e != null) stats.failed();
+        });
+    }
+
+    private static void sendFile(LoadPeer node, Peer target, File dir, byte[] content,
+                                 AtomicLong seq, Stats stats) throws IOException {
+        // tên file mang thời điểm gửi để bên nhận tính độ trễ
+        File f = new File(dir, LoadPeer.FILE_PREFIX + System.nanoTime() + "-" + node.index + "-" + seq.incrementAndGet() + ".bin");
+        Files.write(f.toPath(), content);
+        try {
+            stats.sent();
+            node.client().sendFile(target, f);
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static void sendCall(LoadPeer node, Peer target, Stats stats) throws InterruptedException {
+        String callKey = LoadPeer.CALL_PREFIX + System.nanoTime() + "-" + node.index + "-" + UUID.randomUUID();
+        CompletableFuture<Void> accepted = node.expectCallAccept(callKey);
+
+        stats.sent();
+        node.client().sendCallRequest(target, 0, 0, callKey);
+        try {
+            accepted.get(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            node.forgetCall(callKey);
+            stats.failed();
+        }
+    }
+
+    /* ================= HELPERS ================= */
+
+    private static boolean awaitDiscovery(List<LoadPeer> nodes, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DISCOVERY_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            boolean complete = true;
+            for (LoadPeer node : nodes) {
+                if (node.discovered().size() < expected) {
+                    complete = false;
+                    break;
+                }
+            }
+            if (complete) return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static void shutdown(List<LoadPeer> nodes) {
+        for (LoadPeer node : nodes) node.shutdown();
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) throw new IllegalArgumentException("Expected --key=value: " + arg);
+            int eq = arg.indexOf('=');
+            opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return opts;
+    }
+
+    private static int intOpt(Map<String, String> opts, String key, int def) {
+        String v = opts.get(key);
+        return v == null ? def : Integer.parseInt(v);
+    }
+}
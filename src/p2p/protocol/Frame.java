@@ -0,0 +1,39 @@
+package p2p.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+/**
+ * Frame
+ * -----
+ * 1 frame đã decode: opcode + flags + payload
+ */
+public final class Frame {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int opcode;
+    private final int flags;
+    private final byte[] payload;
+
+    public Frame(int opcode, int flags, byte[] payload) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.payload = payload != null ? payload : EMPTY;
+    }
+
+    public int opcode() { return opcode; }
+    public int flags() { return flags; }
+    public byte[] payload() { return payload; }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Đọc payload theo kiểu DataInput (cùng cách encode field như v1)
+     */
+    public DataInputStream body() {
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+}
@@ -0,0 +1,90 @@
+package p2p.protocol;
+
+import p2p.FileDelta;
+import p2p.FileSender;
+import p2p.Swarm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameCodec
+ * ----------
+ * Giao thức TCP v2 (sau HELLO + PROTO/PROTO_ACK):
+ *
+ *   +--------+-------+----------------+-----------------+
+ *   | opcode | flags | length (u32 BE)| payload[length] |
+ *   |   u8   |  u8   |                |                 |
+ *   +--------+-------+----------------+-----------------+
+ *
+ * Version được chốt 1 lần khi mở kết nối, header không lặp lại version.
+ */
+public final class FrameCodec {
+
+    public static final int VERSION_LEGACY = 1;   // writeUTF tên lệnh
+    public static final int VERSION = 2;          // frame nhị phân
+
+    public static final int HEADER_SIZE = 6;
+    // frame lớn nhất có thật: 1 mảnh swarm (SWARM_PIECE), 1 chunk file / lô delta / lô thư mục (~BUFFER_SIZE),
+    // chữ ký file cũ (FILE_ACK); gấp đôi + dư cho IV, bitfield, header. Mặc định ~2.6 MiB,
+    // header khai báo lớn hơn → ProtocolException trước khi cấp buffer
+    public static final int MAX_PAYLOAD = 2 * Math.max(Math.max(Swarm.PIECE_SIZE, FileSender.BUFFER_SIZE),
+            FileDelta.MAX_SIGNATURE_SIZE) + 64 * 1024;
+
+    /* ===== Flags ===== */
+    public static final int FLAG_BATCH = 0x01;   // MSG: payload là MessageBatch
+    public static final int FLAG_KEY_ID = 0x01;  // SESSION_KEY: lưu theo keyId (call key), không theo peer id
+    public static final int FLAG_AEAD = 0x01;    // CALL_REQUEST / CALL_ACCEPT: media dùng AES-GCM (MediaCrypto)
+    public static final int FLAG_DELTA = 0x01;   // FILE_BEGIN: bên gửi hỗ trợ delta → FILE_ACK kèm chữ ký file cũ (FileDelta)
+    public static final int FLAG_MERKLE = 0x02;  // FILE_BEGIN / FILE_ACK / FILE_CHUNK / FILE_END: chunk kèm leaf hash, END kèm root (MerkleTree)
+
+    private FrameCodec() {}
+
+    /* ================= ENCODE ================= */
+
+    public static void writeHeader(DataOutputStream out, int opcode, int flags, int length) throws IOException {
+        // frame quá lớn thì bên nhận cũng đóng kết nối → báo lỗi ngay phía gửi, chưa ghi byte nào
+        checkLength(length);
+        out.writeByte(opcode);
+        out.writeByte(flags);
+        out.writeInt(length);
+    }
+
+    public static void write(DataOutputStream out, int opcode, int flags, byte[] payload, int off, int len) throws IOException {
+        writeHeader(out, opcode, flags, len);
+        out.write(payload, off, len);
+    }
+
+    public static void write(DataOutputStream out, int opcode, int flags) throws IOException {
+        writeHeader(out, opcode, flags, 0);
+    }
+
+    public static void writeHeader(ByteBuffer buf, int opcode, int flags, int length) throws ProtocolException {
+        checkLength(length);
+        buf.put((byte) opcode);
+        buf.put((byte) flags);
+        buf.putInt(length);
+    }
+
+    /* ================= DECODE (blocking) ================= */
+
+    public static Frame read(DataInputStream in) throws IOException {
+        int opcode = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int length = in.readInt();
+        checkLength(length);
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(opcode, flags, payload);
+    }
+
+    static void checkLength(int length) throws ProtocolException {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package p2p.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameDecoder
+ * ------------
+ * Decode frame dần dần từ ByteBuffer (chế độ NIO).
+ * Buffer ở chế độ đọc (đã flip); frame hoàn chỉnh được tiêu thụ khỏi buffer,
+ * frame dở dang giữ nguyên để lần sau đọc tiếp.
+ */
+public final class FrameDecoder {
+
+    /**
+     * @return frame hoàn chỉnh hoặc null nếu chưa đủ byte
+     */
+    public Frame decode(ByteBuffer buf) throws ProtocolException {
+        if (buf.remaining() < FrameCodec.HEADER_SIZE) return null;
+
+        int start = buf.position();
+        int length = buf.getInt(start + 2);
+        FrameCodec.checkLength(length);
+
+        if (buf.remaining() < FrameCodec.HEADER_SIZE + length) return null;
+
+        int opcode = buf.get(start) & 0xFF;
+        int flags = buf.get(start + 1) & 0xFF;
+
+        byte[] payload = new byte[length];
+        buf.position(start + FrameCodec.HEADER_SIZE);
+        buf.get(payload);
+        return new Frame(opcode, flags, payload);
+    }
+
+    /**
+     * Tổng số byte (header + payload) của frame đang chờ, 0 nếu chưa đọc được header.
+     * Dùng để cấp đủ buffer cho frame lớn.
+     */
+    public int pendingFrameSize(ByteBuffer buf) {
+        if (buf.remaining() < FrameCodec.HEADER_SIZE) return 0;
+        return FrameCodec.HEADER_SIZE + buf.getInt(buf.position() + 2);
+    }
+}
@@ -0,0 +1,53 @@
+package p2p.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameWriter
+ * -----------
+ * Buffer dùng lại để build payload rồi ghi thành 1 frame (không copy thêm).
+ * Không thread-safe: mỗi kết nối giữ 1 instance.
+ */
+public final class FrameWriter {
+
+    private final Scratch scratch = new Scratch();
+    private final DataOutputStream body = new DataOutputStream(scratch);
+
+    /**
+     * Payload mới (xoá dữ liệu frame trước)
+     */
+    public DataOutputStream begin() {
+        scratch.reset();
+        return body;
+    }
+
+    public void writeTo(DataOutputStream out, int opcode, int flags) throws IOException {
+        body.flush();
+        FrameCodec.write(out, opcode, flags, scratch.buffer(), 0, scratch.size());
+    }
+
+    /**
+     * Header + payload đã build, payload còn thiếu `tailLength` byte sẽ ghi riêng
+     * (ByteBuffer direct, xem PeerConnection.send(opcode, flags, head, tail))
+     */
+    public ByteBuffer toBuffer(int opcode, int flags, int tailLength) throws IOException {
+        body.flush();
+        ByteBuffer buf = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + scratch.size());
+        FrameCodec.writeHeader(buf, opcode, flags, scratch.size() + tailLength);
+        buf.put(scratch.buffer(), 0, scratch.size());
+        return buf.flip();
+    }
+
+    private static final class Scratch extends ByteArrayOutputStream {
+        Scratch() {
+            super(1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
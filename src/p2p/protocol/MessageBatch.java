@@ -0,0 +1,49 @@
+package p2p.protocol;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MessageBatch
+ * ------------
+ * Plaintext của 1 frame MSG có FLAG_BATCH:
+ *
+ *   count (u16) | { length (u32) | utf8[length] } * count
+ *
+ * Cả lô được mã hoá 1 lần như 1 tin thường.
+ */
+public final class MessageBatch {
+
+    private MessageBatch() {}
+
+    public static byte[] encode(List<String> messages) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * messages.size());
+        DataOutputStream out = new DataOutputStream(bos);
+
+        out.writeShort(messages.size());
+        for (String m : messages) {
+            byte[] utf8 = m.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    public static List<String> decode(byte[] plain) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+
+        int count = in.readUnsignedShort();
+        List<String> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int len = in.readInt();
+            if (len < 0 || len > in.available()) throw new EOFException("Truncated batch");
+            byte[] utf8 = new byte[len];
+            in.readFully(utf8);
+            messages.add(new String(utf8, StandardCharsets.UTF_8));
+        }
+        return messages;
+    }
+}
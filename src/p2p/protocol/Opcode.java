@@ -0,0 +1,93 @@
+package p2p.protocol;
+
+/**
+ * Opcode
+ * ------
+ * Bảng opcode của giao thức TCP dạng frame (v2).
+ * Giao thức cũ (v1) gửi tên lệnh bằng writeUTF, map 2 chiều qua fromLegacyName / legacyName.
+ */
+public final class Opcode {
+
+    /* ===== Handshake ===== */
+    public static final int HELLO = 0x01;          // chỉ có ở v1, luôn là lệnh đầu tiên
+    public static final int PROTO = 0x02;          // client đề nghị version (gửi dạng v1 ngay sau HELLO)
+    public static final int PROTO_ACK = 0x03;      // server trả version chốt
+    public static final int PING = 0x04;
+    public static final int PONG = 0x05;
+
+    /* ===== Key ===== */
+    public static final int SESSION_KEY = 0x10;
+    public static final int SESSION_KEY_ACK = 0x11;
+
+    /* ===== Chat ===== */
+    public static final int MSG = 0x20;
+
+    /* ===== Call ===== */
+    public static final int CALL_REQUEST = 0x30;
+    public static final int CALL_ACCEPT = 0x31;
+    public static final int CALL_END = 0x32;
+
+    /* ===== File ===== */
+    public static final int FILE = 0x40;           // v1: cả file trong 1 lệnh
+    public static final int FILE_BEGIN = 0x41;     // v2: stream theo chunk (FileSender)
+    public static final int FILE_CHUNK = 0x42;
+    public static final int FILE_END = 0x43;
+    public static final int FILE_ACK = 0x44;       // reply FILE_BEGIN / FILE_END: số byte bên nhận đã ghi chắc chắn
+    public static final int FILE_DELTA = 0x45;     // lệnh COPY / DATA dựng lại file từ bản cũ bên nhận (FileDelta)
+    public static final int DIR_BEGIN = 0x46;      // cả thư mục thành 1 luồng bản ghi (DirectoryArchive)
+    public static final int DIR_DATA = 0x47;
+    public static final int DIR_END = 0x48;
+    public static final int DIR_ACK = 0x49;        // reply DIR_BEGIN / DIR_END
+
+    // ===== Swarm (v2): 1 file → nhiều peer, người nhận xin mảnh của nhau (Swarm) =====
+    public static final int SWARM_OFFER = 0x50;
+    public static final int SWARM_JOIN = 0x51;     // reply SWARM_OFFER
+    public static final int SWARM_GET = 0x52;
+    public static final int SWARM_PIECE = 0x53;    // reply SWARM_GET
+
+    public static final int UNKNOWN = -1;
+
+    private Opcode() {}
+
+    /**
+     * Tên lệnh v1 → opcode (chỉ dùng cho peer bản cũ / lúc handshake)
+     */
+    public static int fromLegacyName(String name) {
+        return switch (name) {
+            case "HELLO" -> HELLO;
+            case "PROTO" -> PROTO;
+            case "PROTO_ACK" -> PROTO_ACK;
+            case "PING" -> PING;
+            case "PONG" -> PONG;
+            case "SESSION_KEY" -> SESSION_KEY;
+            case "SESSION_KEY_ACK" -> SESSION_KEY_ACK;
+            case "MSG" -> MSG;
+            case "CALL_REQUEST" -> CALL_REQUEST;
+            case "CALL_ACCEPT" -> CALL_ACCEPT;
+            case "CALL_END" -> CALL_END;
+            case "FILE" -> FILE;
+            default -> UNKNOWN;
+        };
+    }
+
+    /**
+     * Opcode → tên lệnh v1, null nếu lệnh không tồn tại ở v1
+     */
+    public static String legacyName(int opcode) {
+        return switch (opcode) {
+            case HELLO -> "HELLO";
+            case PROTO -> "PROTO";
+            case PROTO_ACK -> "PROTO_ACK";
+            case PING -> "PING";
+            case PONG -> "PONG";
+            case SESSION_KEY -> "SESSION_KEY";
+            case SESSION_KEY_ACK -> "SESSION_KEY_ACK";
+            case MSG -> "MSG";
+            case CALL_REQUEST -> "CALL_REQUEST";
+            case CALL_ACCEPT -> "CALL_ACCEPT";
+            case CALL_END -> "CALL_END";
+            case FILE -> "FILE";
+            default -> null;
+        };
+    }
+}